@@ -0,0 +1,201 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Micro benchmarks for the data-access methods of Cafe, run against the
+ * schema of sql/src/create_tables.sql. Every benchmark is run for a number
+ * of timed warm-up iterations followed by measured iterations on a single
+ * thread, and reports throughput, latency percentiles, the bytes allocated
+ * per operation and the garbage collections that happened meanwhile (like
+ * JMH's gc profiler).
+ *
+ * Usage:
+ *    java CafeBenchmark &lt;jdbcUrl&gt; &lt;user&gt; [password]
+ *
+ * Any JDBC database with the Cafe schema will do, e.g. a local PostgreSQL
+ * built by create_db.sh or an embedded stand-in on the classpath (select
+ * its driver with -Dbench.driver=...). Other settings:
+ *    -Dbench.warmup=3        warm-up iterations
+ *    -Dbench.iterations=5    measured iterations
+ *    -Dbench.seconds=2       length of one iteration
+ *    -Dbench.filter=regex    only run matching benchmarks
+ *
+ */
+public class CafeBenchmark {
+
+   /**
+    * One benchmarked operation.
+    */
+   static abstract class Case {
+      final String name;
+      Case(String name) { this.name = name; }
+      abstract void run(Cafe esql) throws Exception;
+   }//end Case
+
+   // swallows the output of executeQueryAndPrintResult
+   private static final PrintStream SINK = new PrintStream(new OutputStream() {
+      public void write(int b) { }
+      public void write(byte[] b, int off, int len) { }
+   });
+
+   /**
+    * The benchmarked statements.
+    */
+   static List<Case> cases() {
+      List<Case> cases = new ArrayList<Case>();
+      cases.add(new Case("executeQuery.login") {
+         void run(Cafe esql) throws Exception {
+            esql.executeQuery("SELECT * FROM Users WHERE login = 'Admin' AND password = 'admin'");
+         }
+      });
+      cases.add(new Case("executeQuery.login.prepared") {
+         void run(Cafe esql) throws Exception {
+            esql.executeQuery("SELECT * FROM Users WHERE login = ? AND password = ?", "Admin", "admin");
+         }
+      });
+      cases.add(new Case("executeQueryAndReturnResult.menuByType") {
+         void run(Cafe esql) throws Exception {
+            esql.executeQueryAndReturnResult("SELECT * FROM Menu WHERE type = 'Drinks'");
+         }
+      });
+      cases.add(new Case("executeQueryAndReturnResult.menuByType.cached") {
+         void run(Cafe esql) throws Exception {
+            esql.executeQueryAndReturnResult("SELECT * FROM Menu WHERE type = ?", "Drinks");
+         }
+      });
+      cases.add(new Case("executeQueryAndReturnResult.recentOrders") {
+         void run(Cafe esql) throws Exception {
+            esql.executeQueryAndReturnResult(
+               "SELECT * FROM Orders ORDER BY timeStampRecieved DESC LIMIT 100");
+         }
+      });
+      cases.add(new Case("executeQueryAndPrintResult.menu") {
+         void run(Cafe esql) throws Exception {
+            PrintStream out = System.out;
+            System.setOut(SINK);
+            try{
+               esql.executeQueryAndPrintResult("SELECT * FROM Menu");
+            }finally{
+               System.setOut(out);
+            }//end try
+         }
+      });
+      cases.add(new Case("executeUpdate.menuPrice") {
+         void run(Cafe esql) throws Exception {
+            esql.executeUpdate("UPDATE Menu SET price = price WHERE itemName = 'Coffee'");
+         }
+      });
+      cases.add(new Case("executeUpdate.menuPrice.prepared") {
+         void run(Cafe esql) throws Exception {
+            esql.executeUpdate("UPDATE Menu SET price = price WHERE itemName = ?", "Coffee");
+         }
+      });
+      return cases;
+   }//end cases
+
+   /**
+    * The main execution method
+    *
+    * @param args &lt;jdbcUrl&gt; &lt;user&gt; [password]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 2) {
+         System.err.println("Usage: java [-classpath <classpath>] " + CafeBenchmark.class.getName() +
+                            " <jdbcUrl> <user> [password]");
+         return;
+      }//end if
+      int warmup = Integer.getInteger("bench.warmup", 3);
+      int iterations = Integer.getInteger("bench.iterations", 5);
+      long iterationNanos = Long.getLong("bench.seconds", 2L) * 1000000000L;
+      Pattern filter = Pattern.compile(System.getProperty("bench.filter", ".*"));
+
+      Class.forName(System.getProperty("bench.driver", "org.postgresql.Driver")).newInstance();
+      Cafe esql = new Cafe(args[0], args[1], args.length > 2 ? args[2] : "", 1, 1);
+      try{
+         System.out.println(String.format("%-48s %10s %9s %9s %9s %11s %6s %7s",
+                                          "benchmark", "ops/s", "avg us", "p50 us", "p99 us",
+                                          "alloc B/op", "gc", "gc ms"));
+         for (Case c : cases()) {
+            if (!filter.matcher(c.name).find())
+               continue;
+            for (int i = 0; i < warmup; ++i)
+               iterate(esql, c, iterationNanos, null);
+            Result r = new Result();
+            for (int i = 0; i < iterations; ++i)
+               iterate(esql, c, iterationNanos, r);
+            System.out.println(String.format("%-48s %10.1f %9.1f %9.1f %9.1f %11.0f %6d %7d",
+                                             c.name, r.ops / (r.nanos / 1e9),
+                                             r.latency.meanNanos() / 1e3,
+                                             r.latency.percentileNanos(50) / 1e3,
+                                             r.latency.percentileNanos(99) / 1e3,
+                                             (double) r.allocated / Math.max(1, r.ops),
+                                             r.gcCount, r.gcMillis));
+         }//end for
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Totals of the measured iterations of one benchmark.
+    */
+   static class Result {
+      final LatencyHistogram latency = new LatencyHistogram();
+      long ops, nanos, allocated, gcCount, gcMillis;
+   }//end Result
+
+   /*
+    * Runs c repeatedly for iterationNanos, adding the measurements to r
+    * unless it is a warm-up iteration (r == null).
+    */
+   private static void iterate(Cafe esql, Case c, long iterationNanos, Result r) throws Exception {
+      long gcCount = gcCount(), gcMillis = gcMillis();
+      long allocated = allocatedBytes();
+      long start = System.nanoTime();
+      long end = start + iterationNanos;
+      long ops = 0;
+      long now = start;
+      while (now < end) {
+         c.run(esql);
+         long after = System.nanoTime();
+         if (r != null)
+            r.latency.record(after - now);
+         now = after;
+         ++ops;
+      }//end while
+      if (r == null)
+         return;
+      r.ops += ops;
+      r.nanos += now - start;
+      r.allocated += allocatedBytes() - allocated;
+      r.gcCount += gcCount() - gcCount;
+      r.gcMillis += gcMillis() - gcMillis;
+   }//end iterate
+
+   private static long allocatedBytes() {
+      java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean)
+         return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+      return 0;
+   }//end allocatedBytes
+
+   private static long gcCount() {
+      long n = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+         n += Math.max(0, gc.getCollectionCount());
+      return n;
+   }//end gcCount
+
+   private static long gcMillis() {
+      long n = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+         n += Math.max(0, gc.getCollectionTime());
+      return n;
+   }//end gcMillis
+
+}//end CafeBenchmark
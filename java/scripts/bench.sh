@@ -0,0 +1,15 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+# the bundled pg73jdbc3.jar speaks protocol v2: PostgreSQL 12 or 13 only,
+# see sql/src/create_tables.sql
+
+# compile the java program and the benchmarks
+javac -d $DIR/../classes $DIR/../src/*.java $DIR/../bench/src/*.java
+
+# run the benchmarks against the local database, extra -D options go first:
+#    bench.sh -Dbench.filter=executeQuery -Dbench.seconds=5
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar "$@" CafeBenchmark \
+     "jdbc:postgresql://localhost:$PGPORT/$USER""_DB" $USER
@@ -3,9 +3,11 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
+# the bundled pg73jdbc3.jar speaks protocol v2: PostgreSQL 12 or 13 only,
+# see sql/src/create_tables.sql
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Cafe.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
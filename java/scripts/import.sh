@@ -0,0 +1,15 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+# the bundled pg73jdbc3.jar speaks protocol v2: PostgreSQL 12 or 13 only,
+# see sql/src/create_tables.sql
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# reload the data files in parallel: [threads]
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar -Dimport.truncate=true \
+     -Dimport.backfill=$DIR/../../sql/src/backfill_rollups.sql,$DIR/../../sql/src/backfill_recommendations.sql \
+     BulkImporter $USER"_DB" $PGPORT $USER $DIR/../../data "${1:-4}"
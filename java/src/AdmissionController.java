@@ -0,0 +1,382 @@
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides which database work runs when the connections run short, so a
+ * report or a menu edit never makes a customer at the till wait.
+ *
+ * Every borrow() of the ConnectionPool asks for a permit first. The work
+ * is classified by the thread asking: an explicit class set with enter(),
+ * otherwise the type of the user logged in to the thread's session, see
+ * current(). Each class has a cap on the connections it may hold at once
+ * and requests beyond it, or beyond the pool size, wait in a queue per
+ * class. A freed permit goes to the most urgent class waiting, and a
+ * class is not admitted while a more urgent one waits. Managers and
+ * maintenance therefore never hold the whole pool, and checkout jumps the
+ * queue when it forms.
+ *
+ * A request that waited maxWaitMillis of its class is turned down with an
+ * SQLException of state BUSY, rather than left to run into the timeout of
+ * its caller. The sessions of each class also get a statement_timeout,
+ * so a runaway scan is cancelled by the server instead of holding its
+ * connection.
+ *
+ * A thread already holding a permit, e.g. one borrowing a second
+ * connection inside a unit of work, is admitted again without waiting and
+ * without counting against its class: if it queued, threads that each
+ * hold a permit and want a second connection would wait for one another
+ * until maxWaitMillis. Such nested borrows are rare and short, so they
+ * may take a class past its cap for a moment; the pool still bounds
+ * them, as they wait for a free connection like any other borrow.
+ * Permits are given back by the thread that took them.
+ *
+ * Settings, per class (interactive, staff, manager, maintenance):
+ *    -Dcafe.admission.&lt;class&gt;.max=n              connections held at once
+ *    -Dcafe.admission.&lt;class&gt;.maxWaitMillis=ms   queueing before BUSY
+ *    -Dcafe.admission.&lt;class&gt;.timeoutSeconds=s   statement timeout, 0 none
+ *
+ */
+public class AdmissionController {
+
+   /**
+    * The kinds of database work, most urgent first.
+    */
+   public static enum WorkClass {
+      // customers: log in, menu, checkout, their orders
+      INTERACTIVE(5, 3000),
+      // employees: open orders and item status updates
+      STAFF(10, 5000),
+      // managers: menu edits, order history scans, reports and exports
+      MANAGER(120, 30000),
+      // background jobs and the batch tools: no statement timeout
+      MAINTENANCE(0, 30000);
+
+      final int defaultTimeoutSeconds;
+      final long defaultMaxWaitMillis;
+      WorkClass(int timeoutSeconds, long maxWaitMillis) {
+         this.defaultTimeoutSeconds = timeoutSeconds;
+         this.defaultMaxWaitMillis = maxWaitMillis;
+      }
+      String key() {
+         return name().toLowerCase();
+      }
+   }//end WorkClass
+
+   /**
+    * The SQLSTATE of the exception thrown when no permit was free in time,
+    * insufficient_resources.
+    */
+   public static final String BUSY = "53000";
+
+   // the class set by enter() on the calling thread, null if none
+   private static final ThreadLocal<WorkClass> CLASS = new ThreadLocal<WorkClass>();
+   // the permits held by the calling thread
+   private static final ThreadLocal<int[]> HELD = new ThreadLocal<int[]>() {
+      protected int[] initialValue() { return new int[1]; }
+   };
+   // the class of threads that have none set and no user logged in
+   private static volatile WorkClass _defaultClass = WorkClass.INTERACTIVE;
+
+   private static final WorkClass[] CLASSES = WorkClass.values();
+
+   private final int _total;
+   private final int[] _max = new int[CLASSES.length];
+   private final long[] _maxWaitNanos = new long[CLASSES.length];
+   private final int[] _timeoutSeconds = new int[CLASSES.length];
+
+   // guards the counts below; a condition per class so a freed permit
+   // wakes the class it is meant for
+   private final ReentrantLock _lock = new ReentrantLock(true);
+   private final Condition[] _turn = new Condition[CLASSES.length];
+   private final int[] _active = new int[CLASSES.length];
+   private final int[] _queued = new int[CLASSES.length];
+   private int _activeTotal = 0;
+
+   // metrics, per class
+   private final AtomicLong[] _admitted = counters();
+   private final AtomicLong[] _waits = counters();
+   private final AtomicLong[] _waitNanos = counters();
+   private final AtomicLong[] _maxWaitSeen = counters();
+   private final AtomicLong[] _maxQueued = counters();
+   private final AtomicLong[] _rejected = counters();
+
+   /**
+    * @param total the number of permits, the size of the pool
+    */
+   public AdmissionController(int total) {
+      this._total = Math.max(1, total);
+      for (WorkClass c : CLASSES) {
+         int i = c.ordinal();
+         this._max[i] = Math.max(1, Math.min(this._total,
+            Integer.getInteger("cafe.admission." + c.key() + ".max", defaultMax(c, this._total))));
+         this._maxWaitNanos[i] = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("cafe.admission." + c.key() + ".maxWaitMillis", c.defaultMaxWaitMillis));
+         this._timeoutSeconds[i] = Math.max(0,
+            Integer.getInteger("cafe.admission." + c.key() + ".timeoutSeconds", c.defaultTimeoutSeconds));
+         this._turn[i] = this._lock.newCondition();
+      }//end for
+   }//end AdmissionController
+
+   /*
+    * Customers may use the whole pool, staff and maintenance all but one
+    * connection so a checkout always finds one, managers half of it.
+    */
+   private static int defaultMax(WorkClass c, int total) {
+      switch (c) {
+         case STAFF: return total - 1;
+         case MAINTENANCE: return total - 1;
+         case MANAGER: return total / 2;
+         default: return total;
+      }//end switch
+   }//end defaultMax
+
+   /**
+    * Sets the class of the work the calling thread does until exit().
+    *
+    * @param c the class
+    * @return the class set before, to be passed to exit()
+    */
+   public static WorkClass enter(WorkClass c) {
+      WorkClass previous = CLASS.get();
+      CLASS.set(c);
+      return previous;
+   }//end enter
+
+   /**
+    * Restores the class the calling thread had before enter().
+    *
+    * @param previous what enter() returned
+    */
+   public static void exit(WorkClass previous) {
+      if (previous == null)
+         CLASS.remove();
+      else
+         CLASS.set(previous);
+   }//end exit
+
+   /**
+    * @return r running with the class c, for the threads of an executor
+    */
+   public static Runnable runAs(final WorkClass c, final Runnable r) {
+      return new Runnable() {
+         public void run() {
+            WorkClass previous = enter(c);
+            try{
+               r.run();
+            }finally{
+               exit(previous);
+            }//end try
+         }
+      };
+   }//end runAs
+
+   /**
+    * Sets the class of threads that have none and no user logged in, e.g.
+    * MAINTENANCE for the batch tools.
+    */
+   public static void setDefaultClass(WorkClass c) {
+      _defaultClass = c;
+   }//end setDefaultClass
+
+   /**
+    * @return the class of the work of the calling thread: the one set with
+    *         enter(), else STAFF for employees and MANAGER for managers
+    *         logged in to the session attached to it, else the default
+    *         class. A thread without a session of its own, e.g. a helper
+    *         thread, does not take the class of the console's user.
+    */
+   public static WorkClass current() {
+      WorkClass c = CLASS.get();
+      if (c != null)
+         return c;
+      Session session = Session.attached();
+      if (session == null)
+         return _defaultClass;
+      String type = session.type();
+      if ("Manager".equals(type))
+         return WorkClass.MANAGER;
+      if ("Employee".equals(type))
+         return WorkClass.STAFF;
+      return _defaultClass;
+   }//end current
+
+   /**
+    * Takes a permit for the work of the calling thread, waiting while its
+    * class is at its cap, the permits are all taken or a more urgent class
+    * waits.
+    *
+    * @return the class admitted, null if the thread held a permit already
+    * @throws java.sql.SQLException of state BUSY when no permit was free
+    *         within maxWaitMillis of the class
+    */
+   public WorkClass acquire() throws SQLException {
+      int[] held = HELD.get();
+      if (held[0] > 0) {
+         ++held[0];
+         return null;
+      }//end if
+      WorkClass c = current();
+      int i = c.ordinal();
+      long start = System.nanoTime();
+      boolean waited = false;
+      this._lock.lock();
+      try{
+         // behind the requests of its class already waiting
+         if (this._queued[i] > 0 || !admissible(i)) {
+            waited = true;
+            ++this._queued[i];
+            max(this._maxQueued[i], this._queued[i]);
+            boolean admitted = false;
+            try{
+               long remaining = this._maxWaitNanos[i];
+               while (!admissible(i)) {
+                  if (remaining <= 0) {
+                     this._rejected[i].incrementAndGet();
+                     throw new SQLException("The cafe is busy, please try again in a moment ("
+                                            + c.key() + " work waited "
+                                            + TimeUnit.NANOSECONDS.toMillis(this._maxWaitNanos[i]) + " ms)", BUSY);
+                  }//end if
+                  try{
+                     remaining = this._turn[i].awaitNanos(remaining);
+                  }catch (InterruptedException e){
+                     Thread.currentThread().interrupt();
+                     throw new SQLException("Interrupted while waiting for the database");
+                  }//end try
+               }//end while
+               admitted = true;
+            }finally{
+               --this._queued[i];
+               // the permit this one was woken for goes to the next in line
+               if (!admitted)
+                  signalNext();
+            }//end try
+         }//end if
+         ++this._active[i];
+         ++this._activeTotal;
+         // more permits may be free, e.g. after several releases
+         if (waited)
+            signalNext();
+      }finally{
+         this._lock.unlock();
+      }//end try
+      held[0] = 1;
+      this._admitted[i].incrementAndGet();
+      if (waited) {
+         long waitNanos = System.nanoTime() - start;
+         this._waits[i].incrementAndGet();
+         this._waitNanos[i].addAndGet(waitNanos);
+         max(this._maxWaitSeen[i], waitNanos);
+      }//end if
+      return c;
+   }//end acquire
+
+   /**
+    * Gives back a permit taken by the calling thread.
+    *
+    * @param c what acquire() returned
+    */
+   public void release(WorkClass c) {
+      int[] held = HELD.get();
+      if (held[0] > 0)
+         --held[0];
+      if (c == null)
+         return;
+      this._lock.lock();
+      try{
+         --this._active[c.ordinal()];
+         --this._activeTotal;
+         signalNext();
+      }finally{
+         this._lock.unlock();
+      }//end try
+   }//end release
+
+   /**
+    * @param c the class
+    * @return the statement timeout of the class in seconds, 0 for none
+    */
+   public int timeoutSeconds(WorkClass c) {
+      return this._timeoutSeconds[c.ordinal()];
+   }//end timeoutSeconds
+
+   /**
+    * Tells whether customers or staff are waiting for the database, so
+    * work that can be left out, e.g. the suggestions at login, is.
+    */
+   public boolean overloaded() {
+      this._lock.lock();
+      try{
+         return this._queued[WorkClass.INTERACTIVE.ordinal()] > 0
+                || this._queued[WorkClass.STAFF.ordinal()] > 0;
+      }finally{
+         this._lock.unlock();
+      }//end try
+   }//end overloaded
+
+   /**
+    * @return per class: connections held, queue depth now and at most,
+    *         permits given, waits with their average and longest time and
+    *         requests turned down
+    */
+   public String stats() {
+      StringBuilder sb = new StringBuilder("admission:");
+      this._lock.lock();
+      try{
+         for (WorkClass c : CLASSES) {
+            int i = c.ordinal();
+            long waits = this._waits[i].get();
+            double avgWaitMs = waits == 0 ? 0.0 : this._waitNanos[i].get() / 1e6 / waits;
+            sb.append(String.format(
+               " %s[active=%d/%d queued=%d maxQueued=%d admitted=%d waits=%d avgWait=%.3fms maxWait=%.3fms rejected=%d timeout=%ds]",
+               c.key(), this._active[i], this._max[i], this._queued[i], this._maxQueued[i].get(),
+               this._admitted[i].get(), waits, avgWaitMs, this._maxWaitSeen[i].get() / 1e6,
+               this._rejected[i].get(), this._timeoutSeconds[i]));
+         }//end for
+      }finally{
+         this._lock.unlock();
+      }//end try
+      return sb.toString();
+   }//end stats
+
+   /*
+    * Whether class i may take a permit now. Called with the lock held.
+    */
+   private boolean admissible(int i) {
+      if (this._activeTotal >= this._total || this._active[i] >= this._max[i])
+         return false;
+      for (int j = 0; j < i; ++j)
+         if (this._queued[j] > 0)
+            return false;
+      return true;
+   }//end admissible
+
+   /*
+    * Wakes a waiter of the most urgent class that may take a permit now.
+    * Called with the lock held.
+    */
+   private void signalNext() {
+      for (int i = 0; i < CLASSES.length; ++i) {
+         if (this._queued[i] > 0 && admissible(i)) {
+            this._turn[i].signal();
+            return;
+         }//end if
+      }//end for
+   }//end signalNext
+
+   private static AtomicLong[] counters() {
+      AtomicLong[] counters = new AtomicLong[CLASSES.length];
+      for (int i = 0; i < counters.length; ++i)
+         counters[i] = new AtomicLong();
+      return counters;
+   }//end counters
+
+   private static void max(AtomicLong max, long value) {
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value))
+         current = max.get();
+   }//end max
+
+}//end AdmissionController
@@ -0,0 +1,80 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size Bloom filter over strings. mightContain() never returns
+ * false for a value that was added, but may return true for a value that
+ * was not (with roughly the false positive rate it was sized for).
+ *
+ * Safe for concurrent add() and mightContain() calls.
+ *
+ */
+public class BloomFilter {
+
+   private final AtomicLongArray _bits;
+   private final long _numBits;
+   private final int _numHashes;
+
+   /**
+    * @param expectedInsertions number of values the filter is sized for
+    * @param falsePositiveRate target false positive rate, e.g. 0.01
+    */
+   public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+      long n = Math.max(1, expectedInsertions);
+      long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+      m = Math.max(64, (m + 63) / 64 * 64);
+      this._numBits = m;
+      this._numHashes = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+      this._bits = new AtomicLongArray((int) (m / 64));
+   }//end BloomFilter
+
+   /**
+    * Adds value to the filter.
+    */
+   public void add(String value) {
+      long h = hash(value);
+      int h1 = (int) h;
+      int h2 = (int) (h >>> 32);
+      for (int i = 1; i <= this._numHashes; ++i) {
+         long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % this._numBits;
+         int word = (int) (bit >>> 6);
+         long mask = 1L << bit;
+         long old = this._bits.get(word);
+         while ((old & mask) == 0 && !this._bits.compareAndSet(word, old, old | mask))
+            old = this._bits.get(word);
+      }//end for
+   }//end add
+
+   /**
+    * @return false if value was definitely never added, true if it may have been
+    */
+   public boolean mightContain(String value) {
+      long h = hash(value);
+      int h1 = (int) h;
+      int h2 = (int) (h >>> 32);
+      for (int i = 1; i <= this._numHashes; ++i) {
+         long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % this._numBits;
+         if ((this._bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+            return false;
+      }//end for
+      return true;
+   }//end mightContain
+
+   /*
+    * 64 bit FNV-1a over the characters, finished with a murmur3 mix so both
+    * halves are usable as independent hashes.
+    */
+   private static long hash(String value) {
+      long h = 0xcbf29ce484222325L;
+      for (int i = 0; i < value.length(); ++i) {
+         h ^= value.charAt(i);
+         h *= 0x100000001b3L;
+      }//end for
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }//end hash
+
+}//end BloomFilter
@@ -0,0 +1,294 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the ';' separated data files of load_data.sql from the client
+ * machine, over several connections in parallel. Each file is read
+ * through a fixed size buffer and cut into chunks of rows; every chunk is
+ * inserted in one transaction by a UnitOfWork, in JDBC batches.
+ *
+ * Tables are loaded in foreign key order: Users and Menu together, then
+ * Orders, then ItemStatus. Afterwards orders_orderid_seq is moved past the
+ * highest loaded orderid.
+ *
+ * Usage:
+ *    java BulkImporter &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [dataDir] [threads]
+ *
+ * Other settings:
+ *    -Dimport.chunkRows=5000     rows per transaction
+ *    -Dimport.truncate=true      empty the tables first
+ *    -Dimport.backfill=files     comma separated SQL files run after
+ *                                the load, e.g.
+ *                                sql/src/backfill_rollups.sql
+ *
+ * The chunks are inserted with session_replication_role set to replica
+ * for their own transaction only, so the triggers of create_triggers.sql
+ * do not fire for the loaded rows, while other sessions keep theirs:
+ * loaded rows neither notify listeners nor contend for the rollup rows.
+ * Run the backfills to rebuild the rollups and recommendations. The
+ * setting needs a superuser, and it skips the foreign key checks too, so
+ * the files have to be consistent.
+ *
+ * The exit status is 1 if any chunk failed to load.
+ *
+ */
+public class BulkImporter {
+
+   // read buffer of every data file
+   private static final int BUFFER_SIZE = 1 << 20;
+
+   /**
+    * One data file and the statement inserting one of its lines. Values
+    * are bound as text and cast by the server, like COPY does.
+    */
+   static class Table {
+      final String name;
+      final String file;
+      final String insert;
+      final int columns;
+      Table(String name, String file, int columns, String insert) {
+         this.name = name;
+         this.file = file;
+         this.columns = columns;
+         this.insert = insert;
+      }
+   }//end Table
+
+   static final Table USERS = new Table("Users", "users.csv", 5,
+      "INSERT INTO Users (login, phoneNum, password, favItems, type) VALUES (?, ?, ?, ?, ?)");
+   static final Table MENU = new Table("Menu", "menu.csv", 5,
+      "INSERT INTO Menu (itemName, type, price, description, imageURL) " +
+      "VALUES (?, ?, CAST(? AS real), ?, ?)");
+   static final Table ORDERS = new Table("Orders", "orders.csv", 5,
+      "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) " +
+      "VALUES (CAST(? AS integer), ?, CAST(? AS boolean), CAST(? AS timestamp), CAST(? AS real))");
+   static final Table ITEM_STATUS = new Table("ItemStatus", "itemStatus.csv", 5,
+      "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) " +
+      "VALUES (CAST(? AS integer), ?, CAST(? AS timestamp), ?, ?)");
+
+   // the load order, tables of one phase have no foreign keys between them
+   static final Table[][] PHASES = {
+      { USERS, MENU }, { ORDERS }, { ITEM_STATUS }
+   };
+
+   private final Cafe _esql;
+   private final File _dataDir;
+   private final int _chunkRows;
+   private final ExecutorService _workers;
+
+   // rows loaded and chunks failed by the current phase
+   private final AtomicLong _rows = new AtomicLong();
+   private final AtomicLong _failedChunks = new AtomicLong();
+
+   BulkImporter(Cafe esql, File dataDir, int threads, int chunkRows) {
+      this._esql = esql;
+      this._dataDir = dataDir;
+      this._chunkRows = Math.max(1, chunkRows);
+      // the reader waits when every worker is busy and two chunks per
+      // worker are queued, so memory use does not depend on the file size
+      this._workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                             new ArrayBlockingQueue<Runnable>(2 * threads),
+                                             new ThreadPoolExecutor.CallerRunsPolicy());
+   }//end BulkImporter
+
+   /**
+    * The main execution method
+    *
+    * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [dataDir] [threads]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + BulkImporter.class.getName() +
+            " <dbname> <port> <user> [dataDir] [threads]");
+         System.exit(2);
+      }//end if
+      File dataDir = new File(args.length > 3 ? args[3] : "data");
+      int threads = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+
+      AdmissionController.setDefaultClass(AdmissionController.WorkClass.MAINTENANCE);
+      Class.forName("org.postgresql.Driver").newInstance();
+      Cafe esql = new Cafe(args[0], args[1], args[2], "", threads, threads);
+      BulkImporter importer = new BulkImporter(esql, dataDir, threads,
+                                               Integer.getInteger("import.chunkRows", 5000));
+      try{
+         if (Boolean.getBoolean("import.truncate"))
+            importer.truncate();
+         importer.run();
+         String backfill = System.getProperty("import.backfill");
+         if (backfill != null)
+            for (String script : backfill.split(","))
+               if (!script.trim().isEmpty())
+                  SqlScript.run(esql, new File(script.trim()));
+      }finally{
+         importer._workers.shutdownNow();
+         esql.cleanup();
+      }//end try
+      if (importer._failedChunks.get() > 0)
+         System.exit(1);
+   }//end main
+
+   /**
+    * Loads every phase, then fixes up the order id sequence.
+    */
+   void run() throws Exception {
+      long start = System.nanoTime();
+      long total = 0;
+      for (Table[] phase : PHASES)
+         total += load(phase);
+      this._esql.executeQueryAndReturnResult(
+         "SELECT setval('orders_orderid_seq', (SELECT COALESCE(MAX(orderid), 0) + 1 FROM Orders), false)");
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("%-12s %10d rows %8.1fs %10.0f rows/s",
+                                       "total", total, seconds, total / seconds));
+      if (this._failedChunks.get() > 0)
+         System.out.println(this._failedChunks.get() + " chunk(s) failed, see the errors above");
+   }//end run
+
+   /*
+    * Loads the tables of one phase in parallel and waits for all of them.
+    *
+    * @return the number of rows loaded
+    */
+   private long load(Table[] phase) throws Exception {
+      this._rows.set(0);
+      long start = System.nanoTime();
+      List<Future<?>> chunks = new ArrayList<Future<?>>();
+      StringBuilder names = new StringBuilder();
+      for (Table table : phase) {
+         File file = new File(this._dataDir, table.file);
+         if (!file.exists()) {
+            System.out.println("Skipping " + table.name + ": no " + file);
+            continue;
+         }//end if
+         names.append(names.length() == 0 ? "" : "+").append(table.name);
+         read(table, file, chunks);
+      }//end for
+      for (Future<?> chunk : chunks) {
+         try{
+            chunk.get();
+         }catch (ExecutionException e){
+            // counted and reported by the chunk itself
+         }//end try
+      }//end for
+      long rows = this._rows.get();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      if (names.length() > 0)
+         System.out.println(String.format("%-12s %10d rows %8.1fs %10.0f rows/s",
+                                          names, rows, seconds, rows / seconds));
+      return rows;
+   }//end load
+
+   /*
+    * Streams file and hands its lines to the workers chunkRows at a time.
+    */
+   private void read(final Table table, File file, List<Future<?>> chunks) throws IOException {
+      BufferedReader reader = new BufferedReader(
+         new InputStreamReader(new FileInputStream(file), "UTF-8"), BUFFER_SIZE);
+      try{
+         List<String> chunk = new ArrayList<String>(this._chunkRows);
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.isEmpty())
+               continue;
+            chunk.add(line);
+            if (chunk.size() == this._chunkRows) {
+               chunks.add(submit(table, chunk));
+               chunk = new ArrayList<String>(this._chunkRows);
+            }//end if
+         }//end while
+         if (!chunk.isEmpty())
+            chunks.add(submit(table, chunk));
+      }finally{
+         reader.close();
+      }//end try
+   }//end read
+
+   private Future<?> submit(final Table table, final List<String> lines) {
+      return this._workers.submit(new Runnable() {
+         public void run() { insert(table, lines); }
+      });
+   }//end submit
+
+   /*
+    * Inserts one chunk in one transaction.
+    */
+   private void insert(Table table, List<String> lines) {
+      UnitOfWork uow = this._esql.beginUnitOfWork(Cafe.BATCH_SIZE);
+      try{
+         // no user triggers for the rows of this transaction
+         uow.execute("SET LOCAL session_replication_role = replica");
+         for (String line : lines)
+            uow.addUpdate(table.insert, (Object[]) values(line, table.columns));
+         uow.commit();
+         this._rows.addAndGet(lines.size());
+      }catch (Exception e){
+         this._failedChunks.incrementAndGet();
+         System.err.println("Loading " + lines.size() + " " + table.name + " rows starting with '"
+                            + lines.get(0) + "' failed: " + e.getMessage());
+      }finally{
+         uow.close();
+      }//end try
+   }//end insert
+
+   /*
+    * Splits a line of COPY text format: ';' separated, \N is null and a
+    * backslash escapes the next character, including ';'.
+    */
+   static String[] values(String line, int columns) {
+      String[] values = new String[columns];
+      StringBuilder sb = new StringBuilder();
+      int column = 0;
+      for (int i = 0; i <= line.length() && column < columns; ++i) {
+         if (i == line.length() || line.charAt(i) == ';') {
+            String value = sb.toString();
+            values[column++] = value.equals("\\N") ? null : unescape(value);
+            sb.setLength(0);
+         } else {
+            char c = line.charAt(i);
+            sb.append(c);
+            if (c == '\\' && i + 1 < line.length())
+               sb.append(line.charAt(++i));
+         }//end if
+      }//end for
+      for (; column < columns; ++column)
+         values[column] = "";
+      return values;
+   }//end values
+
+   private static String unescape(String f) {
+      if (f.indexOf('\\') < 0)
+         return f;
+      StringBuilder sb = new StringBuilder(f.length());
+      for (int j = 0; j < f.length(); ++j) {
+         char c = f.charAt(j);
+         if (c == '\\' && j + 1 < f.length()) {
+            c = f.charAt(++j);
+            c = c == 'n' ? '\n' : c == 't' ? '\t' : c == 'r' ? '\r' : c;
+         }//end if
+         sb.append(c);
+      }//end for
+      return sb.toString();
+   }//end unescape
+
+   /*
+    * Empties the loaded tables.
+    */
+   void truncate() throws SQLException {
+      this._esql.executeUpdate("TRUNCATE UserRecommendations, ItemCooccurrence, CooccurrenceQueue, UserFavItems, ItemStatus, Orders, Menu, Users");
+   }//end truncate
+
+}//end BulkImporter
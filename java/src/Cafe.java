@@ -11,18 +11,26 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,16 +39,73 @@ import java.util.ArrayList;
  */
 public class Cafe {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by all callers.
+   private ConnectionPool _pool = null;
+
+   // number of queued updates a unit of work sends per batch
+   static final int BATCH_SIZE = Integer.getInteger("cafe.batchSize", 100);
+
+   // number of rows fetched per round trip when streaming query results
+   static final int FETCH_SIZE = Integer.getInteger("cafe.fetchSize", 200);
+
+   // recently verified logins, so repeated log ins skip the database. Only
+   // this process forgets a login whose password it changed: a password
+   // changed elsewhere, e.g. by another server or with psql, is taken
+   // for up to ttlMillis; 0 always asks the database
+   private final CredentialCache _credentials = new CredentialCache(
+         Integer.getInteger("cafe.loginCache.size", 10000),
+         Long.getLong("cafe.loginCache.ttlMillis", 600000L));
+
+   // results of menu queries, evicted by writes to the tables they read.
+   // Only writes of this process are seen, so the tables every terminal
+   // writes are shared: queries reading them always ask the database
+   private final QueryResultCache _results = new QueryResultCache(
+         Integer.getInteger("cafe.resultCache.size", 1000),
+         Long.getLong("cafe.resultCache.ttlMillis", 60000L),
+         "Menu");
+   static final String[] SHARED_TABLES = { "Users", "Orders", "ItemStatus", "SalesHourly", "SalesDaily",
+                                           "ItemSalesDaily", "UserFavItems", "ItemCooccurrence",
+                                           "UserRecommendations", "OrderPartitions" };
+
+   // per statement-shape latency statistics and the slow query log
+   private QueryStats _stats = null;
+
+   // writes item status changes of the staff screens in the background
+   private ItemStatusWriter _statusWriter = null;
+
+   // changes of Orders and ItemStatus pushed by the database, opened on
+   // the first subscription
+   private OrderChangeFeed _changes = null;
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // order ids reserved from orders_orderid_seq in blocks, null if disabled
+   private OrderIdAllocator _orderIds = null;
+
+   // refreshes UserRecommendations of users who ordered in the background
+   private RecommendationJob _recommendations = null;
+
+   // the orderid range partitions of Orders and ItemStatus
+   private PartitionManager _partitions = null;
+
+   // in-memory copy of the Menu table serving the menu screens
+   private final MenuIndex _menu = new MenuIndex();
+
+   // logins and phone numbers present in Users, loaded on first use and
+   // read without a lock; _takenPhones is set before _takenLogins, so
+   // whoever sees the logins also sees the phones
+   private volatile BloomFilter _takenLogins = null;
+   private volatile BloomFilter _takenPhones = null;
 
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // This variable can be global for convenience: it reads the input of
+   // the calling thread's Session, the keyboard unless run by CafeServer.
+   static BufferedReader in = Session.input();
 
    /**
-    * Creates a new instance of Cafe
+    * Creates a new instance of Cafe. The connection pool size can be tuned
+    * with the cafe.pool.min and cafe.pool.max system properties.
     *
     * @param hostname the MySQL or PostgreSQL server hostname
     * @param database the name of the database
@@ -49,15 +114,84 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Cafe(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd,
+           Integer.getInteger("cafe.pool.min", 2),
+           Integer.getInteger("cafe.pool.max", 10));
+   }//end Cafe
+
+   /**
+    * Creates a new instance of Cafe backed by a pool of between minPool and
+    * maxPool physical connections.
+    *
+    * @param dbname the name of the database
+    * @param dbport the port the PostgreSQL server listens on
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minPool number of connections opened at startup and kept open
+    * @param maxPool maximum number of concurrently open connections
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Cafe(String dbname, String dbport, String user, String passwd,
+               int minPool, int maxPool) throws SQLException {
+      this("jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, passwd, minPool, maxPool);
+   }//end Cafe
+
+   /**
+    * Creates a new instance of Cafe for an arbitrary JDBC URL, e.g. a
+    * PostgreSQL server on another host or a stand-in database in tests.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minPool number of connections opened at startup and kept open
+    * @param maxPool maximum number of concurrently open connections
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Cafe(String url, String user, String passwd, int minPool, int maxPool) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
-
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
+         for (String table : SHARED_TABLES)
+            this._results.addSharedTable(table);
+
+         // open the pool and warm up its idle connections
+         this._pool = new ConnectionPool(url, user, passwd, minPool, maxPool,
+                                         Long.getLong("cafe.pool.maxWaitMillis", 30000L),
+                                         Long.getLong("cafe.pool.idleTimeoutMillis", 300000L),
+                                         Long.getLong("cafe.pool.validationMillis", 5000L),
+                                         Integer.getInteger("cafe.stmtCache.size", 64));
+         this._stats = new QueryStats(this._pool,
+                                      Long.getLong("cafe.slowQueryMillis", 500L),
+                                      Boolean.getBoolean("cafe.slowQueryExplain"),
+                                      System.getProperty("cafe.slowQueryLog"));
+         long statsLogSeconds = Long.getLong("cafe.statsLogSeconds", 0L);
+         if (statsLogSeconds > 0)
+            this._stats.startPeriodicReport(statsLogSeconds, 10);
+         this._statusWriter = new ItemStatusWriter(this,
+                                                   BATCH_SIZE,
+                                                   Integer.getInteger("cafe.statusWriter.maxPending", 10000),
+                                                   Long.getLong("cafe.statusWriter.flushMillis", 200L));
+         int orderIdBlock = Integer.getInteger("cafe.orderIds.blockSize", 50);
+         if (orderIdBlock > 0)
+            this._orderIds = new OrderIdAllocator(this, orderIdBlock);
+         this._recommendations = new RecommendationJob(this,
+                                                       Long.getLong("cafe.recommendations.delayMillis", 2000L),
+                                                       Long.getLong("cafe.recommendations.refreshAllMinutes", 0L));
+         this._partitions = PartitionManager.fromProperties(this);
+         try{
+            this._partitions.partitions();
+         }catch (SQLException e){
+            System.err.println("Order partitions unknown, reading all of them: " + e.getMessage());
+         }//end try
+         try{
+            reloadMenu();
+         }catch (SQLException e){
+            System.err.println("Menu not loaded, will retry on first search: " + e.getMessage());
+         }//end try
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -74,57 +208,37 @@ public class Cafe {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      PooledConnection pc = this._pool.borrow();
+      long start = System.nanoTime();
+      int rows = -1;
+      try{
+         // creates a statement object
+         Statement stmt = pc.statement ();
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+         // issues the update instruction
+         rows = stmt.executeUpdate (sql);
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+      }finally{
+         this._pool.release(pc);
+         this._stats.record(sql, null, rows, start, rows < 0);
+         this._results.invalidate(sql);
+      }//end try
    }//end executeUpdate
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out. Rows are streamed through a cursor, so the whole result
+    * is never held in memory.
     *
     * @param query the input query string
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+      return executeQueryAndPrintResult (query, new Object[0]);
    }//end executeQuery
 
    /**
@@ -137,31 +251,38 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+      PooledConnection pc = this._pool.borrow();
+      long start = System.nanoTime();
+      List<List<String>> result = null;
+      try{
+         // creates a statement object
+         Statement stmt = pc.statement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> records  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            records.add(record);
+         }//end while
+         stmt.close ();
+         result = records;
+         return result;
+      }finally{
+         this._pool.release(pc);
+         this._stats.record(query, null, result == null ? -1 : result.size(), start, result == null);
+      }//end try
    }//end executeQueryAndReturnResult
 
    /**
@@ -173,51 +294,1457 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+      PooledConnection pc = this._pool.borrow();
+      long start = System.nanoTime();
+      int rowCount = -1;
+      try{
+         // creates a statement object
+         Statement stmt = pc.statement ();
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
 
-       int rowCount = 0;
+         int count = 0;
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+         // iterates through the result set and count nuber of results.
+         while (rs.next()){
+            count++;
+         }//end while
+         stmt.close ();
+         rowCount = count;
+         return rowCount;
+      }finally{
+         this._pool.release(pc);
+         this._stats.record(query, null, rowCount, start, rowCount < 0);
+      }//end try
    }
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Method to execute a parameterized update SQL statement. The statement
+    * is prepared once per pooled connection and reused on later calls.
+    *
+    * @param sql the input SQL string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      PooledConnection pc = this._pool.borrow();
+      long start = System.nanoTime();
+      int rows = -1;
+      try{
+         PreparedStatement stmt = pc.prepare (sql);
+         try{
+            bind (stmt, params);
+            rows = stmt.executeUpdate ();
+            return rows;
+         }finally{
+            pc.done (sql, stmt);
+         }//end try
+      }finally{
+         this._pool.release(pc);
+         this._stats.record(sql, params, rows, start, rows < 0);
+         this._results.invalidate(sql);
+      }//end try
+   }//end executeUpdate
+
+   /**
+    * Method to execute a parameterized query and print its result to
+    * standard out.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return executeQueryAndStream (query, FETCH_SIZE, true, ResultWriter.console(), params);
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute a parameterized query and write its result to a
+    * file as it is read, in a table, CSV or JSON; see ResultWriter. Only
+    * one fetch of rows is held in memory at a time.
+    *
+    * @param query the input query string with ? placeholders
+    * @param format the output format
+    * @param path the file to create
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query or
+    *         to write the file
+    */
+   public int exportQuery (String query, ResultWriter.Format format, String path, Object... params) throws SQLException {
+      ResultWriter writer;
+      try{
+         writer = ResultWriter.file(format, path);
+      }catch (java.io.IOException e){
+         throw new SQLException("Cannot create " + path + ": " + e.getMessage());
+      }//end try
+      try{
+         return executeQueryAndStream (query, FETCH_SIZE, true, writer, params);
+      }finally{
+         writer.close();
+      }//end try
+   }//end exportQuery
+
+   // name of the cursor of executeQueryAndStream, one per connection at a time
+   private static final String STREAM_CURSOR = "cafe_stream";
+
+   /**
+    * Method to execute a parameterized query and hand its rows to handler
+    * one at a time. The rows are read through a server-side cursor,
+    * declared in a transaction and read with FETCH fetchSize rows per
+    * round trip, so memory use does not depend on the size of the result.
+    * The transaction is rolled back if the query or the handler fails.
+    *
+    * @param query the input query string with ? placeholders
+    * @param fetchSize number of rows fetched from the server at a time
+    * @param reuseRow whether one String[] is reused for every row
+    * @param handler receives the column names and the rows
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows handed to the handler
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStream (String query, int fetchSize, boolean reuseRow,
+                                     RowHandler handler, Object... params) throws SQLException {
+      PooledConnection pc = this._pool.borrow();
+      Connection conn = pc.connection();
+      long start = System.nanoTime();
+      int rowCount = 0;
+      boolean failed = true;
+      boolean autoCommit = false;
+      try{
+         // a cursor only lives inside a transaction
+         autoCommit = conn.getAutoCommit();
+         if (autoCommit)
+            conn.setAutoCommit(false);
+         String declare = "DECLARE " + STREAM_CURSOR + " NO SCROLL CURSOR FOR " + query;
+         PreparedStatement stmt = pc.prepare (declare);
+         try{
+            bind (stmt, params);
+            stmt.execute ();
+         }finally{
+            pc.done (declare, stmt);
+         }//end try
+
+         String fetch = "FETCH FORWARD " + Math.max(1, fetchSize) + " FROM " + STREAM_CURSOR;
+         Statement fetcher = pc.statement ();
+         try{
+            String[] row = null;
+            boolean more = true;
+            boolean first = true;
+            while (more){
+               ResultSet rs = fetcher.executeQuery (fetch);
+               int numCol = rs.getMetaData ().getColumnCount ();
+               if (first){
+                  ResultSetMetaData rsmd = rs.getMetaData ();
+                  String[] columns = new String[numCol];
+                  for (int i = 1; i <= numCol; ++i)
+                     columns[i - 1] = rsmd.getColumnName (i);
+                  handler.begin (columns);
+                  row = reuseRow ? new String[numCol] : null;
+                  first = false;
+               }//end if
+               int fetched = 0;
+               while (more && rs.next()){
+                  ++fetched;
+                  if (!reuseRow)
+                     row = new String[numCol];
+                  for (int i = 1; i <= numCol; ++i)
+                     row[i - 1] = rs.getString (i);
+                  ++rowCount;
+                  more = handler.row (row);
+               }//end while
+               rs.close ();
+               // a short fetch is the end of the result
+               if (fetched < Math.max(1, fetchSize))
+                  more = false;
+            }//end while
+         }finally{
+            fetcher.close ();
+         }//end try
+         handler.end (rowCount);
+         if (autoCommit)
+            conn.commit ();   // also closes the cursor
+         failed = false;
+         return rowCount;
+      }finally{
+         try{
+            // whatever failed, the query or the handler, must not leave
+            // the transaction and its cursor open on a pooled connection
+            if (failed && autoCommit)
+               conn.rollback ();
+            if (autoCommit)
+               conn.setAutoCommit (true);
+         }catch (SQLException e){
+            // a connection that cannot leave the transaction is not reusable
+            pc.close ();
+         }finally{
+            this._pool.release(pc);
+            this._stats.record(query, params, rowCount, start, failed);
+         }//end try
+      }//end try
+   }//end executeQueryAndStream
+
+   /**
+    * Method to execute a parameterized query and return its result as a
+    * list of records. Results of read-only queries of the menu are served
+    * from the result cache until a write of this process touches one of
+    * the tables they read, or they expire; they are returned as
+    * unmodifiable lists.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
-   }
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      if (QueryResultCache.isWrite(query)) {
+         // e.g. INSERT ... RETURNING
+         try{
+            return fetchResult (query, params);
+         }finally{
+            this._results.invalidate(query);
+         }//end try
+      }//end if
+      if (!this._results.isCacheable(query))
+         return fetchResult (query, params);
+      List<List<String>> cached = this._results.get(query, params);
+      if (cached != null)
+         return cached;
+      long stamp = this._results.stamp();
+      return this._results.put(query, params, fetchResult (query, params), stamp);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Runs a parameterized query and returns its result column by column
+    * in arrays of the column types, see TypedResult. Numbers, booleans and
+    * timestamps are read without going through strings. Results are not
+    * cached; statements that write invalidate the result cache.
+    *
+    * @param query the SQL query with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the typed result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public TypedResult executeTypedQuery (String query, Object... params) throws SQLException {
+      PooledConnection pc = this._pool.borrow();
+      long start = System.nanoTime();
+      TypedResult result = null;
+      try{
+         PreparedStatement stmt = pc.prepare (query);
+         try{
+            bind (stmt, params);
+            ResultSet rs = stmt.executeQuery ();
+            result = new TypedResult(rs);
+            rs.close ();
+            return result;
+         }finally{
+            pc.done (query, stmt);
+         }//end try
+      }finally{
+         this._pool.release(pc);
+         this._stats.record(query, params, result == null ? -1 : result.rowCount(), start, result == null);
+         if (QueryResultCache.isWrite(query))
+            this._results.invalidate(query);
+      }//end try
+   }//end executeTypedQuery
+
+   /**
+    * @return the hit ratio and eviction counters of the query result cache
+    */
+   public String getResultCacheStats() {
+      return this._results.stats();
+   }//end getResultCacheStats
+
+   /*
+    * Runs a parameterized query and reads its whole result.
+    */
+   private List<List<String>> fetchResult (String query, Object[] params) throws SQLException {
+      PooledConnection pc = this._pool.borrow();
+      long start = System.nanoTime();
+      List<List<String>> result = null;
+      try{
+         PreparedStatement stmt = pc.prepare (query);
+         try{
+            bind (stmt, params);
+            ResultSet rs = stmt.executeQuery ();
+            int numCol = rs.getMetaData ().getColumnCount ();
+
+            List<List<String>> records  = new ArrayList<List<String>>();
+            while (rs.next()){
+               List<String> record = new ArrayList<String>(numCol);
+               for (int i=1; i<=numCol; ++i)
+                  record.add(rs.getString (i));
+               records.add(record);
+            }//end while
+            rs.close ();
+            result = records;
+            return result;
+         }finally{
+            pc.done (query, stmt);
+         }//end try
+      }finally{
+         this._pool.release(pc);
+         this._stats.record(query, params, result == null ? -1 : result.size(), start, result == null);
+      }//end try
+   }//end fetchResult
+
+   /**
+    * Method to execute a parameterized query and return the number of
+    * rows it produced.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+      PooledConnection pc = this._pool.borrow();
+      long start = System.nanoTime();
+      int rowCount = -1;
+      try{
+         PreparedStatement stmt = pc.prepare (query);
+         try{
+            bind (stmt, params);
+            ResultSet rs = stmt.executeQuery ();
+            int count = 0;
+            while (rs.next()){
+               count++;
+            }//end while
+            rs.close ();
+            rowCount = count;
+            return rowCount;
+         }finally{
+            pc.done (query, stmt);
+         }//end try
+      }finally{
+         this._pool.release(pc);
+         this._stats.record(query, params, rowCount, start, rowCount < 0);
+      }//end try
+   }//end executeQuery
+
+   /*
+    * Binds params to the placeholders of stmt, in order.
+    */
+   static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         if (params[i] == null)
+            stmt.setNull (i + 1, Types.OTHER);
+         else
+            stmt.setObject (i + 1, params[i]);
+      }//end for
+   }//end bind
+
+   /**
+    * Checks a login and password. Logins verified within the last few
+    * minutes are answered from memory, others with a query that returns a
+    * single boolean instead of the whole Users row. The memory is this
+    * process's, so the old password of a login whose password was changed
+    * by another process keeps working until it expires there, see
+    * cafe.loginCache.ttlMillis.
+    *
+    * @param login the user login
+    * @param password the user password
+    * @return true if a user with this login and password exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean authenticate (String login, String password) throws SQLException {
+      if (this._credentials.verify(login, password))
+         return true;
+      // a password changed while it is checked is not remembered
+      long generation = this._credentials.generation(login);
+      boolean valid = checkPassword (login, password);
+      if (valid)
+         this._credentials.remember(login, password, generation);
+      return valid;
+   }//end authenticate
+
+   /**
+    * Checks a login and password against the database, bypassing and
+    * leaving alone the cache of authenticate().
+    *
+    * @param login the user login
+    * @param password the user password
+    * @return true if a user with this login and password exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean checkPassword (String login, String password) throws SQLException {
+      return queryBoolean (
+         "SELECT EXISTS (SELECT 1 FROM Users WHERE login = ? AND password = ?)",
+         login, password);
+   }//end checkPassword
+
+   /**
+    * Drops the cached credentials of login. Must be called whenever the
+    * password of login changes. Only affects this process: other
+    * processes trust their cached logins until they expire.
+    *
+    * @param login the user login
+    */
+   public void invalidateCredentials (String login) {
+      this._credentials.invalidate(login);
+   }//end invalidateCredentials
+
+   /**
+    * Checks whether a new user would clash with an existing login or phone
+    * number. Values that were never seen are accepted without a database
+    * round trip; possible clashes reported by the Bloom filters are
+    * confirmed with a single query.
+    *
+    * @param login the requested login, as it will be stored
+    * @param phone the requested phone number, as it will be stored
+    * @return "login" or "phone number" for the taken field, null if both are free
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String findTakenUserField (String login, String phone) throws SQLException {
+      loadTakenUserFilters ();
+      boolean maybeLogin = this._takenLogins.mightContain(login);
+      boolean maybePhone = phone != null && this._takenPhones.mightContain(phone);
+      if (maybeLogin && queryBoolean ("SELECT EXISTS (SELECT 1 FROM Users WHERE login = ?)", login))
+         return "login";
+      if (maybePhone && queryBoolean ("SELECT EXISTS (SELECT 1 FROM Users WHERE phoneNum = ?)", phone))
+         return "phone number";
+      return null;
+   }//end findTakenUserField
+
+   /**
+    * Checks whether a phone number belongs to another user than login, e.g.
+    * before login changes to it. Like findTakenUserField, numbers never seen
+    * are accepted without a database round trip.
+    *
+    * @param phone the phone number, as it will be stored
+    * @param login the user who wants it
+    * @return true if another user has this phone number
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean isPhoneTaken (String phone, String login) throws SQLException {
+      loadTakenUserFilters ();
+      return this._takenPhones.mightContain(phone)
+             && queryBoolean ("SELECT EXISTS (SELECT 1 FROM Users WHERE phoneNum = ? AND login <> ?)", phone, login);
+   }//end isPhoneTaken
+
+   /**
+    * Records the login and phone number of a newly created user so later
+    * clashes are detected by findTakenUserField.
+    *
+    * @param login the new login
+    * @param phone the new phone number
+    */
+   public void userCreated (String login, String phone) {
+      if (this._takenLogins == null)
+         return;
+      this._takenLogins.add(login.trim());
+      if (phone != null)
+         this._takenPhones.add(phone.trim());
+   }//end userCreated
+
+   /*
+    * Builds the Bloom filters of existing logins and phone numbers.
+    */
+   private synchronized void loadTakenUserFilters () throws SQLException {
+      if (this._takenLogins != null)
+         return;
+      int expected = Integer.getInteger("cafe.userFilter.expected", 100000);
+      final BloomFilter logins = new BloomFilter(expected, 0.01);
+      final BloomFilter phones = new BloomFilter(expected, 0.01);
+      executeQueryAndStream ("SELECT login, phoneNum FROM Users", FETCH_SIZE, true, new RowHandler() {
+         public boolean row(String[] values) {
+            logins.add(values[0].trim());
+            if (values[1] != null)
+               phones.add(values[1].trim());
+            return true;
+         }
+      });
+      this._takenPhones = phones;
+      this._takenLogins = logins;
+   }//end loadTakenUserFilters
+
+   /*
+    * Runs a query returning a single boolean column and returns its first value.
+    */
+   private boolean queryBoolean (String query, Object... params) throws SQLException {
+      PooledConnection pc = this._pool.borrow();
+      long start = System.nanoTime();
+      boolean failed = true;
+      try{
+         PreparedStatement stmt = pc.prepare (query);
+         try{
+            bind (stmt, params);
+            ResultSet rs = stmt.executeQuery ();
+            boolean value = rs.next() && rs.getBoolean (1);
+            rs.close ();
+            failed = false;
+            return value;
+         }finally{
+            pc.done (query, stmt);
+         }//end try
+      }finally{
+         this._pool.release(pc);
+         this._stats.record(query, params, 1, start, failed);
+      }//end try
+   }//end queryBoolean
+
+   // seconds after which the menu index is reloaded to pick up changes
+   // made by other processes
+   private static final long MENU_RELOAD_MILLIS = Long.getLong("cafe.menuIndex.reloadSeconds", 300L) * 1000;
+
+   private static final String MENU_COLUMNS = "itemName, type, price, description, imageURL";
+
+   /**
+    * Looks up a menu item by name, ignoring case. Served from memory.
+    *
+    * @param itemName the item name
+    * @return the matching items
+    * @throws java.sql.SQLException when the menu had to be reloaded and that failed
+    */
+   public List<MenuItem> searchMenuByName (String itemName) throws SQLException {
+      return freshMenu ().findByName(itemName);
+   }//end searchMenuByName
+
+   /**
+    * Looks up a menu item by its exact name. Served from memory.
+    *
+    * @param itemName the item name, surrounding blanks are ignored
+    * @return the item, null if no item has exactly this name
+    * @throws java.sql.SQLException when the menu had to be reloaded and that failed
+    */
+   public MenuItem findMenuItem (String itemName) throws SQLException {
+      String name = itemName.trim();
+      for (MenuItem item : freshMenu ().findByName(name))
+         if (item.itemName.equals(name))
+            return item;
+      return null;
+   }//end findMenuItem
+
+   /**
+    * Tells whether an item appears in any order. Such items cannot be
+    * removed or renamed, as ItemStatus references them.
+    *
+    * @param itemName the item name
+    * @return true if some order has the item
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean isItemOrdered (String itemName) throws SQLException {
+      return queryBoolean ("SELECT EXISTS (SELECT 1 FROM ItemStatus WHERE itemName = ?)", itemName.trim());
+   }//end isItemOrdered
+
+   /**
+    * Lists the menu items whose name starts with prefix, ignoring case.
+    * Served from memory.
+    *
+    * @param prefix the beginning of the item name
+    * @return the matching items sorted by name
+    * @throws java.sql.SQLException when the menu had to be reloaded and that failed
+    */
+   public List<MenuItem> searchMenuByNamePrefix (String prefix) throws SQLException {
+      return freshMenu ().findByNamePrefix(prefix);
+   }//end searchMenuByNamePrefix
+
+   /**
+    * Lists the menu items of a type, ignoring case. Served from memory.
+    *
+    * @param type the item type, e.g. Drinks
+    * @return the matching items sorted by name
+    * @throws java.sql.SQLException when the menu had to be reloaded and that failed
+    */
+   public List<MenuItem> searchMenuByType (String type) throws SQLException {
+      return freshMenu ().findByType(type);
+   }//end searchMenuByType
+
+   /**
+    * Finds the menu items mentioning every word of text in their name,
+    * type or description, tolerating small typos. Served from memory.
+    *
+    * @param text the words to look for, e.g. "latte"
+    * @return the matching items sorted by name
+    * @throws java.sql.SQLException when the menu had to be reloaded and that failed
+    */
+   public List<MenuItem> searchMenu (String text) throws SQLException {
+      return freshMenu ().search(text);
+   }//end searchMenu
+
+   /**
+    * Reads the whole Menu table into the menu index.
+    *
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public void reloadMenu () throws SQLException {
+      final List<MenuItem> items = new ArrayList<MenuItem>();
+      executeQueryAndStream ("SELECT " + MENU_COLUMNS + " FROM Menu", FETCH_SIZE, true, new RowHandler() {
+         public boolean row(String[] values) {
+            items.add(toMenuItem(values));
+            return true;
+         }
+      });
+      this._menu.load(items);
+   }//end reloadMenu
+
+   /**
+    * Brings the menu index up to date after a committed change to the
+    * named items, which may have been added, updated or deleted.
+    *
+    * @param itemNames the names of the changed items
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public void refreshMenuItems (Collection<String> itemNames) throws SQLException {
+      if (itemNames.isEmpty())
+         return;
+      StringBuilder joined = new StringBuilder();
+      for (String name : itemNames) {
+         if (joined.length() > 0)
+            joined.append(ITEM_SEPARATOR);
+         joined.append(name.trim());
+      }//end for
+      final List<MenuItem> current = new ArrayList<MenuItem>();
+      executeQueryAndStream ("SELECT " + MENU_COLUMNS + " FROM Menu WHERE itemName = ANY (string_to_array(?, E'\\037'))",
+                             FETCH_SIZE, true, new RowHandler() {
+         public boolean row(String[] values) {
+            current.add(toMenuItem(values));
+            return true;
+         }
+      }, joined.toString());
+      this._menu.update(itemNames, current);
+   }//end refreshMenuItems
+
+   /*
+    * The menu index, reloaded first if it is missing or old.
+    */
+   private MenuIndex freshMenu () throws SQLException {
+      if (System.currentTimeMillis() - this._menu.loadedAt() > MENU_RELOAD_MILLIS) {
+         synchronized (this._menu) {
+            if (System.currentTimeMillis() - this._menu.loadedAt() > MENU_RELOAD_MILLIS)
+               reloadMenu ();
+         }//end synchronized
+      }//end if
+      return this._menu;
+   }//end freshMenu
+
+   private static MenuItem toMenuItem(String[] values) {
+      return new MenuItem(values[0], values[1], Float.parseFloat(values[2]), values[3], values[4]);
+   }//end toMenuItem
+
+   /**
+    * Sets the status and comments of one item of an order.
+    *
+    * @param orderid the order
+    * @param itemName the ordered item
+    * @param status the new status
+    * @param comments the new comments
+    * @return true if the item exists in the order
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateItemStatus (int orderid, String itemName, String status, String comments) throws SQLException {
+      AdmissionController.WorkClass previous = AdmissionController.enter(AdmissionController.WorkClass.STAFF);
+      try{
+         return executeUpdate (
+            "UPDATE ItemStatus SET status = ?, comments = ?, lastUpdated = now() WHERE orderid = ? AND itemName = ?",
+            status, comments, orderid, itemName) > 0;
+      }finally{
+         AdmissionController.exit(previous);
+      }//end try
+   }//end updateItemStatus
+
+   /**
+    * Queues a status change of one item of an order and returns without
+    * waiting for the database; see ItemStatusWriter. Blocks only while the
+    * queue is full. The change becomes visible to queries once written,
+    * normally within cafe.statusWriter.flushMillis. Like updateOrderItem,
+    * it is not written over a change of the item made after it was
+    * queued; the session is told instead.
+    *
+    * @param orderid the order
+    * @param itemName the ordered item
+    * @param status the new status
+    * @param comments the new comments, blank to keep the stored ones
+    * @throws InterruptedException when interrupted while the queue is full
+    */
+   public void queueItemStatus (int orderid, String itemName, String status, String comments) throws InterruptedException {
+      this._statusWriter.submit(orderid, itemName, status, comments);
+   }//end queueItemStatus
+
+   /**
+    * Waits until every queued item status change is written.
+    *
+    * @throws InterruptedException when interrupted while waiting
+    */
+   public void flushItemStatus () throws InterruptedException {
+      this._statusWriter.flush();
+   }//end flushItemStatus
+
+   /**
+    * @return the counters of the item status write-behind queue
+    */
+   public String getItemStatusWriterStats() {
+      return this._statusWriter.stats();
+   }//end getItemStatusWriterStats
+
+   /**
+    * Starts delivering changes of orders and their items to listener, as
+    * they are committed by anyone. The first subscription opens a
+    * dedicated listening connection; see OrderChangeFeed.
+    *
+    * @param listener receives the changes on the thread of the feed
+    * @throws java.sql.SQLException when failed to open the feed
+    */
+   public synchronized void subscribeOrderChanges (OrderChangeFeed.Listener listener) throws SQLException {
+      if (this._changes == null)
+         this._changes = new OrderChangeFeed(this._url, this._user, this._passwd,
+                                             Long.getLong("cafe.changeFeed.pollMillis", 250L),
+                                             Long.getLong("cafe.changeFeed.catchUpMillis", 5000L));
+      this._changes.subscribe(listener);
+   }//end subscribeOrderChanges
+
+   /**
+    * @param listener stops receiving changes
+    */
+   public synchronized void unsubscribeOrderChanges (OrderChangeFeed.Listener listener) {
+      if (this._changes != null)
+         this._changes.unsubscribe(listener);
+   }//end unsubscribeOrderChanges
+
+   /**
+    * Starts a transaction whose updates are sent in JDBC batches of
+    * cafe.batchSize statements. The returned unit of work borrows a pooled
+    * connection on its first flush and must be closed.
+    *
+    * @return a new unit of work
+    */
+   public UnitOfWork beginUnitOfWork () {
+      return beginUnitOfWork (BATCH_SIZE);
+   }//end beginUnitOfWork
+
+   /**
+    * Starts a transaction whose updates are sent in JDBC batches.
+    *
+    * @param batchSize number of queued updates that triggers a flush
+    * @return a new unit of work
+    */
+   public UnitOfWork beginUnitOfWork (int batchSize) {
+      return new UnitOfWork (this._pool, this._results, this._stats, batchSize);
+   }//end beginUnitOfWork
+
+   /**
+    * The order id and total of an order created by placeOrder, and the
+    * items that were asked for more than once but ordered once.
+    */
+   public static class PlacedOrder {
+      public final int orderid;
+      public final double total;
+      public final List<String> merged;
+      PlacedOrder(int orderid, double total, List<String> merged) {
+         this.orderid = orderid;
+         this.total = total;
+         this.merged = merged;
+      }
+   }//end PlacedOrder
+
+   // status of an item that was just ordered
+   static final String NEW_ITEM_STATUS = "Hasn't started";
+
+   // SQLSTATE and message of a change of an archived order, see
+   // create_partitions.sql; the bundled driver only passes on the message
+   static final String ARCHIVED = "CA001";
+   static final String ARCHIVED_MESSAGE = " is archived";
+   // SQLSTATE and message of a row beyond the last partition
+   static final String NO_PARTITION = "23514";
+   static final String NO_PARTITION_MESSAGE = "no partition of relation";
+   // SQLSTATE and message of a statement cancelled by its statement
+   // timeout; the bundled driver only passes on the message
+   static final String QUERY_CANCELED = "57014";
+   static final String QUERY_CANCELED_MESSAGE = "canceling statement due to statement timeout";
+
+   // separates item names passed to PLACE_ORDER as a single parameter
+   private static final char ITEM_SEPARATOR = '\u001f';
+
+   /*
+    * Creates an order and its ItemStatus rows in a single statement, hence
+    * a single transaction and round trip regardless of the number of items.
+    * The item names arrive as one separator-joined parameter so the
+    * statement text, and its cached statement, is the same for every order.
+    * The order id comes from the client side allocator, or from the
+    * sequence when that is disabled (null).
+    * Nothing is inserted unless every requested item is on the menu.
+    */
+   private static final String PLACE_ORDER =
+      "WITH wanted AS (" +
+      "   SELECT itemName, price FROM Menu" +
+      "   WHERE itemName = ANY (string_to_array(?, E'\\037'))" +
+      "), neworder AS (" +
+      "   INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total)" +
+      "   SELECT COALESCE(CAST(? AS integer), nextval('orders_orderid_seq')), ?, false, now()," +
+      "          COALESCE(SUM(price), 0) FROM wanted" +
+      "   HAVING COUNT(*) = ?" +
+      "   RETURNING orderid, total, timeStampRecieved" +
+      "), items AS (" +
+      "   INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, price)" +
+      "   SELECT o.orderid, w.itemName, o.timeStampRecieved, ?, '', w.price" +
+      "   FROM neworder o CROSS JOIN wanted w" +
+      "   RETURNING orderid" +
+      ") " +
+      "SELECT o.orderid, o.total, (SELECT COUNT(*) FROM items) FROM neworder o";
+
+   /**
+    * Places an order for login. The Orders row, its total computed from
+    * Menu.price and one ItemStatus row per item are written by a single
+    * statement, so the order costs one round trip however many items it
+    * has and is either stored completely or not at all.
+    *
+    * It runs as interactive work even for staff, so under load it goes
+    * ahead of reports; see AdmissionController. isBusy() tells when it
+    * failed only because the database was too busy.
+    *
+    * @param login the customer placing the order
+    * @param items the names of the ordered menu items; an order has one
+    *        of each item, so an item listed again is merged with the
+    *        first and reported in PlacedOrder.merged
+    * @return the new order id, its total and the merged items
+    * @throws java.sql.SQLException when an item is not on the menu or the
+    *         insert failed
+    */
+   public PlacedOrder placeOrder (String login, List<String> items) throws SQLException {
+      // checkout is customer work whoever places the order
+      AdmissionController.WorkClass previous = AdmissionController.enter(AdmissionController.WorkClass.INTERACTIVE);
+      try{
+         return insertOrder (login, items);
+      }finally{
+         AdmissionController.exit(previous);
+      }//end try
+   }//end placeOrder
+
+   private PlacedOrder insertOrder (String login, List<String> items) throws SQLException {
+      Set<String> wanted = new LinkedHashSet<String>();
+      Set<String> merged = new LinkedHashSet<String>();
+      for (String item : items)
+         if (item != null && !item.trim().isEmpty() && !wanted.add(item.trim()))
+            merged.add(item.trim());
+      if (wanted.isEmpty())
+         throw new SQLException("An order needs at least one item");
+
+      StringBuilder joined = new StringBuilder();
+      for (String item : wanted) {
+         if (joined.length() > 0)
+            joined.append(ITEM_SEPARATOR);
+         joined.append(item);
+      }//end for
+
+      Integer orderid = this._orderIds == null ? null : this._orderIds.next();
+      TypedResult result;
+      try{
+         result = executeTypedQuery (
+            PLACE_ORDER, joined.toString(), orderid, login, wanted.size(), NEW_ITEM_STATUS);
+      }catch (SQLException e){
+         if (isArchived(e)) {
+            // an id reserved before its partition was archived: take a
+            // fresh one from the sequence
+            orderid = null;
+         } else if (isMissingPartition(e)) {
+            // the ids ran past the partitions in reserve
+            this._partitions.addPartitions();
+         } else {
+            throw e;
+         }//end if
+         result = executeTypedQuery (
+            PLACE_ORDER, joined.toString(), orderid, login, wanted.size(), NEW_ITEM_STATUS);
+      }//end try
+      if (result.rowCount() == 0) {
+         // nothing was inserted: find out which items are missing
+         List<String> missing = new ArrayList<String>(wanted);
+         for (List<String> row : executeQueryAndReturnResult (
+                 "SELECT itemName FROM Menu WHERE itemName = ANY (string_to_array(?, E'\\037'))",
+                 joined.toString()))
+            missing.remove(row.get(0).trim());
+         throw new SQLException("Not on the menu: " + missing);
+      }//end if
+      // the order's item pairs are counted by the ItemStatus triggers
+      this._recommendations.userChanged(login);
+      return new PlacedOrder(result.getInt(0, 0), result.getFloat(0, 1), new ArrayList<String>(merged));
+   }//end insertOrder
+
+   /**
+    * One page of orders and the position to continue from.
+    */
+   public static class OrderPage {
+      // rows of (orderid, login, paid, timeStampRecieved, total)
+      public final List<List<String>> orders;
+      // whether another page follows
+      public final boolean hasMore;
+      // sort key of the last order on the page
+      final String lastTimestamp;
+      final int lastOrderid;
+      OrderPage(List<List<String>> orders, boolean hasMore) {
+         this.orders = orders;
+         this.hasMore = hasMore;
+         List<String> last = orders.isEmpty() ? null : orders.get(orders.size() - 1);
+         this.lastTimestamp = last == null ? null : last.get(3);
+         this.lastOrderid = last == null ? 0 : Integer.parseInt(last.get(0));
+      }
+   }//end OrderPage
+
+   private static final String ORDER_COLUMNS = "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders ";
+
+   /**
+    * Lists the orders of a customer, newest first, a page at a time.
+    *
+    * Pages are read by keyset rather than OFFSET: each page continues after
+    * the (timeStampRecieved, orderid) of the previous one, so with the
+    * index on Orders(login, timeStampRecieved, orderid) any page costs the
+    * same as the first however far back the customer browses.
+    *
+    * The recent partitions are read first and the archived ones only once
+    * the customer browses past them; archived orders are older than the
+    * recent ones.
+    *
+    * @param login the customer
+    * @param after the previous page, null for the first one
+    * @param pageSize the maximum number of orders per page
+    * @return the next page
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public OrderPage getOrderHistory (String login, OrderPage after, int pageSize) throws SQLException {
+      int recentFrom = this._partitions.recentFrom();
+      List<List<String>> rows = new ArrayList<List<String>>();
+      if (after == null || after.lastOrderid >= recentFrom)
+         rows.addAll(orderHistory (login, after, "orderid >= ?", recentFrom, pageSize + 1));
+      if (rows.size() <= pageSize && recentFrom > 0)
+         rows.addAll(orderHistory (login, after, "orderid < ?", recentFrom, pageSize + 1 - rows.size()));
+      return orderPage (pageSize, rows);
+   }//end getOrderHistory
+
+   /*
+    * The orders of login in the partitions matching range, newest first.
+    */
+   private List<List<String>> orderHistory (String login, OrderPage after, String range, int bound, int limit) throws SQLException {
+      if (after == null)
+         return executeQueryAndReturnResult (ORDER_COLUMNS +
+            "WHERE login = ? AND " + range + " ORDER BY timeStampRecieved DESC, orderid DESC LIMIT ?",
+            login, bound, limit);
+      return executeQueryAndReturnResult (ORDER_COLUMNS +
+         "WHERE login = ? AND " + range + " AND (timeStampRecieved, orderid) < (CAST(? AS timestamp), ?) " +
+         "ORDER BY timeStampRecieved DESC, orderid DESC LIMIT ?",
+         login, bound, after.lastTimestamp, after.lastOrderid, limit);
+   }//end orderHistory
+
+   /**
+    * Lists the orders that are not paid yet, oldest first, a page at a
+    * time. Paged by keyset like getOrderHistory, on the partial index of
+    * unpaid orders. Archived orders are all paid, so only the recent
+    * partitions are read.
+    *
+    * @param after the previous page, null for the first one
+    * @param pageSize the maximum number of orders per page
+    * @return the next page
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public OrderPage getOpenOrders (OrderPage after, int pageSize) throws SQLException {
+      if (after == null)
+         return orderPage (pageSize, ORDER_COLUMNS +
+            "WHERE paid IS NOT TRUE AND orderid >= ? ORDER BY timeStampRecieved, orderid LIMIT ?",
+            this._partitions.recentFrom(), pageSize + 1);
+      return orderPage (pageSize, ORDER_COLUMNS +
+         "WHERE paid IS NOT TRUE AND orderid >= ? AND (timeStampRecieved, orderid) > (CAST(? AS timestamp), ?) " +
+         "ORDER BY timeStampRecieved, orderid LIMIT ?",
+         this._partitions.recentFrom(), after.lastTimestamp, after.lastOrderid, pageSize + 1);
+   }//end getOpenOrders
+
+   /*
+    * Runs a page query asking for one row more than pageSize, which tells
+    * whether another page follows.
+    */
+   private OrderPage orderPage (int pageSize, String query, Object... params) throws SQLException {
+      return orderPage (pageSize, executeQueryAndReturnResult (query, params));
+   }//end orderPage
+
+   private static OrderPage orderPage (int pageSize, List<List<String>> rows) {
+      boolean hasMore = rows.size() > pageSize;
+      if (hasMore)
+         rows = rows.subList(0, pageSize);
+      return new OrderPage(rows, hasMore);
+   }//end orderPage
+
+   /**
+    * @param login the user
+    * @return the type of the user, e.g. Customer, Employee or Manager, null
+    *         if there is no such user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String getUserType (String login) throws SQLException {
+      List<List<String>> result = executeQueryAndReturnResult (
+         "SELECT type FROM Users WHERE login = ?", login);
+      return result.isEmpty() ? null : result.get(0).get(0).trim();
+   }//end getUserType
+
+   /**
+    * The profile of a logged in user and their unpaid orders, read once
+    * at login and kept by their Session, so the profile and order screens
+    * show them without a query. Updates compare the values read here with
+    * the ones in the database instead of locking the rows while the user
+    * types: a change made by someone else meanwhile makes the update fail
+    * and is reported. Used by the thread of the session only.
+    */
+   public static class Profile {
+      public final String login;
+      String phoneNum;
+      String favItems;
+      String type;
+      final List<OpenOrder> openOrders = new ArrayList<OpenOrder>();
+      Profile(String login) {
+         this.login = login;
+      }
+      public String phoneNum() { return this.phoneNum; }
+      public String favItems() { return this.favItems; }
+      public String type() { return this.type; }
+      public List<OpenOrder> openOrders() { return this.openOrders; }
+      /**
+       * @return the open order with this id, null if there is none
+       */
+      public OpenOrder openOrder(int orderid) {
+         for (OpenOrder order : this.openOrders)
+            if (order.orderid == orderid)
+               return order;
+         return null;
+      }
+   }//end Profile
+
+   /**
+    * An unpaid order of a Profile and its items as they were read.
+    */
+   public static class OpenOrder {
+      public final int orderid;
+      public final Timestamp received;
+      float total;
+      final List<OrderItem> items = new ArrayList<OrderItem>();
+      OpenOrder(int orderid, Timestamp received, float total) {
+         this.orderid = orderid;
+         this.received = received;
+         this.total = total;
+      }
+      public float total() { return this.total; }
+      public List<OrderItem> items() { return this.items; }
+      /**
+       * @return the item with this name, null if the order has none
+       */
+      public OrderItem item(String itemName) {
+         for (OrderItem item : this.items)
+            if (item.itemName.equalsIgnoreCase(itemName.trim()))
+               return item;
+         return null;
+      }
+   }//end OpenOrder
+
+   /**
+    * An item of an OpenOrder; lastUpdated tells whether it changed since.
+    */
+   public static class OrderItem {
+      public final String itemName;
+      String status;
+      String comments;
+      Timestamp lastUpdated;
+      OrderItem(String itemName, String status, String comments, Timestamp lastUpdated) {
+         this.itemName = itemName;
+         this.status = status;
+         this.comments = comments;
+         this.lastUpdated = lastUpdated;
+      }
+      public String status() { return this.status; }
+      public String comments() { return this.comments; }
+   }//end OrderItem
+
+   /**
+    * Reads the profile and the unpaid orders of login, bypassing the
+    * result cache. Archived orders are all paid, so only the recent
+    * partitions are read.
+    *
+    * @param login the user
+    * @return the profile, null if there is no such user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Profile loadProfile (String login) throws SQLException {
+      TypedResult user = executeTypedQuery (
+         "SELECT phoneNum, favItems, type FROM Users WHERE login = ?", login);
+      if (user.rowCount() == 0)
+         return null;
+      Profile profile = new Profile(login);
+      profile.phoneNum = trim(user.getString(0, 0));
+      profile.favItems = trim(user.getString(0, 1));
+      profile.type = trim(user.getString(0, 2));
+      TypedResult items = executeTypedQuery (
+         "SELECT o.orderid, o.timeStampRecieved, o.total, s.itemName, s.status, s.comments, s.lastUpdated " +
+         "FROM Orders o JOIN ItemStatus s ON s.orderid = o.orderid " +
+         "WHERE o.login = ? AND o.paid IS NOT TRUE AND o.orderid >= ? AND s.orderid >= ? " +
+         "ORDER BY o.timeStampRecieved, o.orderid, s.itemName",
+         login, this._partitions.recentFrom(), this._partitions.recentFrom());
+      OpenOrder order = null;
+      for (int r = 0; r < items.rowCount(); ++r) {
+         if (order == null || order.orderid != items.getInt(r, 0)) {
+            order = new OpenOrder(items.getInt(r, 0), items.getTimestamp(r, 1), items.getFloat(r, 2));
+            profile.openOrders.add(order);
+         }//end if
+         order.items.add(new OrderItem(trim(items.getString(r, 3)), trim(items.getString(r, 4)),
+                                       trim(items.getString(r, 5)), items.getTimestamp(r, 6)));
+      }//end for
+      return profile;
+   }//end loadProfile
+
+   // the Users columns a profile update may change, see updateProfile
+   private static final Set<String> PROFILE_COLUMNS = new LinkedHashSet<String>(
+      Arrays.asList("phoneNum", "favItems", "type"));
+
+   /**
+    * Changes one column of the Users row of profile, provided it still has
+    * the value profile holds. Only that column is sent and compared, so
+    * changes of other columns made meanwhile do not get in the way.
+    *
+    * @param profile the user as read
+    * @param column phoneNum, favItems or type
+    * @param value the new value
+    * @return true if changed, false if someone changed or deleted the user
+    *         meanwhile
+    * @throws java.sql.SQLException when the update failed, e.g. because
+    *         the phone number is taken
+    */
+   public boolean updateProfile (Profile profile, String column, String value) throws SQLException {
+      if (!PROFILE_COLUMNS.contains(column))
+         throw new SQLException("Not a profile column: " + column);
+      String old = column.equals("phoneNum") ? profile.phoneNum
+                 : column.equals("favItems") ? profile.favItems : profile.type;
+      int updated = executeUpdate (
+         "UPDATE Users SET " + column + " = ? WHERE login = ? AND " + column + " IS NOT DISTINCT FROM CAST(? AS varchar)",
+         value, profile.login, old);
+      if (updated == 0)
+         return false;
+      if (column.equals("phoneNum")) {
+         profile.phoneNum = value;
+         if (this._takenPhones != null)
+            this._takenPhones.add(value.trim());
+      } else if (column.equals("favItems")) {
+         // UserFavItems follows by trigger, the suggestions in a moment
+         profile.favItems = value;
+         recommendationsChanged(profile.login);
+      } else {
+         profile.type = value;
+      }//end if
+      return true;
+   }//end updateProfile
+
+   /**
+    * Changes the password of login if current is still its password.
+    *
+    * @param login the user
+    * @param current the password the user entered as their current one
+    * @param replacement the new password
+    * @return true if changed, false if current is wrong
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean changePassword (String login, String current, String replacement) throws SQLException {
+      int updated = executeUpdate (
+         "UPDATE Users SET password = ? WHERE login = ? AND password = ?", replacement, login, current);
+      invalidateCredentials(login);
+      return updated > 0;
+   }//end changePassword
+
+   /**
+    * Adds an item to an unpaid order of profile. The order's total grows
+    * by the menu price in the same statement, and nothing happens if the
+    * order was paid meanwhile or already has the item.
+    *
+    * @param profile the customer
+    * @param order the order as read
+    * @param itemName the menu item
+    * @return true if added
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public boolean addOrderItem (Profile profile, OpenOrder order, String itemName) throws SQLException {
+      TypedResult added = executeTypedQuery (
+         "WITH o AS (" +
+         "   UPDATE Orders SET total = Orders.total + m.price FROM Menu m" +
+         "   WHERE Orders.orderid = ? AND Orders.login = ? AND Orders.paid IS NOT TRUE AND m.itemName = ?" +
+         "     AND NOT EXISTS (SELECT 1 FROM ItemStatus s WHERE s.orderid = Orders.orderid AND s.itemName = m.itemName)" +
+         "   RETURNING Orders.orderid, m.itemName, m.price, Orders.total" +
+         "), i AS (" +
+         "   INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, price)" +
+         "   SELECT orderid, itemName, now(), ?, '', price FROM o" +
+         "   RETURNING itemName, lastUpdated" +
+         ") " +
+         "SELECT i.itemName, i.lastUpdated, o.total FROM i, o",
+         order.orderid, profile.login, itemName.trim(), NEW_ITEM_STATUS);
+      if (added.rowCount() == 0)
+         return false;
+      order.items.add(new OrderItem(trim(added.getString(0, 0)), NEW_ITEM_STATUS, "", added.getTimestamp(0, 1)));
+      order.total = added.getFloat(0, 2);
+      recommendationsChanged(profile.login);
+      return true;
+   }//end addOrderItem
+
+   /**
+    * Changes the comments of an item of an unpaid order of profile,
+    * provided nobody, e.g. the barista, changed the item since it was read.
+    * A status change the barista queued before the edit is in turn not
+    * written over it, see queueItemStatus.
+    *
+    * @param profile the customer
+    * @param order the order as read
+    * @param item the item as read
+    * @param comments the new comments
+    * @return true if changed, false if the item changed, went away or the
+    *         order was paid meanwhile
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateOrderItem (Profile profile, OpenOrder order, OrderItem item, String comments) throws SQLException {
+      TypedResult updated = executeTypedQuery (
+         "UPDATE ItemStatus s SET comments = ?, lastUpdated = now() FROM Orders o " +
+         "WHERE s.orderid = ? AND s.itemName = ? AND s.lastUpdated = ? " +
+         "AND o.orderid = s.orderid AND o.login = ? AND o.paid IS NOT TRUE " +
+         "RETURNING s.lastUpdated",
+         comments, order.orderid, item.itemName, item.lastUpdated, profile.login);
+      if (updated.rowCount() == 0)
+         return false;
+      item.comments = comments;
+      item.lastUpdated = updated.getTimestamp(0, 0);
+      return true;
+   }//end updateOrderItem
+
+   /**
+    * Marks an order paid unless it is paid already.
+    *
+    * @param orderid the order
+    * @return true if it was unpaid, false if it was paid or does not exist
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean markPaid (int orderid) throws SQLException {
+      return executeUpdate ("UPDATE Orders SET paid = true, paidAt = now() WHERE orderid = ? AND paid IS NOT TRUE", orderid) > 0;
+   }//end markPaid
+
+   private static String trim (String value) {
+      return value == null ? null : value.trim();
+   }//end trim
+
+   /**
+    * The items suggested to login, precomputed in UserRecommendations from
+    * their favourites and orders, so this is a primary key lookup.
+    *
+    * @param login the user
+    * @return the suggested item names, best first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<String> getRecommendations (String login) throws SQLException {
+      List<String> items = new ArrayList<String>();
+      for (List<String> row : executeQueryAndReturnResult (
+              "SELECT itemName FROM UserRecommendations WHERE login = ? ORDER BY rank", login))
+         items.add(row.get(0).trim());
+      return items;
+   }//end getRecommendations
+
+   /**
+    * Queues a refresh of the recommendations of login, e.g. after their
+    * favourite items changed; see RecommendationJob.
+    *
+    * @param login the user
+    */
+   public void recommendationsChanged (String login) {
+      this._recommendations.userChanged(login);
+   }//end recommendationsChanged
+
+   /**
+    * @return the counters of the recommendation refreshes
+    */
+   public String getRecommendationStats() {
+      return this._recommendations.stats();
+   }//end getRecommendationStats
+
+   /**
+    * Order count and revenue per day, read from the SalesDaily rollup so
+    * the cost depends on the number of days only. The shard rows of a day
+    * are added up.
+    *
+    * @param from the first day, yyyy-mm-dd
+    * @param to the last day, yyyy-mm-dd
+    * @return columns day, orders, revenue, paidOrders, paidRevenue
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public TypedResult getDailySales (String from, String to) throws SQLException {
+      return executeTypedQuery (
+         "SELECT day, CAST(SUM(orders) AS integer) AS orders, SUM(revenue) AS revenue, " +
+         "CAST(SUM(paidOrders) AS integer) AS paidOrders, SUM(paidRevenue) AS paidRevenue FROM SalesDaily " +
+         "WHERE day BETWEEN CAST(? AS date) AND CAST(? AS date) GROUP BY day ORDER BY day",
+         from, to);
+   }//end getDailySales
+
+   /**
+    * Order count and revenue per hour of one day, read from the
+    * SalesHourly rollup.
+    *
+    * @param day the day, yyyy-mm-dd
+    * @return columns hour, orders, revenue, paidOrders, paidRevenue
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public TypedResult getHourlySales (String day) throws SQLException {
+      return executeTypedQuery (
+         "SELECT hour, CAST(SUM(orders) AS integer) AS orders, SUM(revenue) AS revenue, " +
+         "CAST(SUM(paidOrders) AS integer) AS paidOrders, SUM(paidRevenue) AS paidRevenue FROM SalesHourly " +
+         "WHERE hour >= CAST(? AS date) AND hour < CAST(? AS date) + 1 GROUP BY hour ORDER BY hour",
+         day, day);
+   }//end getHourlySales
+
+   /**
+    * The best selling items over a range of days, read from the
+    * ItemSalesDaily rollup.
+    *
+    * @param from the first day, yyyy-mm-dd
+    * @param to the last day, yyyy-mm-dd
+    * @param limit the maximum number of items
+    * @return columns itemName, quantity, revenue, highest revenue first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public TypedResult getTopItems (String from, String to, int limit) throws SQLException {
+      return executeTypedQuery (
+         "SELECT itemName, SUM(quantity) AS quantity, SUM(revenue) AS revenue FROM ItemSalesDaily " +
+         "WHERE day BETWEEN CAST(? AS date) AND CAST(? AS date) " +
+         "GROUP BY itemName ORDER BY 3 DESC LIMIT ?",
+         from, to, limit);
+   }//end getTopItems
+
+   /**
+    * @return the counters of the order id allocator
+    */
+   public String getOrderIdStats() {
+      return this._orderIds == null ? "order ids: allocator disabled" : this._orderIds.stats();
+   }//end getOrderIdStats
+
+   /**
+    * Keeps the order partitions maintained in the background, every
+    * cafe.partitions.maintainMinutes; see PartitionManager. Off unless set,
+    * since the partitions are meant to be maintained by a single process,
+    * e.g. partitions.sh from cron, rather than by every terminal.
+    */
+   public void startPartitionMaintenance() {
+      long minutes = Long.getLong("cafe.partitions.maintainMinutes", 0L);
+      if (minutes > 0)
+         this._partitions.start(minutes);
+   }//end startPartitionMaintenance
+
+   /**
+    * @return the counters of the order partitions
+    */
+   public String getPartitionStats() {
+      return this._partitions.stats();
+   }//end getPartitionStats
+
+   /**
+    * @return a summary of the connection pool usage and wait times
+    */
+   public String getPoolStats() {
+      return this._pool.stats();
+   }//end getPoolStats
+
+   /**
+    * @return queue depths and wait times of the database work per class,
+    *         see AdmissionController
+    */
+   public String getAdmissionStats() {
+      return this._pool.admission().stats();
+   }//end getAdmissionStats
+
+   /**
+    * Tells whether customers or staff are waiting for the database, so
+    * screens can leave out what is not needed.
+    */
+   public boolean overloaded() {
+      return this._pool.admission().overloaded();
+   }//end overloaded
+
+   /**
+    * @param e an exception thrown by a query
+    * @return whether the query failed because the database was too busy:
+    *         it waited too long for a connection or ran out of time
+    */
+   public static boolean isBusy(SQLException e) {
+      return AdmissionController.BUSY.equals(e.getSQLState())
+             || QUERY_CANCELED.equals(e.getSQLState())
+             || (e.getMessage() != null && e.getMessage().contains(QUERY_CANCELED_MESSAGE));
+   }//end isBusy
+
+   /**
+    * @param e an exception thrown by a change of an order
+    * @return whether it was rejected because the order is archived
+    */
+   static boolean isArchived(SQLException e) {
+      return ARCHIVED.equals(e.getSQLState())
+             || (e.getMessage() != null && e.getMessage().contains(ARCHIVED_MESSAGE));
+   }//end isArchived
+
+   /**
+    * @param e an exception thrown by an insert of an order
+    * @return whether no partition takes the order's id yet
+    */
+   static boolean isMissingPartition(SQLException e) {
+      return NO_PARTITION.equals(e.getSQLState())
+             || (e.getMessage() != null && e.getMessage().contains(NO_PARTITION_MESSAGE));
+   }//end isMissingPartition
+
+   /**
+    * @param top maximum number of statement shapes listed
+    * @return call counts, rows and latency percentiles of the statement
+    *         shapes with the highest total execution time
+    */
+   public String getQueryStats(int top) {
+      return this._stats.report(top);
+   }//end getQueryStats
+
+   /**
+    * @return the indexes missing for the statements run so far, see
+    *         IndexAdvisor
+    * @throws java.sql.SQLException when the catalog could not be read
+    */
+   public List<IndexAdvisor.Advice> adviseIndexes() throws SQLException {
+      return new IndexAdvisor(this).advise(this._stats.shapes());
+   }//end adviseIndexes
+
+   /**
+    * Creates indexes proposed by adviseIndexes(), without blocking writes.
+    *
+    * @param advice the indexes to create
+    * @throws java.sql.SQLException when an index could not be built
+    */
+   public void createIndexes(List<IndexAdvisor.Advice> advice) throws SQLException {
+      // index builds take long and must not be cancelled halfway
+      AdmissionController.WorkClass previous = AdmissionController.enter(AdmissionController.WorkClass.MAINTENANCE);
+      try{
+         new IndexAdvisor(this).create(advice);
+      }finally{
+         AdmissionController.exit(previous);
+      }//end try
+   }//end createIndexes
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close the pooled physical connections.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
+      synchronized (this) {
+         if (this._changes != null){
+            this._changes.close ();
          }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      }//end synchronized
+      if (this._statusWriter != null){
+         // writes the queued item status changes
+         this._statusWriter.close ();
+      }//end if
+      if (this._orderIds != null){
+         this._orderIds.close ();
+      }//end if
+      if (this._recommendations != null){
+         this._recommendations.close ();
+      }//end if
+      if (this._partitions != null){
+         this._partitions.close ();
+      }//end if
+      if (this._stats != null){
+         this._stats.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -246,7 +1773,36 @@ public class Cafe {
          String dbport = args[1];
          String user = args[2];
          esql = new Cafe (dbname, dbport, user, "");
+         esql.startPartitionMaintenance();
+
+         runSession(esql, Session.console());
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if(esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup ();
+               System.out.println("Done\n\nBye !");
+            }//end if
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
 
+   /**
+    * Runs the menus for one user terminal until they exit or their input
+    * ends. The session is bound to the calling thread meanwhile, so the
+    * screens read from and print to it.
+    *
+    * @param esql the database, shared by all sessions
+    * @param session the terminal
+    */
+   public static void runSession (Cafe esql, Session session) {
+      session.attach();
+      try{
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -263,6 +1819,9 @@ public class Cafe {
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
             if (authorisedUser != null) {
+              session.setUser(authorisedUser, esql.getUserType(authorisedUser));
+              session.setProfile(profile(esql));
+              Suggestions(esql, authorisedUser);
               boolean usermenu = true;
               while(usermenu) {
                 System.out.println("MAIN MENU");
@@ -271,34 +1830,54 @@ public class Cafe {
                 System.out.println("2. Update Profile");
                 System.out.println("3. Place a Order");
                 System.out.println("4. Update a Order");
+                System.out.println("5. Order history");
+                System.out.println("6. Track a order");
+                System.out.println(".........................");
+                System.out.println("Employee and Manager Only");
+                System.out.println("7. Open orders");
+                System.out.println("8. Update item status");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
-                switch (readChoice()){
+                boolean manager = "Manager".equals(session.type());
+                if (manager) {
+                  System.out.println(".........................");
+                  System.out.println("Manager Only");
+                  System.out.println("10. Query statistics");
+                  System.out.println("11. Sales reports");
+                  System.out.println("12. Export a table");
+                }
+                int choice = readChoice();
+                if (choice >= 10 && !manager)
+                  choice = 0;  // not offered
+                switch (choice){
                    case 1: Menu(esql); break;
                    case 2: UpdateProfile(esql); break;
-                   case 3: PlaceOrder(esql); break;
+                   case 3: PlaceOrder(esql, authorisedUser); break;
                    case 4: UpdateOrder(esql); break;
+                   case 5: OrderHistory(esql, authorisedUser); break;
+                   case 6: TrackOrder(esql, authorisedUser); break;
+                   case 7: OpenOrders(esql, authorisedUser); break;
+                   case 8: UpdateItemStatus(esql, authorisedUser); break;
+                   case 10: QueryStatistics(esql, authorisedUser); break;
+                   case 11: SalesReports(esql, authorisedUser); break;
+                   case 12: ExportTable(esql, authorisedUser); break;
                    case 9: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
               }
+              session.setUser(null, null);
             }
          }//end while
+      }catch(Session.Closed e) {
+         // the user went away, nothing left to say
       }catch(Exception e) {
          System.err.println (e.getMessage ());
       }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
-            }//end if
-         }catch (Exception e) {
-            // ignored.
-         }//end try
+         session.setUser(null, null);
+         System.out.flush();
+         Session.detach();
       }//end try
-   }//end main
+   }//end runSession
 
    public static void Greeting(){
       System.out.println(
@@ -319,6 +1898,8 @@ public class Cafe {
          try { // read the integer, parse it and break.
             input = Integer.parseInt(in.readLine());
             break;
+         }catch (Session.Closed e) {
+            throw e;
          }catch (Exception e) {
             System.out.println("Your input is invalid!");
             continue;
@@ -332,20 +1913,31 @@ public class Cafe {
     **/
    public static void CreateUser(Cafe esql){
       try{
+         // trimmed once, so the clash checks and the insert see the same
+         // values; varchar keeps trailing blanks that char(n) ignored
          System.out.print("\tEnter user login: ");
-         String login = in.readLine();
+         String login = in.readLine().trim();
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
          System.out.print("\tEnter user phone: ");
-         String phone = in.readLine();
+         String phone = in.readLine().trim();
 
 	    String type="Customer";
 	    String favItems="";
 
-				 String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
+         String taken = esql.findTakenUserField(login, phone);
+         if (taken != null) {
+            System.out.println ("This " + taken + " is already taken!");
+            return;
+         }
 
-         esql.executeUpdate(query);
+         String query = "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES (?, ?, ?, ?, ?)";
+
+         esql.executeUpdate(query, phone, login, password, favItems, type);
+         esql.userCreated(login, phone);
          System.out.println ("User successfully created!");
+      }catch(Session.Closed e){
+         throw e;
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
@@ -363,17 +1955,39 @@ public class Cafe {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-		return login;
+         if (esql.authenticate(login, password))
+            return login;
          return null;
+      }catch(Session.Closed e){
+         throw e;
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
       }
    }//end
 
+   /*
+    * Shows the items suggested to the user who just logged in
+    **/
+   public static void Suggestions(Cafe esql, String login){
+      // nice to have: the database is left to those waiting for it
+      if (esql.overloaded())
+         return;
+      try{
+         List<String> items = esql.getRecommendations(login);
+         if (items.isEmpty())
+            return;
+         System.out.println("Suggested for you:");
+         for (String item : items)
+            System.out.println("\t" + item);
+         System.out.println();
+      }catch(Session.Closed e){
+         throw e;
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end Suggestions
+
 // Rest of the functions definition go in here
 
 
@@ -387,6 +2001,7 @@ public static void Menu(Cafe esql)
       System.out.println("---------");
       System.out.println("1. Search Item by name");
       System.out.println("2. Search Item by type");
+      System.out.println("3. Search Item by keyword");
       System.out.println("---------");
       System.out.println("Manager Only");
       System.out.println("6. Add items");
@@ -396,6 +2011,7 @@ public static void Menu(Cafe esql)
       switch(readChoice()){
         case 1: Search_Item_By_Name(esql); break;
         case 2: Search_Item_By_Type(esql); break;
+        case 3: Search_Item_By_Keyword(esql); break;
         case 6: Add_Items(esql); break;
         case 7: Delete_Items(esql); break;
         case 8: Update_Items(esql); break;
@@ -404,6 +2020,9 @@ public static void Menu(Cafe esql)
       }
     }//end while
   }//end try
+  catch(Session.Closed e){
+    throw e;
+  }
   catch(Exception e){
     System.err.println (e.getMessage());
   }//endcatch
@@ -421,25 +2040,18 @@ public static void Search_Item_By_Name(Cafe esql)
       System.out.println("Enter the name of item you are looking for : ");
       String Item_Name = in.readLine();
 
-      String query = "SELECT * FROM Menu WHERE itemName = '";
-      query += Item_Name;
-      String quotation = "'";
-      query += quotation;
-
-      List<List<String>> output = esql.executeQueryAndReturnResult(query);
-
-      //output list
-      for(int i = 0; i < output.size(); i++)
-      {
-        for(int j = 0; j < output.get(i).size(); j++)
-        {
-          System.out.print(output.get(i).get(j));
-        }
-        System.out.println("");
+      List<MenuItem> found = esql.searchMenuByName(Item_Name);
+      if (found.isEmpty())
+        found = esql.searchMenuByNamePrefix(Item_Name);
+      if (found.isEmpty()) {
+        found = esql.searchMenu(Item_Name);
+        if (!found.isEmpty())
+          System.out.println("No exact match, did you mean:");
       }
+      printMenuItems(found);
 
-      System.out.print(output.toString());
-
+    }catch(Session.Closed e){
+      throw e;
     }catch(Exception e){
       System.err.println(e.getMessage());
     }
@@ -464,14 +2076,10 @@ public static void Search_Item_By_Type(Cafe esql)
       System.out.println("Enter the type of name you are looking for : ");
       String Item_Type = in.readLine();
 
-      String query = "SELECT * FROM Menu WHERE type = '";
-      String quotation = "'";
-      query += Item_Type + quotation;
-
-      List<List<String>> output = esql.executeQueryAndReturnResult(query);
-
-      System.out.print(output);
+      printMenuItems(esql.searchMenuByType(Item_Type));
 
+    }catch(Session.Closed e){
+      throw e;
     }catch(Exception e){
       System.err.println (e.getMessage());
     }
@@ -489,11 +2097,111 @@ public static void Search_Item_By_Type(Cafe esql)
 
 //end Searh Item By type
 
+public static void Search_Item_By_Keyword(Cafe esql)
+{
+  boolean Search_Keyword_Menu = true;
+
+  while(Search_Keyword_Menu)
+  {
+    try{
+      System.out.println("Enter words describing the item (e.g. latte) : ");
+      String Keywords = in.readLine();
+
+      printMenuItems(esql.searchMenu(Keywords));
+
+    }catch(Session.Closed e){
+      throw e;
+    }catch(Exception e){
+      System.err.println (e.getMessage());
+    }
+
+    System.out.println("----------Search Finished-----------");
+    System.out.println("Do You Want Search another Item?");
+    System.out.println("1. Yes 2.No (go back to menu)");
+    switch(readChoice()){
+      case 1: break;
+      case 2: Search_Keyword_Menu = false; break;
+    }
+  }
+}
+
+//end Search Item By keyword
+
+/*
+ * Prints menu items, one per line
+ **/
+static void printMenuItems(List<MenuItem> items)
+{
+  if (items.isEmpty()) {
+    System.out.println("No items found.");
+    return;
+  }
+  List<String[]> rows = new ArrayList<String[]>(items.size());
+  for (MenuItem item : items)
+    rows.add(item.toRow());
+  try{
+    ResultWriter.console().writeAll(new String[] { "itemName", "type", "price", "description", "imageURL" }, rows);
+  }catch(SQLException e){
+    System.err.println (e.getMessage());
+  }
+}
+
+// lengths of the Menu text columns, see create_tables.sql
+static final int MENU_NAME_LENGTH = 50;
+static final int MENU_TYPE_LENGTH = 20;
+static final int MENU_DESCRIPTION_LENGTH = 400;
+static final int MENU_URL_LENGTH = 256;
+
+/*
+ * Tells why value cannot go into a Menu text column, null if it can
+ **/
+static String menuFieldError(String label, String value, int maxLength, boolean required)
+{
+  if (required && value.trim().isEmpty())
+    return "the " + label + " cannot be empty";
+  if (value.length() > maxLength)
+    return "the " + label + " is longer than " + maxLength + " characters";
+  return null;
+}
+
+/*
+ * The price typed in, null if it is not a number of at least 0
+ **/
+static Double parsePrice(String value)
+{
+  try{
+    double price = Double.parseDouble(value.trim());
+    return price >= 0 && !Double.isInfinite(price) ? Double.valueOf(price) : null;
+  }catch(NumberFormatException e){
+    return null;
+  }
+}
+
+/*
+ * Brings the in-memory menu up to date with saved edits of the named
+ * items. A failure leaves the edits saved; searches see them at the next
+ * periodic reload.
+ **/
+static void refreshMenu(Cafe esql, List<String> names)
+{
+  try{
+    esql.refreshMenuItems(names);
+  }catch(SQLException e){
+    System.err.println (e.getMessage());
+    System.out.println("The changes are saved, but menu searches may show the old items for a few minutes.");
+  }
+}
+
 public static void Add_Items(Cafe esql)
 {
   boolean add = true;
 
+  UnitOfWork uow = null;
+  List<String> names = new ArrayList<String>();
+  boolean saved = false;
   try {
+    // the new items are collected and added together in one transaction
+    uow = esql.beginUnitOfWork();
     while(add)
     {
       System.out.println("------------------------");
@@ -504,18 +2212,36 @@ public static void Add_Items(Cafe esql)
       String Item_Type = in.readLine();
       System.out.println("Enter the price of Item");
       String Price_str = in.readLine();
-      double Price = Double.parseDouble(Price_str);
+      Double Price = parsePrice(Price_str);
       System.out.println("Enter the description of Item");
       String Description = in.readLine();
       System.out.println("Enter the URL of image");
       String URL = in.readLine();
 
-      String query = String.format("INSERT INTO Menu (ItemName, type, price, description, imageURL) VALUES ('%s', '%s','%s','%s','%s')", Item_Name, Item_Type, Price, Description, URL);
-
-      esql.executeUpdate(query);
-      System.out.println("Item Added!");
+      // a bad entry is turned away now, the ones queued before are kept
+      String error = menuFieldError("name", Item_Name, MENU_NAME_LENGTH, true);
+      if (error == null && (names.contains(Item_Name.trim()) || esql.findMenuItem(Item_Name) != null))
+        error = Item_Name.trim() + " is already on the menu";
+      if (error == null)
+        error = menuFieldError("type", Item_Type, MENU_TYPE_LENGTH, true);
+      if (error == null && Price == null)
+        error = "the price must be a number of at least 0, not " + Price_str;
+      if (error == null)
+        error = menuFieldError("description", Description, MENU_DESCRIPTION_LENGTH, false);
+      if (error == null)
+        error = menuFieldError("image URL", URL, MENU_URL_LENGTH, false);
+
+      if (error != null) {
+        System.out.println("Item not queued: " + error);
+      } else {
+        String query = "INSERT INTO Menu (ItemName, type, price, description, imageURL) VALUES (?, ?, ?, ?, ?)";
+
+        uow.addUpdate(query, Item_Name.trim(), Item_Type.trim(), Price, Description, URL);
+        names.add(Item_Name.trim());
+        System.out.println("Item queued!");
+      }
       System.out.println("Do you want to add more items?");
-      System.out.println("1. Yes 2. No(go back to menu)");
+      System.out.println("1. Yes 2. No(save and go back to menu)");
 
       switch(readChoice()){
         case 1: break;
@@ -523,9 +2249,20 @@ public static void Add_Items(Cafe esql)
       }
 
     }
+    uow.commit();
+    saved = true;
+    System.out.println(names.size() + " item(s) added!");
+  }catch(Session.Closed e){
+    throw e;
   }catch(Exception e){
     System.err.println (e.getMessage());
+    System.out.println("No items were added.");
+  }finally{
+    if (uow != null)
+      uow.close();
   }
+  if (saved)
+    refreshMenu(esql, names);
 
 }
 
@@ -533,31 +2270,58 @@ public static void Delete_Items(Cafe esql)
 {
   boolean delete = true;
 
+  UnitOfWork uow = null;
+  List<String> names = new ArrayList<String>();
+  boolean saved = false;
   try {
+    // the deletions are collected and applied together in one transaction
+    uow = esql.beginUnitOfWork();
     while(delete)
     {
       System.out.println("---------------------------");
       System.out.println("-------DELETE ITEMS--------");
       System.out.println("Enter the name of Item to delete");
-      String Item_Name = in.readLine();
-
-      String query = "DELETE FROM Menu WHERE itemName = '";
-      String quotation = "'";
-      query += Item_Name + quotation;
-
-      esql.executeUpdate(query);
-      System.out.println("Item removed!");
+      String Item_Name = in.readLine().trim();
+
+      String error = null;
+      if (names.contains(Item_Name))
+        error = Item_Name + " is queued for removal already";
+      else if (esql.findMenuItem(Item_Name) == null)
+        error = Item_Name + " is not on the menu";
+      else if (esql.isItemOrdered(Item_Name))
+        error = Item_Name + " has been ordered and stays for the order history";
+
+      if (error != null) {
+        System.out.println("Item not queued: " + error);
+      } else {
+        String query = "DELETE FROM Menu WHERE itemName = ?";
+
+        uow.addUpdate(query, Item_Name);
+        names.add(Item_Name);
+        System.out.println("Item queued for removal!");
+      }
       System.out.println("Do you want to delete more items?");
-      System.out.println("1. Yes 2. No(go back to menu)");
+      System.out.println("1. Yes 2. No(save and go back to menu)");
 
       switch(readChoice()){
         case 1: break;
         case 2: delete = false; break;
       }
     }
+    int removed = uow.commit();
+    saved = true;
+    System.out.println(removed + " item(s) removed!");
+  }catch(Session.Closed e){
+    throw e;
   }catch(Exception e){
     System.err.println (e.getMessage());
+    System.out.println("No items were removed.");
+  }finally{
+    if (uow != null)
+      uow.close();
   }
+  if (saved)
+    refreshMenu(esql, names);
 
 }
 
@@ -565,73 +2329,777 @@ public static void Update_Items(Cafe esql)
 {
   boolean update = true;
 
+  UnitOfWork uow = null;
+  List<String> names = new ArrayList<String>();
+  boolean saved = false;
   try {
+    // the edits are collected and applied together in one transaction
+    uow = esql.beginUnitOfWork();
+    List<String> renamed = new ArrayList<String>();
+    // old name -> new name of the items renamed in this session, whose old
+    // names the menu index still knows until the edits are saved
+    Map<String, String> renamedAway = new HashMap<String, String>();
     while(update)
     {
       System.out.println("---------------------------");
       System.out.println("-------UPDATE ITEMS--------");
       System.out.println("Enter the name of Item to update");
-      String Item_Name = in.readLine();
-      System.out.println("Which one should be updated?");
-      System.out.println("1. Item Name 2. Item Type 3. Price 4. Description 5. image URL");
+      String Item_Name = in.readLine().trim();
+      // items renamed earlier in this session are known by their new name
+      if (renamedAway.containsKey(Item_Name)) {
+        System.out.println("Update not queued: " + Item_Name + " is renamed to "
+                           + renamedAway.get(Item_Name) + " by this update, use the new name");
+        Item_Name = null;
+      } else if (!renamed.contains(Item_Name) && esql.findMenuItem(Item_Name) == null) {
+        System.out.println("Update not queued: " + Item_Name + " is not on the menu");
+        Item_Name = null;
+      } else {
+        System.out.println("Which one should be updated?");
+        System.out.println("1. Item Name 2. Item Type 3. Price 4. Description 5. image URL");
+      }
 
-      String quotation = "'";
-      String query = "";
-      String value = "";
-      String where = "WHERE itemName = '" + Item_Name + quotation;
-      switch(readChoice()){
+      String query = null;
+      Object value = null;
+      String error = null;
+      String where = " WHERE itemName = ?";
+      switch(Item_Name == null ? 0 : readChoice()){
+        case 0: break;
         case 1: System.out.println("Enter the change name of Item");
-        value = in.readLine();
-        query = "UPDATE Menu set itemName = '";
-        query += value + quotation + where;
+        String name = in.readLine();
+        value = name.trim();
+        error = menuFieldError("name", name, MENU_NAME_LENGTH, true);
+        if (error == null && (renamed.contains(name.trim()) || esql.findMenuItem(name) != null))
+          error = name.trim() + " is already on the menu";
+        if (error == null && esql.isItemOrdered(Item_Name))
+          error = Item_Name + " has been ordered and keeps its name for the order history";
+        query = "UPDATE Menu set itemName = ?" + where;
         break;
         case 2: System.out.println("Enter the change type of Item");
         value = in.readLine();
-        query = "UPDATE Menu set type = '";
-        query += value + quotation + where;
+        error = menuFieldError("type", (String) value, MENU_TYPE_LENGTH, true);
+        query = "UPDATE Menu set type = ?" + where;
         break;
         case 3: System.out.println("Enter the change price of Item");
-        value = in.readLine();
-        double Price = Double.parseDouble(value);
-        query = "UPDATE Menu set price = ";
-        query += Price + where;
+        String price = in.readLine();
+        value = parsePrice(price);
+        if (value == null)
+          error = "the price must be a number of at least 0, not " + price;
+        query = "UPDATE Menu set price = ?" + where;
         break;
         case 4: System.out.println("Enter the change description of Item");
         value = in.readLine();
-        query = "UPDATE Menu set description = '";
-        query += value + quotation + where;
+        error = menuFieldError("description", (String) value, MENU_DESCRIPTION_LENGTH, false);
+        query = "UPDATE Menu set description = ?" + where;
         break;
         case 5: System.out.println("Enter the change URL of Item");
         value = in.readLine();
-        query = "UPDATE Menu set imageURL = '";
-        query += value + quotation + where;
+        error = menuFieldError("image URL", (String) value, MENU_URL_LENGTH, false);
+        query = "UPDATE Menu set imageURL = ?" + where;
         break;
         default : System.out.println("Invalid Value");
 
       }
-      esql.executeUpdate(query);
-      System.out.println("Item Updated!");
+      if (error != null) {
+        // only this entry is turned away, the ones queued before are kept
+        System.out.println("Update not queued: " + error);
+      } else if (query != null) {
+        uow.addUpdate(query, value, Item_Name);
+        names.add(Item_Name);
+        if (query.startsWith("UPDATE Menu set itemName")) {
+          names.add((String) value);  // the new name of a renamed item
+          renamed.add((String) value);
+          renamed.remove(Item_Name);
+          for (Map.Entry<String, String> earlier : renamedAway.entrySet())
+            if (earlier.getValue().equals(Item_Name))
+              earlier.setValue((String) value);
+          renamedAway.put(Item_Name, (String) value);
+        }
+        System.out.println("Update queued!");
+      }
       System.out.println("Do you want to update more items?");
-      System.out.println("1. Yes 2. No(go back to menu)");
+      System.out.println("1. Yes 2. No(save and go back to menu)");
 
       switch(readChoice()){
         case 1: break;
         case 2: update = false; break;
       }
     }
+    int updated = uow.commit();
+    saved = true;
+    System.out.println(updated + " item update(s) saved!");
+  }
+  catch(Session.Closed e){
+    throw e;
   }
   catch(Exception e){
     System.err.println (e.getMessage());
+    System.out.println("No items were updated.");
+  }finally{
+    if (uow != null)
+      uow.close();
   }
+  if (saved)
+    refreshMenu(esql, names);
 
 }
 
 
 
-  public static void UpdateProfile(Cafe esql){}
+  /*
+   * The profile of the logged in user, read from the database if the
+   * session does not have it yet
+   **/
+  static Cafe.Profile profile(Cafe esql) {
+    Session session = Session.current();
+    try{
+      if (session.profile() == null && session.login() != null)
+        session.setProfile(esql.loadProfile(session.login()));
+    }catch(SQLException e){
+      System.err.println (e.getMessage());
+    }
+    return session.profile();
+  }
+
+  /*
+   * Reads the profile again after an update found it changed, and says so
+   **/
+  static Cafe.Profile reloadProfile(Cafe esql, String what) throws SQLException {
+    System.out.println("Your " + what + " was changed meanwhile, nothing was saved. Please check and try again.");
+    Session.current().setProfile(null);
+    return profile(esql);
+  }
+
+  /*
+   * Changes the password, phone number or favourite items of the logged
+   * in user; managers can also change the type of any user. Shown from
+   * the profile read at login, so no row is read or locked while the user
+   * types.
+   **/
+  public static void UpdateProfile(Cafe esql){
+    boolean In_Profile = true;
+    while (In_Profile) {
+      try{
+        Cafe.Profile profile = profile(esql);
+        if (profile == null) {
+          System.out.println("Profile not available.");
+          return;
+        }
+        System.out.println("---------------------------");
+        System.out.println("----------PROFILE----------");
+        System.out.println("Login: " + profile.login);
+        System.out.println("Phone number: " + profile.phoneNum());
+        System.out.println("Favourite items: " + (profile.favItems() == null ? "" : profile.favItems()));
+        System.out.println("Type: " + profile.type());
+        System.out.println("1. Change password");
+        System.out.println("2. Change phone number");
+        System.out.println("3. Change favourite items");
+        if ("Manager".equals(profile.type()))
+          System.out.println("4. Change the type of a user");
+        System.out.println("9. Go back to main menu");
+        switch(readChoice()){
+          case 1: {
+            System.out.print("\tEnter your current password: ");
+            String current = in.readLine();
+            System.out.print("\tEnter the new password: ");
+            String password = in.readLine();
+            if (password.trim().isEmpty())
+              System.out.println("The password cannot be empty.");
+            else if (esql.changePassword(profile.login, current, password))
+              System.out.println("Password changed!");
+            else
+              System.out.println("Wrong password, nothing was changed.");
+            break;
+          }
+          case 2: {
+            System.out.print("\tEnter the new phone number: ");
+            String phone = in.readLine().trim();
+            if (phone.equals(profile.phoneNum()))
+              break;
+            if (esql.isPhoneTaken(phone, profile.login)) {
+              System.out.println("This phone number is already taken!");
+              break;
+            }
+            if (esql.updateProfile(profile, "phoneNum", phone))
+              System.out.println("Phone number changed!");
+            else
+              reloadProfile(esql, "phone number");
+            break;
+          }
+          case 3: {
+            System.out.println("Enter your favourite items separated by commas, e.g. Coffee,Donuts");
+            String favItems = in.readLine().trim();
+            if (esql.updateProfile(profile, "favItems", favItems))
+              System.out.println("Favourite items changed!");
+            else
+              reloadProfile(esql, "list of favourite items");
+            break;
+          }
+          case 4: {
+            if (!"Manager".equals(profile.type())) {
+              System.out.println("Only managers can change the type of a user.");
+              break;
+            }
+            System.out.print("\tEnter the login of the user: ");
+            Cafe.Profile other = esql.loadProfile(in.readLine().trim());
+            if (other == null) {
+              System.out.println("No such user.");
+              break;
+            }
+            System.out.println("The type of " + other.login + " is " + other.type());
+            System.out.println("New type: 1. Customer 2. Employee 3. Manager");
+            String type = null;
+            switch(readChoice()){
+              case 1: type = "Customer"; break;
+              case 2: type = "Employee"; break;
+              case 3: type = "Manager"; break;
+              default : System.out.println("Invalid Value");
+            }
+            if (type == null)
+              break;
+            if (esql.updateProfile(other, "type", type)) {
+              System.out.println("Type changed!");
+              if (other.login.equals(profile.login))
+                Session.current().setUser(profile.login, type);
+            } else {
+              System.out.println("The type of " + other.login + " was changed meanwhile, nothing was saved.");
+            }
+            break;
+          }
+          case 9: In_Profile = false; break;
+          default : System.out.println("Unrecognized choice!"); break;
+        }
+      }catch(Session.Closed e){
+        throw e;
+      }catch(Exception e){
+        System.err.println (e.getMessage());
+      }
+    }
+  }
+
+  /*
+   * Reads the items of a new order and places it for the logged in user
+   **/
+  public static void PlaceOrder(Cafe esql, String login){
+    try{
+      System.out.println("------------------------");
+      System.out.println("-------PLACE ORDER------");
+      System.out.println("Enter the name of each item, one per line. Finish with an empty line");
+      List<String> items = new ArrayList<String>();
+      String item;
+      while ((item = in.readLine()) != null && !item.trim().isEmpty())
+        items.add(item);
+      if (items.isEmpty()) {
+        System.out.println("No items entered, order cancelled.");
+        return;
+      }
+
+      Cafe.PlacedOrder order = null;
+      while (order == null) {
+        try{
+          order = esql.placeOrder(login, items);
+        }catch(SQLException e){
+          if (!Cafe.isBusy(e))
+            throw e;
+          // the items are kept, the customer decides whether to wait
+          System.out.println("We are very busy right now, your order was not placed yet.");
+          System.out.println("1. Try again");
+          System.out.println("2. Cancel the order");
+          if (readChoice() != 1) {
+            System.out.println("Order cancelled.");
+            return;
+          }
+        }
+      }
+      System.out.println(String.format("Order %d placed! Total: $%.2f", order.orderid, order.total));
+      if (!order.merged.isEmpty())
+        System.out.println("Ordered once, as an order has one of each item: " + order.merged);
+      // read again with the new order by the next screen needing it
+      Session.current().setProfile(null);
+    }catch(Session.Closed e){
+      throw e;
+    }catch(Exception e){
+      System.err.println (e.getMessage());
+    }
+  }
+
+  /*
+   * Adds items to and changes the comments of the unpaid orders of the
+   * logged in user; employees and managers can also mark any order paid.
+   * Changes are checked against the orders as read at login, so a barista
+   * and a customer working on the same order never wait for each other:
+   * whoever comes second is told and sees the order as it is now.
+   **/
+  public static void UpdateOrder(Cafe esql){
+    boolean In_Order = true;
+    while (In_Order) {
+      try{
+        Cafe.Profile profile = profile(esql);
+        if (profile == null) {
+          System.out.println("Profile not available.");
+          return;
+        }
+        System.out.println("---------------------------");
+        System.out.println("-------UPDATE ORDER--------");
+        List<List<String>> rows = new ArrayList<List<String>>();
+        for (Cafe.OpenOrder order : profile.openOrders())
+          rows.add(Arrays.asList(String.valueOf(order.orderid), String.valueOf(order.received),
+                                 String.format("%.2f", order.total()), String.valueOf(order.items().size())));
+        if (rows.isEmpty())
+          System.out.println("You have no unpaid orders.");
+        else
+          printRows(new String[] { "orderid", "timeStampRecieved", "total", "items" }, rows);
+        System.out.println("1. Add an item to an order");
+        System.out.println("2. Change the comments of an item");
+        System.out.println("3. Reload my orders");
+        boolean staff = "Employee".equals(profile.type()) || "Manager".equals(profile.type());
+        if (staff)
+          System.out.println("4. Mark an order paid");
+        System.out.println("9. Go back to main menu");
+        switch(readChoice()){
+          case 1: {
+            Cafe.OpenOrder order = chooseOpenOrder(profile);
+            if (order == null)
+              break;
+            System.out.println("Enter the name of the item");
+            String itemName = in.readLine().trim();
+            MenuItem found = esql.findMenuItem(itemName);
+            if (found == null)
+              System.out.println("Not on the menu: " + itemName);
+            else if (order.item(found.itemName) != null)
+              System.out.println("The order has this item already.");
+            else if (esql.addOrderItem(profile, order, found.itemName))
+              System.out.println(String.format("Added! New total: $%.2f", order.total()));
+            else
+              reloadProfile(esql, "order " + order.orderid);
+            break;
+          }
+          case 2: {
+            Cafe.OpenOrder order = chooseOpenOrder(profile);
+            if (order == null)
+              break;
+            List<List<String>> items = new ArrayList<List<String>>();
+            for (Cafe.OrderItem item : order.items())
+              items.add(Arrays.asList(item.itemName, item.status(), item.comments()));
+            printRows(new String[] { "itemName", "status", "comments" }, items);
+            System.out.println("Enter the name of the item");
+            Cafe.OrderItem item = order.item(in.readLine());
+            if (item == null) {
+              System.out.println("The order has no such item.");
+              break;
+            }
+            System.out.println("Enter comments");
+            String comments = in.readLine();
+            if (esql.updateOrderItem(profile, order, item, comments))
+              System.out.println("Comments changed!");
+            else
+              reloadProfile(esql, "order " + order.orderid);
+            break;
+          }
+          case 3: Session.current().setProfile(null); break;
+          case 4: {
+            if (!staff) {
+              System.out.println("Only employees and managers can mark orders paid.");
+              break;
+            }
+            System.out.println("Enter the order id");
+            int orderid = Integer.parseInt(in.readLine().trim());
+            if (esql.markPaid(orderid)) {
+              System.out.println("Order " + orderid + " is paid!");
+              if (profile.openOrder(orderid) != null)
+                profile.openOrders().remove(profile.openOrder(orderid));
+            } else {
+              System.out.println("Order " + orderid + " does not exist or is paid already.");
+            }
+            break;
+          }
+          case 9: In_Order = false; break;
+          default : System.out.println("Unrecognized choice!"); break;
+        }
+      }catch(Session.Closed e){
+        throw e;
+      }catch(Exception e){
+        System.err.println (e.getMessage());
+      }
+    }
+  }
+
+  /*
+   * Asks for one of the open orders of profile
+   * @return the order, null if the user entered another
+   **/
+  static Cafe.OpenOrder chooseOpenOrder(Cafe.Profile profile) throws Exception {
+    System.out.println("Enter the order id");
+    Cafe.OpenOrder order = profile.openOrder(Integer.parseInt(in.readLine().trim()));
+    if (order == null)
+      System.out.println("That is not one of your unpaid orders.");
+    return order;
+  }
+
+  // orders shown per page by the order screens
+  static final int ORDER_PAGE_SIZE = 10;
+
+  /*
+   * Browses the orders of the logged in user, newest first
+   **/
+  public static void OrderHistory(Cafe esql, String login){
+    try{
+      System.out.println("---------------------------");
+      System.out.println("-------ORDER HISTORY-------");
+      Cafe.OrderPage page = esql.getOrderHistory(login, null, ORDER_PAGE_SIZE);
+      while (printOrderPage(page))
+        page = esql.getOrderHistory(login, page, ORDER_PAGE_SIZE);
+    }catch(Session.Closed e){
+      throw e;
+    }catch(Exception e){
+      System.err.println (e.getMessage());
+    }
+  }
+
+  /*
+   * Browses the unpaid orders of all customers, oldest first
+   **/
+  public static void OpenOrders(Cafe esql, String login){
+    try{
+      if (!isStaff(esql, login)) {
+        System.out.println("Only employees and managers can see open orders.");
+        return;
+      }
+      System.out.println("---------------------------");
+      System.out.println("--------OPEN ORDERS--------");
+      Cafe.OrderPage page = esql.getOpenOrders(null, ORDER_PAGE_SIZE);
+      while (printOrderPage(page))
+        page = esql.getOpenOrders(page, ORDER_PAGE_SIZE);
+    }catch(Session.Closed e){
+      throw e;
+    }catch(Exception e){
+      System.err.println (e.getMessage());
+    }
+  }
+
+  /*
+   * Shows the items of an order and prints their status changes as they
+   * happen, until the user presses Enter
+   **/
+  public static void TrackOrder(Cafe esql, String login){
+    OrderChangeFeed.Listener listener = null;
+    try{
+      System.out.println("Enter the order id");
+      final int orderid = Integer.parseInt(in.readLine().trim());
+      List<List<String>> order = esql.executeQueryAndReturnResult(
+        "SELECT login FROM Orders WHERE orderid = ?", orderid);
+      if (order.isEmpty() || (!order.get(0).get(0).trim().equals(login) && !isStaff(esql, login))) {
+        System.out.println("No such order.");
+        return;
+      }
+      // the feed calls back on its own thread, which has no session
+      final PrintStream out = Session.current().out();
+      listener = new OrderChangeFeed.Listener() {
+        public void changed(OrderChangeFeed.Change change) {
+          if (change.orderid == orderid) {
+            out.println("  update: " + change);
+            out.flush();
+          }
+        }
+      };
+      // subscribe first so no change between the query and the
+      // subscription is lost
+      esql.subscribeOrderChanges(listener);
+      System.out.println("---------------------------");
+      System.out.println("--------TRACK ORDER--------");
+      esql.executeQueryAndPrintResult(
+        "SELECT itemName, status, comments FROM ItemStatus WHERE orderid = ?", orderid);
+      System.out.println("Waiting for updates, press Enter to go back to menu");
+      in.readLine();
+    }catch(Session.Closed e){
+      throw e;
+    }catch(Exception e){
+      System.err.println (e.getMessage());
+    }finally{
+      if (listener != null)
+        esql.unsubscribeOrderChanges(listener);
+    }
+  }
+
+  /*
+   * Sets the status of the items of an order. The changes are queued and
+   * written in the background so the screen never waits for the database
+   **/
+  public static void UpdateItemStatus(Cafe esql, String login){
+    try{
+      if (!isStaff(esql, login)) {
+        System.out.println("Only employees and managers can update item status.");
+        return;
+      }
+      System.out.println("---------------------------");
+      System.out.println("-----UPDATE ITEM STATUS----");
+      System.out.println("Enter the order id");
+      int orderid = Integer.parseInt(in.readLine().trim());
+      boolean update = true;
+      while (update) {
+        // listed again on every pass, with what was written meanwhile
+        List<List<String>> items = esql.executeQueryAndReturnResult(
+          "SELECT itemName, status, comments FROM ItemStatus WHERE orderid = ?", orderid);
+        if (items.isEmpty()) {
+          System.out.println("No such order.");
+          return;
+        }
+        printRows(new String[] { "itemName", "status", "comments" }, items);
+        System.out.println("Enter the name of the item");
+        String itemName = in.readLine().trim();
+        boolean listed = false;
+        for (List<String> item : items)
+          listed |= item.get(0).trim().equals(itemName);
+        String status = null;
+        if (!listed) {
+          // the queue would only find out once the barista is gone
+          System.out.println("Order " + orderid + " has no item " + itemName + ".");
+        } else {
+          System.out.println("New status: 1. Hasn't started 2. Started 3. Finished");
+          switch(readChoice()){
+            case 1: status = NEW_ITEM_STATUS; break;
+            case 2: status = "Started"; break;
+            case 3: status = "Finished"; break;
+            default : System.out.println("Invalid Value");
+          }
+        }
+        if (status != null) {
+          System.out.println("Enter comments (empty keeps the current ones)");
+          String comments = in.readLine();
+          esql.queueItemStatus(orderid, itemName, status, comments);
+          System.out.println("Status update queued!");
+        }
+        System.out.println("Do you want to update another item of this order?");
+        System.out.println("1. Yes 2. No(go back to menu)");
+        switch(readChoice()){
+          case 1: break;
+          case 2: update = false; break;
+        }
+      }
+    }catch(Session.Closed e){
+      throw e;
+    }catch(Exception e){
+      System.err.println (e.getMessage());
+    }
+  }
+
+  /*
+   * Whether login is an employee or a manager
+   **/
+  static boolean isStaff(Cafe esql, String login) throws SQLException {
+    String type = esql.getUserType(login);
+    return "Employee".equals(type) || "Manager".equals(type);
+  }
+
+  /*
+   * Prints a page of orders and returns whether the user wants the next one
+   **/
+  static boolean printOrderPage(Cafe.OrderPage page) throws Exception {
+    if (page.orders.isEmpty()) {
+      System.out.println("No orders found.");
+      return false;
+    }
+    printRows(new String[] { "orderid", "login", "paid", "timeStampRecieved", "total" }, page.orders);
+    if (!page.hasMore) {
+      System.out.println("----------No more orders-----------");
+      return false;
+    }
+    System.out.println("1. Next page 2. Go back to main menu");
+    return readChoice() == 1;
+  }
+
+  /*
+   * Revenue per day, per hour and per item, for managers
+   **/
+  public static void SalesReports(Cafe esql, String login){
+    try{
+      if (!"Manager".equals(esql.getUserType(login))) {
+        System.out.println("Only managers can see sales reports.");
+        return;
+      }
+      boolean reports = true;
+      while (reports) {
+        System.out.println("---------------------------");
+        System.out.println("-------SALES REPORTS-------");
+        System.out.println("1. Sales per day");
+        System.out.println("2. Sales per hour of a day");
+        System.out.println("3. Best selling items");
+        System.out.println("9. Go back to main menu");
+        switch(readChoice()){
+          case 1:
+            System.out.println("Enter the first day (yyyy-mm-dd)");
+            String from = in.readLine().trim();
+            System.out.println("Enter the last day (yyyy-mm-dd)");
+            String to = in.readLine().trim();
+            printReport(esql.getDailySales(from, to));
+            break;
+          case 2:
+            System.out.println("Enter the day (yyyy-mm-dd)");
+            String day = in.readLine().trim();
+            printReport(esql.getHourlySales(day));
+            break;
+          case 3:
+            System.out.println("Enter the first day (yyyy-mm-dd)");
+            String first = in.readLine().trim();
+            System.out.println("Enter the last day (yyyy-mm-dd)");
+            String last = in.readLine().trim();
+            printReport(esql.getTopItems(first, last, 10));
+            break;
+          case 9: reports = false; break;
+          default : System.out.println("Unrecognized choice!"); break;
+        }
+      }
+    }catch(Session.Closed e){
+      throw e;
+    }catch(Exception e){
+      System.err.println (e.getMessage());
+    }
+  }
+
+  /*
+   * Tables a manager may export and the query exporting each; passwords
+   * are never exported
+   **/
+  static final String[][] EXPORT_TABLES = {
+    { "Menu", "SELECT * FROM Menu" },
+    { "Users", "SELECT login, phoneNum, favItems, type FROM Users" },
+    { "Orders", "SELECT * FROM Orders" },
+    { "ItemStatus", "SELECT * FROM ItemStatus" },
+    { "SalesDaily", "SELECT * FROM SalesDaily" },
+    { "SalesHourly", "SELECT * FROM SalesHourly" },
+    { "ItemSalesDaily", "SELECT * FROM ItemSalesDaily" }
+  };
+
+  // directory the exports are written to, on the machine running Cafe
+  static final String EXPORT_DIR = System.getProperty("cafe.exportDir", "exports");
+
+  /*
+   * Writes a whole table to a file of EXPORT_DIR as a table, CSV or JSON,
+   * for managers
+   **/
+  public static void ExportTable(Cafe esql, String login){
+    try{
+      if (!"Manager".equals(esql.getUserType(login))) {
+        System.out.println("Only managers can export tables.");
+        return;
+      }
+      System.out.println("Choose the table to export");
+      for (int i = 0; i < EXPORT_TABLES.length; ++i)
+        System.out.println((i + 1) + ". " + EXPORT_TABLES[i][0]);
+      int table = readChoice();
+      if (table < 1 || table > EXPORT_TABLES.length) {
+        System.out.println("Unrecognized choice!");
+        return;
+      }
+      System.out.println("Choose the format");
+      System.out.println("1. Table");
+      System.out.println("2. CSV");
+      System.out.println("3. JSON");
+      ResultWriter.Format format;
+      switch(readChoice()){
+        case 1: format = ResultWriter.Format.TABLE; break;
+        case 2: format = ResultWriter.Format.CSV; break;
+        case 3: format = ResultWriter.Format.JSON; break;
+        default : System.out.println("Unrecognized choice!"); return;
+      }
+      System.out.println("Enter the file name");
+      String name = in.readLine().trim();
+      if (name.isEmpty()) {
+        System.out.println("No file name given.");
+        return;
+      }
+      // a plain name, so the file cannot land outside EXPORT_DIR
+      if (!name.matches("[A-Za-z0-9_][A-Za-z0-9_.-]*")) {
+        System.out.println("Use a file name of letters, digits, '_', '.' and '-' only.");
+        return;
+      }
+      File dir = new File(EXPORT_DIR);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        System.out.println("Cannot create the export directory " + dir);
+        return;
+      }
+      String path = new File(dir, name).getPath();
+      long start = System.nanoTime();
+      int rows = esql.exportQuery(EXPORT_TABLES[table - 1][1], format, path);
+      System.out.println(String.format("Wrote %d rows to %s in %.1fs", rows, path, (System.nanoTime() - start) / 1e9));
+    }catch(Session.Closed e){
+      throw e;
+    }catch(Exception e){
+      System.err.println (e.getMessage());
+    }
+  }
+
+  /*
+   * Prints a report followed by the totals of its number columns
+   **/
+  static void printReport(TypedResult report) throws SQLException {
+    if (report.rowCount() == 0) {
+      System.out.println("No sales found.");
+      return;
+    }
+    String[] columns = new String[report.columnCount()];
+    for (int c = 0; c < columns.length; ++c)
+      columns[c] = report.columnName(c);
+    List<String[]> rows = new ArrayList<String[]>(report.rowCount() + 1);
+    for (int r = 0; r < report.rowCount(); ++r) {
+      String[] row = new String[columns.length];
+      for (int c = 0; c < columns.length; ++c)
+        row[c] = report.getString(r, c);
+      rows.add(row);
+    }
+    String[] totals = new String[columns.length];
+    totals[0] = "total";
+    for (int c = 1; c < columns.length; ++c)
+      totals[c] = report.isNumeric(c) ? String.format("%.2f", report.sum(c)) : "";
+    rows.add(totals);
+    ResultWriter.console().writeAll(columns, rows);
+  }
 
-  public static void PlaceOrder(Cafe esql){}
+  /*
+   * Prints rows already in memory as an aligned table
+   **/
+  static void printRows(String[] columns, List<List<String>> rows) throws SQLException {
+    List<String[]> table = new ArrayList<String[]>(rows.size());
+    for (List<String> row : rows)
+      table.add(row.toArray(new String[row.size()]));
+    ResultWriter.console().writeAll(columns, table);
+  }
 
-  public static void UpdateOrder(Cafe esql){}
+  /*
+   * Prints the statement statistics and the pool and cache counters
+   **/
+  public static void QueryStatistics(Cafe esql, String login){
+    try{
+      if (!"Manager".equals(esql.getUserType(login))) {
+        System.out.println("Only managers can see query statistics.");
+        return;
+      }
+    }catch(SQLException e){
+      System.err.println (e.getMessage());
+      return;
+    }
+    System.out.println("---------------------------");
+    System.out.println("-----QUERY STATISTICS------");
+    System.out.print(esql.getQueryStats(20));
+    System.out.println(esql.getPoolStats());
+    System.out.println(esql.getAdmissionStats());
+    System.out.println(esql.getResultCacheStats());
+    System.out.println(esql.getItemStatusWriterStats());
+    System.out.println(esql.getRecommendationStats());
+    System.out.println(esql.getOrderIdStats());
+    System.out.println(esql.getPartitionStats());
+    try{
+      List<IndexAdvisor.Advice> advice = esql.adviseIndexes();
+      if (advice.isEmpty())
+        return;
+      System.out.println("Missing indexes:");
+      for (IndexAdvisor.Advice a : advice)
+        System.out.println(a);
+      System.out.println("Create them now? 1. Yes 2. No");
+      if (readChoice() == 1)
+        esql.createIndexes(advice);
+    }catch(SQLException e){
+      System.err.println (e.getMessage());
+    }
+  }
 
 }//end Cafe
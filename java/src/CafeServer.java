@@ -0,0 +1,227 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the Cafe menus to many terminals at once from one process.
+ *
+ * Terminals connect over TCP, by default on the loopback interface only,
+ * and talk plain lines of text: the server sends the same menus and
+ * prompts the console shows, the terminal sends back one line per answer,
+ * so "nc localhost 7070" or telnet is a working terminal.
+ *
+ * Every connection gets its own Session and a thread of its own from a
+ * pool of at most maxSessions threads; a connection beyond that is told
+ * the cafe is busy and closed. All sessions share one Cafe, so its
+ * connection pool, caches, menu index and background writers serve the
+ * whole store; cafe.pool.max bounds the database connections in use.
+ *
+ * Usage:
+ *    java CafeServer &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [listenPort] [maxSessions]
+ *
+ * Other settings:
+ *    -Dcafe.server.bind=127.0.0.1      address to listen on
+ *    -Dcafe.server.idleMillis=1800000  idle time after which a session
+ *                                      is closed, 0 for never
+ *
+ */
+public class CafeServer {
+
+   private final Cafe _esql;
+   private final ServerSocket _server;
+   private final int _idleMillis;
+   private final ThreadPoolExecutor _sessions;
+
+   // sockets of the running sessions, closed by close()
+   private final Set<Socket> _open = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+   private final AtomicInteger _ids = new AtomicInteger();
+   private final AtomicLong _accepted = new AtomicLong();
+   private final AtomicLong _rejected = new AtomicLong();
+   private volatile boolean _closed = false;
+
+   /**
+    * Starts listening; sessions are served once run() is called.
+    *
+    * @param esql the database all sessions share
+    * @param bind the address to listen on
+    * @param port the TCP port to listen on
+    * @param maxSessions the number of sessions served at once
+    * @param idleMillis idle time after which a session is closed, 0 for never
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public CafeServer(Cafe esql, InetAddress bind, int port, int maxSessions, int idleMillis) throws IOException {
+      this._esql = esql;
+      this._idleMillis = idleMillis;
+      this._server = new ServerSocket(port, 50, bind);
+      // no queue: a session either gets a thread or is turned away at once
+      this._sessions = new ThreadPoolExecutor(maxSessions, maxSessions, 60L, TimeUnit.SECONDS,
+                                              new SynchronousQueue<Runnable>(),
+                                              new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "cafe-session");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this._sessions.allowCoreThreadTimeOut(true);
+   }//end CafeServer
+
+   /**
+    * The main execution method
+    *
+    * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [listenPort] [maxSessions]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + CafeServer.class.getName() +
+            " <dbname> <port> <user> [listenPort] [maxSessions]");
+         return;
+      }//end if
+      int listenPort = args.length > 3 ? Integer.parseInt(args[3]) : 7070;
+      int maxSessions = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+      // the screens print to System.out, which from now on is the session's
+      Session.dispatch();
+      Class.forName("org.postgresql.Driver").newInstance();
+      final Cafe esql = new Cafe(args[0], args[1], args[2], "");
+      esql.startPartitionMaintenance();
+      final CafeServer server = new CafeServer(
+         esql, InetAddress.getByName(System.getProperty("cafe.server.bind", "127.0.0.1")),
+         listenPort, maxSessions, Integer.getInteger("cafe.server.idleMillis", 30 * 60 * 1000));
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            server.close();
+            esql.cleanup();
+         }
+      });
+      System.out.println("Serving up to " + maxSessions + " sessions on "
+                         + server._server.getLocalSocketAddress());
+      server.run();
+   }//end main
+
+   /**
+    * Accepts terminals until close() is called.
+    */
+   public void run() {
+      while (!this._closed) {
+         Socket socket;
+         try{
+            socket = this._server.accept();
+         }catch (IOException e){
+            if (!this._closed)
+               System.err.println("Accepting a session failed: " + e.getMessage());
+            continue;
+         }//end try
+         start(socket);
+      }//end while
+   }//end run
+
+   /**
+    * Stops accepting terminals and disconnects the running sessions.
+    */
+   public void close() {
+      this._closed = true;
+      try{
+         this._server.close();
+      }catch (IOException e){
+         // not listening anymore either way
+      }//end try
+      for (Socket socket : this._open)
+         closeQuietly(socket);
+      this._sessions.shutdown();
+      try{
+         this._sessions.awaitTermination(5, TimeUnit.SECONDS);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+   /**
+    * @return the session counters
+    */
+   public String stats() {
+      return String.format("sessions: active=%d largest=%d accepted=%d rejected=%d",
+                           this._sessions.getActiveCount(), this._sessions.getLargestPoolSize(),
+                           this._accepted.get(), this._rejected.get());
+   }//end stats
+
+   /*
+    * Hands a new connection to a session thread, or turns it away.
+    */
+   private void start(final Socket socket) {
+      final int id = this._ids.incrementAndGet();
+      try{
+         socket.setTcpNoDelay(true);
+         socket.setSoTimeout(this._idleMillis);
+         this._sessions.execute(new Runnable() {
+            public void run() { serve(id, socket); }
+         });
+         this._accepted.incrementAndGet();
+      }catch (RejectedExecutionException e){
+         this._rejected.incrementAndGet();
+         try{
+            socket.getOutputStream().write("The cafe is busy, please try again later.\r\n".getBytes("UTF-8"));
+         }catch (IOException ignored){
+            // leaving anyway
+         }//end try
+         closeQuietly(socket);
+      }catch (SocketException e){
+         closeQuietly(socket);
+      }//end try
+   }//end start
+
+   /*
+    * Body of a session thread.
+    */
+   private void serve(int id, Socket socket) {
+      String name = id + "@" + socket.getRemoteSocketAddress();
+      Thread.currentThread().setName("cafe-session-" + name);
+      this._open.add(socket);
+      try{
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+         // flushed by the session before it waits for input
+         PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream(), 8192), false, "UTF-8");
+         Session session = new Session(name, in, out, out, StandardCharsets.UTF_8);
+         Session.console().out().println("Session " + name + " opened, " + stats());
+         try{
+            out.println("Welcome to the cafe, session " + id);
+            Cafe.runSession(this._esql, session);
+         }finally{
+            out.flush();
+            Session.console().out().println("Session " + name + " closed");
+         }//end try
+      }catch (IOException e){
+         Session.console().err().println("Session " + name + " failed: " + e.getMessage());
+      }finally{
+         this._open.remove(socket);
+         closeQuietly(socket);
+      }//end try
+   }//end serve
+
+   private static void closeQuietly(Socket socket) {
+      try{
+         socket.close();
+      }catch (IOException e){
+         // nothing more to say to it
+      }//end try
+   }//end closeQuietly
+
+}//end CafeServer
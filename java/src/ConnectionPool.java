@@ -0,0 +1,362 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of physical connections to the Cafe database.  Callers
+ * borrow a connection, use it for a single statement or transaction and
+ * give it back, so that several users can run queries at the same time.
+ *
+ * The pool opens minSize connections up front, grows up to maxSize on
+ * demand, validates idle connections before handing them out and closes
+ * connections that stayed idle for too long (never going below minSize).
+ *
+ */
+public class ConnectionPool {
+
+   // connection parameters
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   // pool sizing and timing configuration
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _maxWaitMillis;
+   private final long _idleTimeoutMillis;
+   private final long _validationIntervalMillis;
+   private final int _statementCacheSize;
+
+   // decides whose work gets a connection when they run short
+   private final AdmissionController _admission;
+
+   // idle connections, most recently released first. Guarded by this.
+   private final Deque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+
+   // number of open connections, idle or borrowed. Guarded by this.
+   private int _open = 0;
+   private boolean _closed = false;
+
+   // background idle eviction
+   private final Timer _evictor;
+
+   // metrics
+   private final AtomicLong _borrows = new AtomicLong();
+   private final AtomicLong _waits = new AtomicLong();
+   private final AtomicLong _waitNanos = new AtomicLong();
+   private final AtomicLong _maxWaitNanos = new AtomicLong();
+   private final AtomicLong _timeouts = new AtomicLong();
+   private final AtomicLong _created = new AtomicLong();
+   private final AtomicLong _evicted = new AtomicLong();
+   private final AtomicLong _invalid = new AtomicLong();
+   private final AtomicLong _statementHits = new AtomicLong();
+   private final AtomicLong _statementMisses = new AtomicLong();
+
+   /**
+    * Creates the pool and warms it up with minSize connections.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize number of connections kept open even when idle
+    * @param maxSize upper bound on the number of open connections
+    * @param maxWaitMillis how long borrow() waits for a free connection
+    * @param idleTimeoutMillis idle time after which extra connections are closed
+    * @param validationIntervalMillis idle time after which a connection is
+    *        re-validated before it is handed out
+    * @param statementCacheSize number of prepared statements cached per connection
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool(String url, String user, String passwd,
+                         int minSize, int maxSize, long maxWaitMillis,
+                         long idleTimeoutMillis, long validationIntervalMillis,
+                         int statementCacheSize) throws SQLException {
+      if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+         throw new IllegalArgumentException("Invalid pool size: min=" + minSize + " max=" + maxSize);
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = minSize;
+      this._maxSize = maxSize;
+      this._maxWaitMillis = maxWaitMillis;
+      this._idleTimeoutMillis = idleTimeoutMillis;
+      this._validationIntervalMillis = validationIntervalMillis;
+      this._statementCacheSize = statementCacheSize;
+      this._admission = new AdmissionController(maxSize);
+
+      // warm up: open the minimum number of connections right away so the
+      // first users do not pay for the connection handshake.
+      try{
+         for (int i = 0; i < minSize; ++i) {
+            PooledConnection pc = open();
+            synchronized (this) {
+               ++this._open;
+               this._idle.addFirst(pc);
+            }
+         }
+      }catch (SQLException e){
+         close();
+         throw e;
+      }//end try
+
+      this._evictor = new Timer("cafe-pool-evictor", true);
+      long period = Math.max(1000L, idleTimeoutMillis / 2);
+      this._evictor.schedule(new TimerTask() {
+         public void run() { evictIdle(); }
+      }, period, period);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection from the pool, opening a new one if none is idle
+    * and the pool has not reached its maximum size. Otherwise waits up to
+    * maxWaitMillis for another caller to release one.
+    *
+    * The work of the calling thread is admitted by the AdmissionController
+    * first, and the session of the connection gets the statement timeout
+    * of its class.
+    *
+    * @return a validated connection that must be given back with release()
+    * @throws java.sql.SQLException when no connection became available in time
+    */
+   public PooledConnection borrow() throws SQLException {
+      AdmissionController.WorkClass admitted = this._admission.acquire();
+      PooledConnection pc = null;
+      boolean ready = false;
+      try{
+         pc = take();
+         pc.timeout(this._admission.timeoutSeconds(
+            admitted != null ? admitted : AdmissionController.current()));
+         ready = true;
+      }finally{
+         if (!ready) {
+            // a connection whose timeout could not be set is not reused
+            if (pc != null) {
+               pc.close();
+               discarded();
+            }//end if
+            this._admission.release(admitted);
+         }//end if
+      }//end try
+      pc.admitted = admitted;
+      return pc;
+   }//end borrow
+
+   /*
+    * Takes an idle connection or opens one, see borrow().
+    */
+   private PooledConnection take() throws SQLException {
+      long start = System.nanoTime();
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos(this._maxWaitMillis);
+      boolean waited = false;
+      PooledConnection pc = null;
+      while (pc == null) {
+         boolean create = false;
+         synchronized (this) {
+            while (!this._closed && this._idle.isEmpty() && this._open >= this._maxSize) {
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0) {
+                  this._timeouts.incrementAndGet();
+                  throw new SQLException("Timed out after " + this._maxWaitMillis
+                                         + " ms waiting for a database connection");
+               }//end if
+               waited = true;
+               try{
+                  TimeUnit.NANOSECONDS.timedWait(this, remaining);
+               }catch (InterruptedException e){
+                  Thread.currentThread().interrupt();
+                  throw new SQLException("Interrupted while waiting for a database connection");
+               }//end try
+            }//end while
+            if (this._closed)
+               throw new SQLException("Connection pool is closed");
+            if (!this._idle.isEmpty()) {
+               pc = this._idle.pollFirst();
+            } else {
+               // reserve the slot now, open the connection outside the lock
+               ++this._open;
+               create = true;
+            }//end if
+         }//end synchronized
+
+         if (create) {
+            try{
+               pc = open();
+            }catch (SQLException e){
+               discarded();
+               throw e;
+            }//end try
+         } else if (!validate(pc)) {
+            this._invalid.incrementAndGet();
+            pc.close();
+            discarded();
+            pc = null;
+         }//end if
+      }//end while
+
+      long waitNanos = System.nanoTime() - start;
+      this._borrows.incrementAndGet();
+      if (waited) {
+         this._waits.incrementAndGet();
+         this._waitNanos.addAndGet(waitNanos);
+         long max = this._maxWaitNanos.get();
+         while (waitNanos > max && !this._maxWaitNanos.compareAndSet(max, waitNanos))
+            max = this._maxWaitNanos.get();
+      }//end if
+      return pc;
+   }//end take
+
+   /**
+    * Returns a borrowed connection to the pool. Connections that were closed
+    * while borrowed are dropped instead.
+    *
+    * @param pc the connection obtained from borrow()
+    */
+   public void release(PooledConnection pc) {
+      if (pc == null)
+         return;
+      this._admission.release(pc.admitted);
+      pc.admitted = null;
+      boolean broken;
+      try{
+         broken = pc.connection().isClosed();
+      }catch (SQLException e){
+         broken = true;
+      }//end try
+      if (broken) {
+         discarded();
+         return;
+      }//end if
+      pc.lastReleased = System.currentTimeMillis();
+      synchronized (this) {
+         if (!this._closed) {
+            this._idle.addFirst(pc);
+            this.notify();
+            return;
+         }//end if
+      }//end synchronized
+      // the pool was closed while the connection was out
+      pc.close();
+      discarded();
+   }//end release
+
+   /**
+    * Closes all idle connections and stops handing out new ones. Borrowed
+    * connections are closed when they are released.
+    */
+   public void close() {
+      if (this._evictor != null)
+         this._evictor.cancel();
+      Deque<PooledConnection> toClose;
+      synchronized (this) {
+         this._closed = true;
+         toClose = new ArrayDeque<PooledConnection>(this._idle);
+         this._open -= this._idle.size();
+         this._idle.clear();
+         this.notifyAll();
+      }//end synchronized
+      for (PooledConnection pc : toClose)
+         pc.close();
+   }//end close
+
+   /**
+    * @return the admission control in front of borrow()
+    */
+   public AdmissionController admission() {
+      return this._admission;
+   }//end admission
+
+   /**
+    * @return a one line summary of the pool state and its wait-time metrics
+    */
+   public String stats() {
+      int open, idle;
+      synchronized (this) {
+         open = this._open;
+         idle = this._idle.size();
+      }//end synchronized
+      long waits = this._waits.get();
+      double avgWaitMs = waits == 0 ? 0.0 : this._waitNanos.get() / 1e6 / waits;
+      return String.format(
+         "pool: open=%d idle=%d min=%d max=%d borrows=%d waits=%d avgWait=%.3fms maxWait=%.3fms " +
+         "timeouts=%d created=%d evicted=%d invalid=%d stmtCacheHits=%d stmtCacheMisses=%d",
+         open, idle, this._minSize, this._maxSize, this._borrows.get(), waits, avgWaitMs,
+         this._maxWaitNanos.get() / 1e6, this._timeouts.get(), this._created.get(),
+         this._evicted.get(), this._invalid.get(), this._statementHits.get(),
+         this._statementMisses.get());
+   }//end stats
+
+   /*
+    * Opens a new physical connection.
+    */
+   private PooledConnection open() throws SQLException {
+      Connection c = DriverManager.getConnection(this._url, this._user, this._passwd);
+      this._created.incrementAndGet();
+      return new PooledConnection(c, new StatementCache(this._statementCacheSize,
+                                                        this._statementHits,
+                                                        this._statementMisses));
+   }//end open
+
+   /*
+    * Gives up the slot of a connection that was closed or failed to open.
+    */
+   private synchronized void discarded() {
+      --this._open;
+      this.notify();
+   }//end discarded
+
+   /*
+    * Checks that an idle connection is still usable. Connections that were
+    * used recently are trusted without a round trip to the server.
+    */
+   private boolean validate(PooledConnection pc) {
+      try{
+         if (pc.connection().isClosed())
+            return false;
+         if (System.currentTimeMillis() - pc.lastReleased < this._validationIntervalMillis)
+            return true;
+         Statement stmt = pc.connection().createStatement();
+         try{
+            stmt.executeQuery("SELECT 1").close();
+         }finally{
+            stmt.close();
+         }//end try
+         return true;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end validate
+
+   /*
+    * Closes connections that have been idle longer than the idle timeout,
+    * keeping at least minSize connections open.
+    */
+   private void evictIdle() {
+      long cutoff = System.currentTimeMillis() - this._idleTimeoutMillis;
+      Deque<PooledConnection> toClose = new ArrayDeque<PooledConnection>();
+      synchronized (this) {
+         // the least recently used connections sit at the end of the deque
+         Iterator<PooledConnection> it = this._idle.descendingIterator();
+         while (it.hasNext() && this._open > this._minSize) {
+            PooledConnection pc = it.next();
+            if (pc.lastReleased > cutoff)
+               break;
+            it.remove();
+            --this._open;
+            toClose.add(pc);
+         }//end while
+      }//end synchronized
+      for (PooledConnection pc : toClose) {
+         pc.close();
+         this._evicted.incrementAndGet();
+      }//end for
+   }//end evictIdle
+
+}//end ConnectionPool
@@ -0,0 +1,126 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, expiring cache of recently verified logins. Only a salted
+ * SHA-256 digest of each password is kept, never the password itself.
+ *
+ */
+public class CredentialCache {
+
+   private static class Verified {
+      final byte[] digest;
+      final long expires;
+      Verified(byte[] digest, long expires) {
+         this.digest = digest;
+         this.expires = expires;
+      }
+   }//end Verified
+
+   private final long _ttlMillis;
+
+   // per-process salt so digests cannot be compared against other systems
+   private final byte[] _salt = new byte[16];
+
+   // verified logins in access order, guarded by this
+   private final LinkedHashMap<String, Verified> _entries;
+
+   // the generation of the last invalidate() of each login, and the
+   // highest one forgotten to keep the map bounded, guarded by this
+   private final LinkedHashMap<String, Long> _invalidated;
+   private long _generation;
+   private long _forgotten;
+
+   /**
+    * @param capacity maximum number of cached logins
+    * @param ttlMillis how long a verified login is trusted without the database
+    */
+   public CredentialCache(final int capacity, long ttlMillis) {
+      this._ttlMillis = ttlMillis;
+      new SecureRandom().nextBytes(this._salt);
+      this._entries = new LinkedHashMap<String, Verified>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+            return size() > capacity;
+         }
+      };
+      this._invalidated = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+         protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() <= capacity)
+               return false;
+            CredentialCache.this._forgotten = eldest.getValue();
+            return true;
+         }
+      };
+   }//end CredentialCache
+
+   /**
+    * @return the generation of login to pass to remember(), taken before
+    *         the password is checked against the database
+    */
+   public synchronized long generation(String login) {
+      return this._generation;
+   }//end generation
+
+   /**
+    * @return true if login was verified with this password recently
+    */
+   public boolean verify(String login, String password) {
+      Verified e;
+      synchronized (this) {
+         e = this._entries.get(login);
+         if (e == null)
+            return false;
+         if (e.expires < System.currentTimeMillis()) {
+            this._entries.remove(login);
+            return false;
+         }//end if
+      }//end synchronized
+      return MessageDigest.isEqual(e.digest, digest(login, password));
+   }//end verify
+
+   /**
+    * Records that login and password were verified against the database,
+    * unless login was invalidated since generation: the check may then
+    * have read the password that was replaced.
+    *
+    * @param generation what generation(login) returned before the check
+    */
+   public void remember(String login, String password, long generation) {
+      Verified e = new Verified(digest(login, password), System.currentTimeMillis() + this._ttlMillis);
+      synchronized (this) {
+         Long invalidated = this._invalidated.get(login);
+         if ((invalidated != null && invalidated > generation) || this._forgotten > generation)
+            return;
+         this._entries.put(login, e);
+      }//end synchronized
+   }//end remember
+
+   /**
+    * Forgets login, e.g. after its password was changed. A check of login
+    * still running is not remembered.
+    */
+   public synchronized void invalidate(String login) {
+      this._entries.remove(login);
+      this._invalidated.remove(login);
+      this._invalidated.put(login, ++this._generation);
+   }//end invalidate
+
+   private byte[] digest(String login, String password) {
+      try{
+         MessageDigest md = MessageDigest.getInstance("SHA-256");
+         md.update(this._salt);
+         md.update(login.getBytes(StandardCharsets.UTF_8));
+         md.update((byte) 0);
+         md.update(password.getBytes(StandardCharsets.UTF_8));
+         return md.digest();
+      }catch (NoSuchAlgorithmException e){
+         // every Java platform is required to support SHA-256
+         throw new IllegalStateException(e);
+      }//end try
+   }//end digest
+
+}//end CredentialCache
@@ -0,0 +1,301 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Proposes the indexes missing for a set of statement shapes, such as the
+ * ones QueryStats has seen.
+ *
+ * Every "FROM table WHERE ..." (or UPDATE, DELETE) of a shape is read for
+ * the columns it filters on: columns compared with = come first, in the
+ * order they appear, followed by the first column compared by range or
+ * LIKE 'prefix%', or else the first ORDER BY column. The statement needs
+ * an index unless one of the table's indexes starts with one of those
+ * columns. Shapes that are too complex to read this way, e.g. joins, are
+ * skipped, so the advice errs on the side of proposing nothing.
+ *
+ */
+public class IndexAdvisor {
+
+   /**
+    * A proposed index and the statements it is for.
+    */
+   public static class Advice {
+      public final String table;
+      public final List<String> columns;
+      public final List<String> statements = new ArrayList<String>();
+      Advice(String table, List<String> columns) {
+         this.table = table;
+         this.columns = columns;
+      }
+      /**
+       * @return the index name, derived from the table and columns
+       */
+      public String name() {
+         StringBuilder sb = new StringBuilder(this.table);
+         for (String column : this.columns)
+            sb.append('_').append(column);
+         return sb.append("_idx").toString();
+      }
+      /**
+       * @return the statement creating the index without blocking writes
+       */
+      public String ddl() {
+         return ddl("CONCURRENTLY IF NOT EXISTS " + name() + " ON ");
+      }
+      /*
+       * The index of a partitioned table itself, without the indexes of
+       * its partitions, see create().
+       */
+      String parentDdl() {
+         return ddl("IF NOT EXISTS " + name() + " ON ONLY ");
+      }
+      private String ddl(String how) {
+         StringBuilder sb = new StringBuilder("CREATE INDEX ");
+         sb.append(how).append(this.table).append(" (");
+         for (int i = 0; i < this.columns.size(); ++i)
+            sb.append(i == 0 ? "" : ", ").append(this.columns.get(i));
+         return sb.append(')').toString();
+      }
+      public String toString() {
+         return ddl() + "  -- " + this.statements.size() + " statement(s), e.g. " + this.statements.get(0);
+      }
+   }//end Advice
+
+   // a table a statement reads or writes, followed by its filter
+   private static final Pattern TARGET = Pattern.compile(
+      "\\b(?:FROM|UPDATE)\\s+(\\w+)(?:\\s+(?:AS\\s+)?(?!WHERE\\b|SET\\b)(\\w+))?\\s+(?:SET\\s+.*?\\s+)?WHERE\\s+",
+      Pattern.CASE_INSENSITIVE);
+   // the column of a predicate and its operator
+   private static final Pattern PREDICATE = Pattern.compile(
+      "^\\(?\\s*(?:\\w+\\.)?(\\w+)\\s*(?:,[^)]*\\))?\\s*(=\\s*ANY|=|<=|>=|<>|!=|<|>|NOT\\s+LIKE|LIKE|ILIKE|IN|BETWEEN|IS)",
+      Pattern.CASE_INSENSITIVE);
+   private static final Pattern ORDER_BY = Pattern.compile(
+      "^\\s*(?:\\w+\\.)?(\\w+)", Pattern.CASE_INSENSITIVE);
+
+   private final Cafe _esql;
+
+   // lower case table name -> its columns, and the leading columns of its indexes
+   private final Map<String, Set<String>> _columns = new HashMap<String, Set<String>>();
+   private final Map<String, Set<String>> _leading = new HashMap<String, Set<String>>();
+
+   /**
+    * @param esql the database whose catalog is consulted
+    */
+   public IndexAdvisor(Cafe esql) {
+      this._esql = esql;
+   }//end IndexAdvisor
+
+   /**
+    * @param shapes statement shapes, e.g. QueryStats.shapes()
+    * @return the indexes that would serve statements no index serves now,
+    *         the one serving the most statements first
+    * @throws java.sql.SQLException when the catalog could not be read
+    */
+   public List<Advice> advise(Collection<String> shapes) throws SQLException {
+      loadCatalog();
+      Map<String, Advice> advice = new LinkedHashMap<String, Advice>();
+      for (String shape : shapes) {
+         Matcher m = TARGET.matcher(shape);
+         int from = 0;
+         while (m.find(from)) {
+            from = m.end();
+            String table = m.group(1).toLowerCase(Locale.ROOT);
+            Set<String> columns = this._columns.get(table);
+            if (columns == null)
+               continue;   // a subquery alias, a function or a catalog table
+            List<String> wanted = wanted(shape.substring(m.end()), columns);
+            if (wanted.isEmpty() || covered(table, wanted))
+               continue;
+            String key = table + wanted;
+            Advice a = advice.get(key);
+            if (a == null)
+               advice.put(key, a = new Advice(table, wanted));
+            if (!a.statements.contains(shape))
+               a.statements.add(shape);
+         }//end while
+      }//end for
+      List<Advice> list = new ArrayList<Advice>(advice.values());
+      Collections.sort(list, new Comparator<Advice>() {
+         public int compare(Advice a, Advice b) {
+            return b.statements.size() - a.statements.size();
+         }
+      });
+      return list;
+   }//end advise
+
+   /**
+    * Creates the advised indexes one at a time, without blocking writes.
+    * A partitioned table cannot be indexed CONCURRENTLY, so its index is
+    * created on the table alone and the index of every partition, built
+    * concurrently, is attached to it.
+    *
+    * @param advice the indexes to create
+    * @throws java.sql.SQLException when an index could not be built
+    */
+   public void create(List<Advice> advice) throws SQLException {
+      for (Advice a : advice) {
+         long start = System.nanoTime();
+         List<List<String>> partitions = this._esql.executeQueryAndReturnResult(
+            "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+            "WHERE i.inhparent = CAST(? AS regclass) ORDER BY c.relname", a.table);
+         if (partitions.isEmpty()) {
+            this._esql.executeUpdate(a.ddl());
+         } else {
+            this._esql.executeUpdate(a.parentDdl());
+            for (List<String> row : partitions) {
+               Advice p = new Advice(row.get(0).trim(), a.columns);
+               this._esql.executeUpdate(p.ddl());
+               this._esql.executeUpdate("ALTER INDEX " + a.name() + " ATTACH PARTITION " + p.name());
+            }//end for
+         }//end if
+         System.out.println(String.format("Created %s in %.1fs", a.name(), (System.nanoTime() - start) / 1e9));
+      }//end for
+   }//end create
+
+   /*
+    * The columns an index would need for the WHERE clause and what follows
+    * it up to the end of the statement or of its subquery.
+    */
+   static List<String> wanted(String rest, Set<String> columns) {
+      String where = rest;
+      String orderBy = null;
+      int depth = 0;
+      for (int i = 0; i < rest.length(); ++i) {
+         char c = rest.charAt(i);
+         if (c == '(') {
+            ++depth;
+         } else if (c == ')') {
+            if (--depth < 0) {
+               where = rest.substring(0, i);
+               break;
+            }//end if
+         } else if (depth == 0 && startsWithWord(rest, i, "ORDER BY")) {
+            where = rest.substring(0, i);
+            orderBy = rest.substring(i + 8);
+            break;
+         } else if (depth == 0 && (startsWithWord(rest, i, "GROUP BY") || startsWithWord(rest, i, "LIMIT")
+                                   || startsWithWord(rest, i, "RETURNING") || startsWithWord(rest, i, "FOR UPDATE"))) {
+            where = rest.substring(0, i);
+            break;
+         }//end if
+      }//end for
+      List<String> equal = new ArrayList<String>();
+      String range = null;
+      for (String predicate : splitAnd(where)) {
+         String p = predicate.trim();
+         if (p.regionMatches(true, 0, "NOT ", 0, 4) || p.toUpperCase(Locale.ROOT).contains(" OR "))
+            continue;   // not served by a plain btree prefix
+         Matcher m = PREDICATE.matcher(p);
+         if (!m.find())
+            continue;
+         String column = m.group(1).toLowerCase(Locale.ROOT);
+         String op = m.group(2).toUpperCase(Locale.ROOT).replaceAll("\\s+", " ");
+         if (!columns.contains(column))
+            continue;
+         if (op.equals("=") || op.equals("= ANY") || op.equals("IN")) {
+            if (!equal.contains(column))
+               equal.add(column);
+         } else if (range == null && (op.equals("<") || op.equals(">") || op.equals("<=") || op.equals(">=")
+                                      || op.equals("BETWEEN") || (op.equals("LIKE") && !p.matches("(?is).*LIKE\\s+'%.*")))) {
+            range = column;
+         }//end if
+      }//end for
+      if (range == null && orderBy != null) {
+         Matcher m = ORDER_BY.matcher(orderBy);
+         if (m.find() && columns.contains(m.group(1).toLowerCase(Locale.ROOT)))
+            range = m.group(1).toLowerCase(Locale.ROOT);
+      }//end if
+      if (range != null && !equal.contains(range))
+         equal.add(range);
+      return equal;
+   }//end wanted
+
+   /*
+    * Whether an existing index starts with one of the wanted columns.
+    */
+   private boolean covered(String table, List<String> wanted) {
+      Set<String> leading = this._leading.get(table);
+      if (leading == null)
+         return false;
+      for (String column : wanted)
+         if (leading.contains(column))
+            return true;
+      return false;
+   }//end covered
+
+   private void loadCatalog() throws SQLException {
+      this._columns.clear();
+      this._leading.clear();
+      for (List<String> row : this._esql.executeQueryAndReturnResult(
+             "SELECT lower(table_name), lower(column_name) FROM information_schema.columns " +
+             "WHERE table_schema = current_schema()")) {
+         Set<String> columns = this._columns.get(row.get(0));
+         if (columns == null)
+            this._columns.put(row.get(0), columns = new HashSet<String>());
+         columns.add(row.get(1));
+      }//end for
+      for (List<String> row : this._esql.executeQueryAndReturnResult(
+             "SELECT lower(t.relname), lower(a.attname) FROM pg_index x " +
+             "JOIN pg_class t ON t.oid = x.indrelid " +
+             "JOIN pg_namespace n ON n.oid = t.relnamespace " +
+             "JOIN pg_attribute a ON a.attrelid = x.indrelid AND a.attnum = x.indkey[0] " +
+             "WHERE n.nspname = current_schema() AND x.indisvalid")) {
+         Set<String> leading = this._leading.get(row.get(0));
+         if (leading == null)
+            this._leading.put(row.get(0), leading = new HashSet<String>());
+         leading.add(row.get(1));
+      }//end for
+   }//end loadCatalog
+
+   /*
+    * Splits a condition on the ANDs outside parentheses; the AND of a
+    * BETWEEN stays with it.
+    */
+   private static List<String> splitAnd(String where) {
+      List<String> parts = new ArrayList<String>();
+      int depth = 0;
+      int start = 0;
+      boolean between = false;
+      for (int i = 0; i < where.length(); ++i) {
+         char c = where.charAt(i);
+         if (c == '(')
+            ++depth;
+         else if (c == ')')
+            --depth;
+         else if (depth == 0 && startsWithWord(where, i, "BETWEEN"))
+            between = true;
+         else if (depth == 0 && startsWithWord(where, i, "AND")) {
+            if (between) {
+               between = false;
+               continue;
+            }//end if
+            parts.add(where.substring(start, i));
+            start = i + 3;
+         }//end if
+      }//end for
+      parts.add(where.substring(start));
+      return parts;
+   }//end splitAnd
+
+   private static boolean startsWithWord(String s, int i, String word) {
+      if (!s.regionMatches(true, i, word, 0, word.length()))
+         return false;
+      if (i > 0 && Character.isLetterOrDigit(s.charAt(i - 1)))
+         return false;
+      int end = i + word.length();
+      return end == s.length() || !Character.isLetterOrDigit(s.charAt(end));
+   }//end startsWithWord
+
+}//end IndexAdvisor
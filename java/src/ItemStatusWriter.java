@@ -0,0 +1,387 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind queue for ItemStatus changes. Staff screens hand status
+ * updates to submit() and carry on; a background thread writes them in
+ * batched transactions.
+ *
+ * Updates wait in memory keyed by (orderid, itemName): a newer update of
+ * the same item replaces the waiting one, so an item clicked through
+ * several statuses between two flushes is written once. A batch is written
+ * when batchSize items are waiting or the oldest has waited flushMillis.
+ * When maxPending items are waiting submit() blocks until the writer
+ * catches up. close() writes everything still waiting before it returns.
+ *
+ * An update is written only if the item was not changed after submit(),
+ * e.g. by a customer editing the comments with Cafe.updateOrderItem, and
+ * stamps lastUpdated with the time of the write, as the customer's edits
+ * do; this takes the clocks of the client and the server to agree. An
+ * update finding the item changed is not written: it is reported to the
+ * session that submitted it and counted as a conflict. Updates without
+ * comments keep the stored ones.
+ *
+ * When a batch fails its updates are written one by one, so one bad
+ * update does not hold back the others. An update that fails on its own
+ * is retried, unless the item was updated again in the meantime, up to
+ * MAX_ATTEMPTS times. Updates of items that no longer exist are reported
+ * and counted as unmatched.
+ *
+ */
+public class ItemStatusWriter {
+
+   private static final String UPDATE =
+      "UPDATE ItemStatus SET status = ?, comments = COALESCE(?, comments), lastUpdated = now() " +
+      "WHERE orderid = ? AND itemName = ? AND lastUpdated <= ?";
+
+   // attempts to write an update before it is dropped
+   private static final int MAX_ATTEMPTS = 3;
+
+   /**
+    * One waiting status change.
+    */
+   static class Update {
+      final int orderid;
+      final String itemName;
+      final String status;
+      final String comments;
+      final Timestamp at;
+      // told about a conflict, null for a thread without a session
+      final Session session;
+      int attempts = 0;
+      Update(int orderid, String itemName, String status, String comments, Timestamp at, Session session) {
+         this.orderid = orderid;
+         this.itemName = itemName;
+         this.status = status;
+         this.comments = comments;
+         this.at = at;
+         this.session = session;
+      }
+      String key() { return key(this.orderid, this.itemName); }
+      static String key(int orderid, String itemName) { return orderid + "\u001f" + itemName; }
+   }//end Update
+
+   private final Cafe _esql;
+   private final int _batchSize;
+   private final int _maxPending;
+   private final long _flushNanos;
+
+   private final ReentrantLock _lock = new ReentrantLock();
+   // signalled when room frees up in _pending
+   private final Condition _notFull = this._lock.newCondition();
+   // signalled when the writer may have work to do
+   private final Condition _work = this._lock.newCondition();
+   // signalled when _pending is empty and no batch is being written
+   private final Condition _drained = this._lock.newCondition();
+
+   // updates waiting to be written, oldest first
+   private LinkedHashMap<String, Update> _pending = new LinkedHashMap<String, Update>();
+   // System.nanoTime() when the oldest waiting update arrived
+   private long _oldestNanos = 0;
+   private boolean _writing = false;
+   private boolean _flushRequested = false;
+   private boolean _closed = false;
+
+   private final Thread _writer;
+
+   private final AtomicLong _submitted = new AtomicLong();
+   private final AtomicLong _coalesced = new AtomicLong();
+   private final AtomicLong _written = new AtomicLong();
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _dropped = new AtomicLong();
+   private final AtomicLong _unmatched = new AtomicLong();
+   private final AtomicLong _conflicts = new AtomicLong();
+   private final AtomicLong _blockedNanos = new AtomicLong();
+
+   /**
+    * @param esql the database the updates are written to
+    * @param batchSize number of waiting items that triggers a write
+    * @param maxPending number of waiting items beyond which submit() blocks
+    * @param flushMillis longest time an update waits before it is written
+    */
+   public ItemStatusWriter(Cafe esql, int batchSize, int maxPending, long flushMillis) {
+      this._esql = esql;
+      this._batchSize = Math.max(1, batchSize);
+      this._maxPending = Math.max(this._batchSize, maxPending);
+      this._flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushMillis));
+      this._writer = new Thread(AdmissionController.runAs(AdmissionController.WorkClass.STAFF, new Runnable() {
+         public void run() { writeLoop(); }
+      }), "cafe-item-status-writer");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end ItemStatusWriter
+
+   /**
+    * Queues a status change of one item of an order. Returns as soon as the
+    * change is queued, or blocks while the queue is full.
+    *
+    * @param orderid the order
+    * @param itemName the ordered item
+    * @param status the new status
+    * @param comments the new comments, blank to keep the stored ones
+    * @throws InterruptedException when interrupted while the queue is full
+    * @throws IllegalStateException when the writer has been closed
+    */
+   public void submit(int orderid, String itemName, String status, String comments) throws InterruptedException {
+      if (comments != null && comments.trim().isEmpty())
+         comments = null;
+      Update update = new Update(orderid, itemName.trim(), status, comments,
+                                 new Timestamp(System.currentTimeMillis()), Session.attached());
+      this._lock.lock();
+      try{
+         if (!this._pending.containsKey(update.key()) && this._pending.size() >= this._maxPending) {
+            long start = System.nanoTime();
+            while (!this._closed && this._pending.size() >= this._maxPending)
+               this._notFull.await();
+            this._blockedNanos.addAndGet(System.nanoTime() - start);
+         }//end if
+         if (this._closed)
+            throw new IllegalStateException("item status writer is closed");
+         if (this._pending.isEmpty())
+            this._oldestNanos = System.nanoTime();
+         if (this._pending.put(update.key(), update) != null)
+            this._coalesced.incrementAndGet();
+         this._submitted.incrementAndGet();
+         if (this._pending.size() >= this._batchSize || this._pending.size() == 1)
+            this._work.signal();
+      }finally{
+         this._lock.unlock();
+      }//end try
+   }//end submit
+
+   /**
+    * Writes every queued update and waits until it is committed.
+    *
+    * @throws InterruptedException when interrupted while waiting
+    */
+   public void flush() throws InterruptedException {
+      this._lock.lock();
+      try{
+         this._flushRequested = true;
+         this._work.signal();
+         while (!this._pending.isEmpty() || this._writing)
+            this._drained.await();
+      }finally{
+         this._lock.unlock();
+      }//end try
+   }//end flush
+
+   /**
+    * Writes every queued update, then stops the writer. Later calls to
+    * submit() fail.
+    */
+   public void close() {
+      this._lock.lock();
+      try{
+         this._closed = true;
+         this._work.signal();
+         this._notFull.signalAll();
+      }finally{
+         this._lock.unlock();
+      }//end try
+      try{
+         this._writer.join();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+   /**
+    * @return the number of updates waiting to be written
+    */
+   public int pending() {
+      this._lock.lock();
+      try{
+         return this._pending.size();
+      }finally{
+         this._lock.unlock();
+      }//end try
+   }//end pending
+
+   /**
+    * @return the queue and write counters
+    */
+   public String stats() {
+      return String.format("item status writer: submitted=%d coalesced=%d written=%d batches=%d " +
+                           "dropped=%d unmatched=%d conflicts=%d pending=%d blocked=%.1fms",
+                           this._submitted.get(), this._coalesced.get(), this._written.get(),
+                           this._batches.get(), this._dropped.get(), this._unmatched.get(),
+                           this._conflicts.get(), pending(),
+                           this._blockedNanos.get() / 1e6);
+   }//end stats
+
+   /*
+    * Body of the writer thread: waits for a full batch, the flush interval,
+    * a flush() or close(), then writes what is waiting. Returns once closed
+    * and drained.
+    */
+   private void writeLoop() {
+      while (true) {
+         List<Update> batch;
+         this._lock.lock();
+         try{
+            while (true) {
+               if (this._pending.isEmpty()) {
+                  this._flushRequested = false;
+                  this._drained.signalAll();
+                  if (this._closed)
+                     return;
+                  this._work.awaitUninterruptibly();
+                  continue;
+               }//end if
+               long waited = System.nanoTime() - this._oldestNanos;
+               if (this._closed || this._flushRequested || this._pending.size() >= this._batchSize
+                   || waited >= this._flushNanos)
+                  break;
+               try{
+                  this._work.awaitNanos(this._flushNanos - waited);
+               }catch (InterruptedException e){
+                  // only close() stops the writer
+               }//end try
+            }//end while
+            batch = new ArrayList<Update>(this._pending.values());
+            this._pending = new LinkedHashMap<String, Update>();
+            this._writing = true;
+            this._notFull.signalAll();
+         }finally{
+            this._lock.unlock();
+         }//end try
+
+         List<Update> failed = write(batch);
+
+         this._lock.lock();
+         try{
+            this._writing = false;
+            requeue(failed);
+            if (this._pending.isEmpty())
+               this._drained.signalAll();
+         }finally{
+            this._lock.unlock();
+         }//end try
+         if (!failed.isEmpty() && !this._closed) {
+            // the database is in trouble, give it a moment
+            try{
+               Thread.sleep(TimeUnit.NANOSECONDS.toMillis(this._flushNanos));
+            }catch (InterruptedException e){
+               // retry right away
+            }//end try
+         }//end if
+      }//end while
+   }//end writeLoop
+
+   /*
+    * Writes batch in one transaction. When that fails, writes its updates
+    * one at a time to find the ones that fail on their own.
+    *
+    * @return the updates to retry, empty on success
+    */
+   private List<Update> write(List<Update> batch) {
+      UnitOfWork uow = this._esql.beginUnitOfWork(this._batchSize);
+      try{
+         for (Update u : batch)
+            uow.addUpdate(UPDATE, u.status, u.comments, u.orderid, u.itemName, u.at);
+         uow.commit();
+         written(batch, uow.getUpdateCounts());
+         this._batches.incrementAndGet();
+         return new ArrayList<Update>();
+      }catch (SQLException e){
+         if (batch.size() == 1) {
+            Update u = batch.get(0);
+            System.err.println("Writing status update of order " + u.orderid + " item " + u.itemName
+                               + " failed: " + e.getMessage());
+            return batch;
+         }//end if
+         System.err.println("Writing " + batch.size() + " item status update(s) failed, writing them one by one: "
+                            + e.getMessage());
+      }finally{
+         uow.close();
+      }//end try
+      List<Update> failed = new ArrayList<Update>();
+      for (Update u : batch)
+         failed.addAll(write(Collections.singletonList(u)));
+      return failed;
+   }//end write
+
+   /*
+    * Counts the committed updates of batch, given the rows each one matched.
+    * An update that matched none found the item changed or gone.
+    */
+   private void written(List<Update> batch, int[] counts) {
+      for (int i = 0; i < batch.size(); ++i) {
+         if (i < counts.length && counts[i] == 0) {
+            Update u = batch.get(i);
+            if (exists(u)) {
+               report(u, "Status update of order " + u.orderid + " item " + u.itemName
+                         + " not saved: the item was changed after it was queued, please check it again");
+               this._conflicts.incrementAndGet();
+            } else {
+               report(u, "Status update of order " + u.orderid + " item " + u.itemName
+                         + " not saved: the item is no longer on the order");
+               this._unmatched.incrementAndGet();
+            }//end if
+         } else {
+            this._written.incrementAndGet();
+         }//end if
+      }//end for
+   }//end written
+
+   /*
+    * Whether the item of u is still on its order; true when that cannot
+    * be told, a conflict being the safer report.
+    */
+   private boolean exists(Update u) {
+      try{
+         return !this._esql.executeQueryAndReturnResult(
+            "SELECT 1 FROM ItemStatus WHERE orderid = ? AND itemName = ?", u.orderid, u.itemName).isEmpty();
+      }catch (SQLException e){
+         return true;
+      }//end try
+   }//end exists
+
+   /*
+    * Tells the session that submitted u, or the console if it has gone.
+    */
+   private static void report(Update u, String message) {
+      if (u.session != null && !u.session.isClosed()) {
+         u.session.err().println(message);
+         u.session.err().flush();
+      } else {
+         Session.console().err().println(message);
+      }//end if
+   }//end report
+
+   /*
+    * Puts failed updates back in front of the queue unless the same item
+    * was updated again meanwhile. Caller holds the lock.
+    */
+   private void requeue(List<Update> failed) {
+      if (failed.isEmpty())
+         return;
+      LinkedHashMap<String, Update> pending = new LinkedHashMap<String, Update>();
+      for (Update u : failed) {
+         if (++u.attempts >= MAX_ATTEMPTS) {
+            System.err.println("Dropped status update of order " + u.orderid + " item " + u.itemName);
+            this._dropped.incrementAndGet();
+         } else if (!this._pending.containsKey(u.key())) {
+            pending.put(u.key(), u);
+         }//end if
+      }//end for
+      if (pending.isEmpty())
+         return;
+      if (this._pending.isEmpty())
+         this._oldestNanos = System.nanoTime();
+      for (Map.Entry<String, Update> e : this._pending.entrySet())
+         pending.put(e.getKey(), e.getValue());
+      this._pending = pending;
+   }//end requeue
+
+}//end ItemStatusWriter
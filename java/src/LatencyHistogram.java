@@ -0,0 +1,105 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with log-linear microsecond buckets: every
+ * power of two is split into 16 buckets, so percentiles are accurate to
+ * about 6% from 1us up to several days. Recording never allocates.
+ *
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 4;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int MAX_MAGNITUDE = 40;
+
+   private final AtomicLongArray _counts =
+      new AtomicLongArray(SUB_COUNT + (MAX_MAGNITUDE - SUB_BITS + 1) * SUB_COUNT);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _sumNanos = new AtomicLong();
+   private final AtomicLong _maxNanos = new AtomicLong();
+
+   /**
+    * Records one observation.
+    *
+    * @param nanos the latency in nanoseconds
+    */
+   public void record(long nanos) {
+      if (nanos < 0)
+         nanos = 0;
+      this._counts.incrementAndGet(index(nanos / 1000));
+      this._count.incrementAndGet();
+      this._sumNanos.addAndGet(nanos);
+      long max = this._maxNanos.get();
+      while (nanos > max && !this._maxNanos.compareAndSet(max, nanos))
+         max = this._maxNanos.get();
+   }//end record
+
+   /**
+    * @return the number of recorded observations
+    */
+   public long count() {
+      return this._count.get();
+   }//end count
+
+   /**
+    * @return the mean latency in nanoseconds
+    */
+   public double meanNanos() {
+      long n = this._count.get();
+      return n == 0 ? 0.0 : (double) this._sumNanos.get() / n;
+   }//end meanNanos
+
+   /**
+    * @return the largest recorded latency in nanoseconds
+    */
+   public long maxNanos() {
+      return this._maxNanos.get();
+   }//end maxNanos
+
+   /**
+    * @param percentile between 0 and 100
+    * @return the approximate latency at percentile, in nanoseconds
+    */
+   public long percentileNanos(double percentile) {
+      long total = this._count.get();
+      if (total == 0)
+         return 0;
+      long rank = (long) Math.ceil(percentile / 100.0 * total);
+      long seen = 0;
+      for (int i = 0; i < this._counts.length(); ++i) {
+         seen += this._counts.get(i);
+         if (seen >= Math.max(1, rank))
+            return Math.min(midpointMicros(i) * 1000, this._maxNanos.get());
+      }//end for
+      return this._maxNanos.get();
+   }//end percentileNanos
+
+   /**
+    * @return count, mean, p50/p95/p99 and max in milliseconds
+    */
+   public String summary() {
+      return String.format("count=%d mean=%.3fms p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms",
+                           count(), meanNanos() / 1e6, percentileNanos(50) / 1e6,
+                           percentileNanos(95) / 1e6, percentileNanos(99) / 1e6,
+                           maxNanos() / 1e6);
+   }//end summary
+
+   private static int index(long micros) {
+      if (micros < SUB_COUNT)
+         return (int) micros;
+      int magnitude = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_MAGNITUDE);
+      int sub = (int) ((micros >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1));
+      return SUB_COUNT + (magnitude - SUB_BITS) * SUB_COUNT + sub;
+   }//end index
+
+   private static long midpointMicros(int index) {
+      if (index < SUB_COUNT)
+         return index;
+      int magnitude = (index - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+      int sub = (index - SUB_COUNT) % SUB_COUNT;
+      long width = 1L << (magnitude - SUB_BITS);
+      return (SUB_COUNT + sub) * width + width / 2;
+   }//end midpointMicros
+
+}//end LatencyHistogram
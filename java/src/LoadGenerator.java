@@ -0,0 +1,271 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays customer sessions against a Cafe database from many threads and
+ * reports throughput and latency percentiles per operation. Each worker
+ * logs in as a random user from users.csv and then performs a random mix
+ * of the operations the console menus offer, using items from menu.csv.
+ *
+ * Usage:
+ *    java LoadGenerator &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [threads] [seconds] [warmupSeconds] [dataDir]
+ *
+ * The operation mix can be tuned with the loadgen.mix system property, a
+ * comma separated list of weights for login, searchName, searchType,
+ * placeOrder and updateItemStatus (default 30,25,20,15,10). The last is
+ * the staff's status change of an item the session ordered.
+ *
+ * A login is answered from the credential cache of Cafe once the user
+ * logged in before, so the login row shows what customers see. Every
+ * login is also checked against the database, bypassing the cache, and
+ * reported as loginDb: the round trip a cache miss costs.
+ *
+ */
+public class LoadGenerator {
+
+   static final String[] OPERATIONS = {
+      "login", "searchName", "searchType", "placeOrder", "updateItemStatus"
+   };
+   static final int LOGIN = 0, SEARCH_NAME = 1, SEARCH_TYPE = 2, PLACE_ORDER = 3, UPDATE_ITEM_STATUS = 4;
+
+   static final String[] STATUSES = { "Hasn't started", "Started", "Finished" };
+
+   private final Cafe _esql;
+   private final List<String[]> _users;
+   private final List<String> _items;
+   private final List<String> _types;
+   private final int[] _cumulativeWeights;
+
+   // latency and error counts per operation, only counted after warm-up
+   private final LatencyHistogram[] _latencies = new LatencyHistogram[OPERATIONS.length];
+   private final AtomicLong[] _errors = new AtomicLong[OPERATIONS.length];
+   // the login query without the credential cache
+   private final LatencyHistogram _loginDb = new LatencyHistogram();
+   private final AtomicLong _loginDbErrors = new AtomicLong();
+   private volatile boolean _measuring = false;
+   private volatile boolean _running = true;
+
+   LoadGenerator(Cafe esql, List<String[]> users, List<String[]> menu, int[] weights) {
+      this._esql = esql;
+      this._users = users;
+      this._items = new ArrayList<String>();
+      this._types = new ArrayList<String>();
+      for (String[] item : menu) {
+         this._items.add(item[0]);
+         if (!this._types.contains(item[1]))
+            this._types.add(item[1]);
+      }//end for
+      this._cumulativeWeights = new int[weights.length];
+      int sum = 0;
+      for (int i = 0; i < weights.length; ++i) {
+         sum += weights[i];
+         this._cumulativeWeights[i] = sum;
+      }//end for
+      for (int i = 0; i < OPERATIONS.length; ++i) {
+         this._latencies[i] = new LatencyHistogram();
+         this._errors[i] = new AtomicLong();
+      }//end for
+   }//end LoadGenerator
+
+   /**
+    * The main execution method
+    *
+    * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [threads] [seconds] [warmupSeconds] [dataDir]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + LoadGenerator.class.getName() +
+            " <dbname> <port> <user> [threads] [seconds] [warmupSeconds] [dataDir]");
+         return;
+      }//end if
+      int threads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+      int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+      int warmup = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+      File dataDir = new File(args.length > 6 ? args[6] : "data");
+
+      int[] weights = new int[OPERATIONS.length];
+      String[] mix = System.getProperty("loadgen.mix", "30,25,20,15,10").split(",");
+      if (mix.length != OPERATIONS.length)
+         throw new IllegalArgumentException("loadgen.mix needs " + OPERATIONS.length + " weights");
+      for (int i = 0; i < mix.length; ++i)
+         weights[i] = Integer.parseInt(mix[i].trim());
+
+      List<String[]> users = readCsv(new File(dataDir, "users.csv"));
+      List<String[]> menu = readCsv(new File(dataDir, "menu.csv"));
+      System.out.println("Loaded " + users.size() + " users and " + menu.size() + " menu items");
+
+      Class.forName("org.postgresql.Driver").newInstance();
+      Cafe esql = new Cafe(args[0], args[1], args[2], "", threads, threads);
+      try{
+         new LoadGenerator(esql, users, menu, weights).run(threads, warmup, seconds);
+         System.out.println(esql.getPoolStats());
+         System.out.println(esql.getAdmissionStats());
+         System.out.println(esql.getResultCacheStats());
+         System.out.println(esql.getOrderIdStats());
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Runs the workers for warmup + seconds and prints the report.
+    */
+   void run(int threads, int warmup, int seconds) throws InterruptedException {
+      ExecutorService workers = Executors.newFixedThreadPool(threads);
+      for (int t = 0; t < threads; ++t) {
+         final long seed = 31L * t + System.nanoTime();
+         workers.execute(new Runnable() {
+            public void run() { session(new Random(seed)); }
+         });
+      }//end for
+      workers.shutdown();
+
+      System.out.println("Warming up for " + warmup + "s with " + threads + " threads...");
+      Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+      this._measuring = true;
+      long start = System.nanoTime();
+      System.out.println("Measuring for " + seconds + "s...");
+      Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+      this._measuring = false;
+      double elapsed = (System.nanoTime() - start) / 1e9;
+      this._running = false;
+      workers.awaitTermination(1, TimeUnit.MINUTES);
+
+      long total = 0;
+      System.out.println();
+      System.out.println(String.format("%-16s %10s %8s %10s %10s %10s %10s",
+                                       "operation", "ops/s", "errors", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+      for (int i = 0; i < OPERATIONS.length; ++i) {
+         LatencyHistogram h = this._latencies[i];
+         total += h.count();
+         System.out.println(String.format("%-16s %10.1f %8d %10.3f %10.3f %10.3f %10.3f",
+                                          OPERATIONS[i], h.count() / elapsed, this._errors[i].get(),
+                                          h.percentileNanos(50) / 1e6, h.percentileNanos(95) / 1e6,
+                                          h.percentileNanos(99) / 1e6, h.maxNanos() / 1e6));
+      }//end for
+      System.out.println(String.format("%-16s %10.1f %8d %10.3f %10.3f %10.3f %10.3f",
+                                       "loginDb", this._loginDb.count() / elapsed, this._loginDbErrors.get(),
+                                       this._loginDb.percentileNanos(50) / 1e6, this._loginDb.percentileNanos(95) / 1e6,
+                                       this._loginDb.percentileNanos(99) / 1e6, this._loginDb.maxNanos() / 1e6));
+      System.out.println(String.format("%-16s %10.1f", "total", total / elapsed));
+   }//end run
+
+   /*
+    * One simulated customer: logs in, then keeps performing operations,
+    * logging in again as another user from time to time. Status updates
+    * go to items the session ordered itself.
+    */
+   private void session(Random rnd) {
+      String[] user = login(rnd);
+      // (orderid, itemName) of items this session ordered recently
+      List<Object[]> myItems = new ArrayList<Object[]>();
+      while (this._running) {
+         int op = pick(rnd);
+         if (op == LOGIN) {
+            user = login(rnd);
+            myItems.clear();
+            continue;
+         }//end if
+         long start = System.nanoTime();
+         try{
+            switch (op) {
+               case SEARCH_NAME:
+                  this._esql.searchMenuByName(this._items.get(rnd.nextInt(this._items.size())));
+                  break;
+               case SEARCH_TYPE:
+                  this._esql.searchMenuByType(this._types.get(rnd.nextInt(this._types.size())));
+                  break;
+               case PLACE_ORDER:
+                  List<String> items = randomItems(rnd);
+                  int orderid = this._esql.placeOrder(user[0], items).orderid;
+                  myItems.add(new Object[] { orderid, items.get(0) });
+                  if (myItems.size() > 20)
+                     myItems.remove(0);
+                  break;
+               case UPDATE_ITEM_STATUS:
+                  if (myItems.isEmpty())
+                     continue;
+                  Object[] item = myItems.get(rnd.nextInt(myItems.size()));
+                  this._esql.updateItemStatus((Integer) item[0], (String) item[1],
+                                              STATUSES[rnd.nextInt(STATUSES.length)], "loadgen");
+                  break;
+            }//end switch
+            if (this._measuring)
+               this._latencies[op].record(System.nanoTime() - start);
+         }catch (Exception e){
+            if (this._measuring)
+               this._errors[op].incrementAndGet();
+         }//end try
+      }//end while
+   }//end session
+
+   private String[] login(Random rnd) {
+      String[] user = this._users.get(rnd.nextInt(this._users.size()));
+      long start = System.nanoTime();
+      try{
+         if (!this._esql.authenticate(user[0], user[2]) && this._measuring)
+            this._errors[LOGIN].incrementAndGet();
+         if (this._measuring)
+            this._latencies[LOGIN].record(System.nanoTime() - start);
+      }catch (Exception e){
+         if (this._measuring)
+            this._errors[LOGIN].incrementAndGet();
+      }//end try
+      // the same check as a cache miss, not counted in the total
+      start = System.nanoTime();
+      try{
+         if (!this._esql.checkPassword(user[0], user[2]) && this._measuring)
+            this._loginDbErrors.incrementAndGet();
+         if (this._measuring)
+            this._loginDb.record(System.nanoTime() - start);
+      }catch (Exception e){
+         if (this._measuring)
+            this._loginDbErrors.incrementAndGet();
+      }//end try
+      return user;
+   }//end login
+
+   private List<String> randomItems(Random rnd) {
+      int n = 1 + rnd.nextInt(4);
+      List<String> items = new ArrayList<String>(n);
+      for (int i = 0; i < n; ++i)
+         items.add(this._items.get(rnd.nextInt(this._items.size())));
+      return items;
+   }//end randomItems
+
+   private int pick(Random rnd) {
+      int r = rnd.nextInt(this._cumulativeWeights[this._cumulativeWeights.length - 1]);
+      for (int i = 0; i < this._cumulativeWeights.length; ++i)
+         if (r < this._cumulativeWeights[i])
+            return i;
+      return LOGIN;
+   }//end pick
+
+   /*
+    * Reads a ';' separated data file as used by sql/src/load_data.sql.
+    */
+   static List<String[]> readCsv(File file) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try{
+         String line;
+         while ((line = reader.readLine()) != null)
+            if (!line.isEmpty())
+               rows.add(line.split(";", -1));
+      }finally{
+         reader.close();
+      }//end try
+      return rows;
+   }//end readCsv
+
+}//end LoadGenerator
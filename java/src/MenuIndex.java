@@ -0,0 +1,295 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory copy of the Menu table, indexed for the menu screens:
+ * case-insensitive exact and prefix lookups by name, lookups by type and
+ * keyword search over the name, type and description of every item.
+ * Keyword search tolerates typos of one or two letters.
+ *
+ * The menu is small and read far more often than it changes, so the whole
+ * table is loaded once and then kept up to date item by item as the menu
+ * editors commit their changes.
+ *
+ */
+public class MenuIndex {
+
+   // sorts search results by name
+   private static final Comparator<MenuItem> BY_NAME = new Comparator<MenuItem>() {
+      public int compare(MenuItem a, MenuItem b) {
+         int c = a.itemName.compareToIgnoreCase(b.itemName);
+         return c != 0 ? c : a.itemName.compareTo(b.itemName);
+      }
+   };
+
+   private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+   // items by exact name
+   private final Map<String, MenuItem> _items = new HashMap<String, MenuItem>();
+
+   // items by lower case name, for prefix lookups; a name may be shared by
+   // items differing only in case, hence the exact name is appended
+   private final TreeMap<String, MenuItem> _byName = new TreeMap<String, MenuItem>();
+
+   // items by lower case type
+   private final Map<String, Set<MenuItem>> _byType = new HashMap<String, Set<MenuItem>>();
+
+   // items by lower case word of their name, type or description
+   private final TreeMap<String, Set<MenuItem>> _byToken = new TreeMap<String, Set<MenuItem>>();
+
+   // System.currentTimeMillis() of the last full load
+   private volatile long _loadedAt = 0;
+
+   /**
+    * Replaces the whole index with items.
+    */
+   public void load(Collection<MenuItem> items) {
+      this._lock.writeLock().lock();
+      try{
+         this._items.clear();
+         this._byName.clear();
+         this._byType.clear();
+         this._byToken.clear();
+         for (MenuItem item : items)
+            add(item);
+         this._loadedAt = System.currentTimeMillis();
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end load
+
+   /**
+    * Applies a committed change: the items named in names are dropped and
+    * the current versions of those that still exist are added back.
+    *
+    * @param names the names of the items that were added, updated or deleted
+    * @param current the current rows of those items
+    */
+   public void update(Collection<String> names, Collection<MenuItem> current) {
+      this._lock.writeLock().lock();
+      try{
+         for (String name : names)
+            remove(name.trim());
+         for (MenuItem item : current)
+            add(item);
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end update
+
+   /**
+    * @return the System.currentTimeMillis() of the last full load, 0 if never loaded
+    */
+   public long loadedAt() {
+      return this._loadedAt;
+   }//end loadedAt
+
+   /**
+    * @return the items whose name equals name, ignoring case and padding
+    */
+   public List<MenuItem> findByName(String name) {
+      String key = name.trim().toLowerCase();
+      List<MenuItem> result = new ArrayList<MenuItem>();
+      this._lock.readLock().lock();
+      try{
+         for (MenuItem item : this._byName.subMap(key + '\u0000', key + '\u0001').values())
+            result.add(item);
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+      return result;
+   }//end findByName
+
+   /**
+    * @return the items whose name starts with prefix, ignoring case
+    */
+   public List<MenuItem> findByNamePrefix(String prefix) {
+      String key = prefix.trim().toLowerCase();
+      List<MenuItem> result = new ArrayList<MenuItem>();
+      this._lock.readLock().lock();
+      try{
+         for (MenuItem item : this._byName.subMap(key, key + Character.MAX_VALUE).values())
+            result.add(item);
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+      return result;
+   }//end findByNamePrefix
+
+   /**
+    * @return the items of type, ignoring case, sorted by name
+    */
+   public List<MenuItem> findByType(String type) {
+      List<MenuItem> result = new ArrayList<MenuItem>();
+      this._lock.readLock().lock();
+      try{
+         Set<MenuItem> items = this._byType.get(type.trim().toLowerCase());
+         if (items != null)
+            result.addAll(items);
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+      Collections.sort(result, BY_NAME);
+      return result;
+   }//end findByType
+
+   /**
+    * Finds the items matching every word of text in their name, type or
+    * description. A word matches an indexed word it is a prefix of, or one
+    * within edit distance 1 (2 for words longer than 5 letters).
+    *
+    * @param text the words to look for, e.g. "latte" or "choclate"
+    * @return the matching items sorted by name
+    */
+   public List<MenuItem> search(String text) {
+      List<String> words = tokenize(text);
+      if (words.isEmpty())
+         return new ArrayList<MenuItem>();
+      Set<MenuItem> result = null;
+      this._lock.readLock().lock();
+      try{
+         for (String word : words) {
+            Set<MenuItem> matches = matches(word);
+            if (result == null)
+               result = matches;
+            else
+               result.retainAll(matches);
+            if (result.isEmpty())
+               break;
+         }//end for
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+      List<MenuItem> sorted = new ArrayList<MenuItem>(result);
+      Collections.sort(sorted, BY_NAME);
+      return sorted;
+   }//end search
+
+   /*
+    * The items having an indexed word matching word. Caller holds the read lock.
+    */
+   private Set<MenuItem> matches(String word) {
+      Set<MenuItem> result = new HashSet<MenuItem>();
+      for (Set<MenuItem> items : this._byToken.subMap(word, word + Character.MAX_VALUE).values())
+         result.addAll(items);
+      if (!result.isEmpty())
+         return result;
+      int maxDistance = word.length() > 5 ? 2 : 1;
+      for (Map.Entry<String, Set<MenuItem>> e : this._byToken.entrySet())
+         if (Math.abs(e.getKey().length() - word.length()) <= maxDistance
+             && editDistance(word, e.getKey(), maxDistance) <= maxDistance)
+            result.addAll(e.getValue());
+      return result;
+   }//end matches
+
+   /*
+    * Adds item to every index. Caller holds the write lock.
+    */
+   private void add(MenuItem item) {
+      remove(item.itemName);
+      this._items.put(item.itemName, item);
+      this._byName.put(nameKey(item.itemName), item);
+      String type = item.type.toLowerCase();
+      Set<MenuItem> ofType = this._byType.get(type);
+      if (ofType == null) {
+         ofType = new HashSet<MenuItem>();
+         this._byType.put(type, ofType);
+      }//end if
+      ofType.add(item);
+      for (String token : tokensOf(item)) {
+         Set<MenuItem> items = this._byToken.get(token);
+         if (items == null) {
+            items = new HashSet<MenuItem>();
+            this._byToken.put(token, items);
+         }//end if
+         items.add(item);
+      }//end for
+   }//end add
+
+   /*
+    * Drops the item named name from every index. Caller holds the write lock.
+    */
+   private void remove(String name) {
+      MenuItem item = this._items.remove(name);
+      if (item == null)
+         return;
+      this._byName.remove(nameKey(item.itemName));
+      String type = item.type.toLowerCase();
+      Set<MenuItem> ofType = this._byType.get(type);
+      if (ofType != null && ofType.remove(item) && ofType.isEmpty())
+         this._byType.remove(type);
+      for (String token : tokensOf(item)) {
+         Set<MenuItem> items = this._byToken.get(token);
+         if (items != null && items.remove(item) && items.isEmpty())
+            this._byToken.remove(token);
+      }//end for
+   }//end remove
+
+   private static String nameKey(String name) {
+      return name.toLowerCase() + '\u0000' + name;
+   }//end nameKey
+
+   private static Set<String> tokensOf(MenuItem item) {
+      Set<String> tokens = new HashSet<String>();
+      tokens.addAll(tokenize(item.itemName));
+      tokens.addAll(tokenize(item.type));
+      tokens.addAll(tokenize(item.description));
+      return tokens;
+   }//end tokensOf
+
+   /*
+    * Splits text into lower case words of letters and digits.
+    */
+   static List<String> tokenize(String text) {
+      List<String> tokens = new ArrayList<String>();
+      if (text == null)
+         return tokens;
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i <= text.length(); ++i) {
+         char c = i < text.length() ? text.charAt(i) : ' ';
+         if (Character.isLetterOrDigit(c)) {
+            sb.append(Character.toLowerCase(c));
+         } else if (sb.length() > 0) {
+            tokens.add(sb.toString());
+            sb.setLength(0);
+         }//end if
+      }//end for
+      return tokens;
+   }//end tokenize
+
+   /*
+    * Levenshtein distance of a and b, giving up once it exceeds max.
+    */
+   static int editDistance(String a, String b, int max) {
+      int[] prev = new int[b.length() + 1];
+      int[] curr = new int[b.length() + 1];
+      for (int j = 0; j <= b.length(); ++j)
+         prev[j] = j;
+      for (int i = 1; i <= a.length(); ++i) {
+         curr[0] = i;
+         int rowMin = curr[0];
+         for (int j = 1; j <= b.length(); ++j) {
+            int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+            curr[j] = Math.min(Math.min(curr[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+            rowMin = Math.min(rowMin, curr[j]);
+         }//end for
+         if (rowMin > max)
+            return max + 1;
+         int[] tmp = prev;
+         prev = curr;
+         curr = tmp;
+      }//end for
+      return prev[b.length()];
+   }//end editDistance
+
+}//end MenuIndex
@@ -0,0 +1,37 @@
+/**
+ * An immutable row of the Menu table, with the char(n) padding removed.
+ *
+ */
+public class MenuItem {
+
+   public final String itemName;
+   public final String type;
+   public final float price;
+   public final String description;
+   public final String imageURL;
+
+   public MenuItem(String itemName, String type, float price, String description, String imageURL) {
+      this.itemName = trim(itemName);
+      this.type = trim(type);
+      this.price = price;
+      this.description = trim(description);
+      this.imageURL = trim(imageURL);
+   }//end MenuItem
+
+   /**
+    * @return the columns as strings, in Menu column order
+    */
+   public String[] toRow() {
+      return new String[] { this.itemName, this.type, String.format("%.2f", this.price),
+                            this.description, this.imageURL };
+   }//end toRow
+
+   public String toString() {
+      return this.itemName;
+   }//end toString
+
+   private static String trim(String s) {
+      return s == null ? "" : s.trim();
+   }//end trim
+
+}//end MenuItem
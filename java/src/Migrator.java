@@ -0,0 +1,907 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Brings the schema of an existing database up to date, one numbered
+ * migration at a time; the applied ones are recorded in schema_version.
+ * A database created by the current create_tables.sql is up to date, one
+ * created by the original char(n) create_tables.sql is brought all the way
+ * up, with the rollups, triggers and partition functions it lacks.
+ *
+ * The first migrations convert the char(n) text columns, which pad every value
+ * with blanks in every row and index entry, to varchar(n). A column is not
+ * converted by ALTER COLUMN TYPE, which would lock the table for as long
+ * as it takes to rewrite it, but online:
+ *
+ *    1. a varchar column is added next to it, kept in sync by a trigger
+ *    2. existing rows are copied over in short transactions of batchRows
+ *    3. indexes on the new column are built CONCURRENTLY
+ *    4. one short transaction drops the old column and renames the new one
+ *
+ * Each step can be repeated, so a migration that failed half way is
+ * resumed by running it again. The old values stay in the table pages
+ * until rows are rewritten; -Dmigrate.vacuumFull=true reclaims the space
+ * at once, but locks each table while it does.
+ *
+ * After migrating, the indexes IndexAdvisor finds missing for the probe
+ * statements, and for the statements listed in shapesFile, one per line,
+ * are created. Table and index sizes and the latency of the probes are
+ * reported before and after.
+ *
+ * Usage:
+ *    java Migrator &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [status|migrate|advise] [shapesFile]
+ *
+ * Other settings:
+ *    -Dmigrate.batchRows=5000     rows copied per transaction
+ *    -Dmigrate.pauseMillis=0      pause between batches
+ *    -Dmigrate.probeRuns=50       runs of every latency probe
+ *    -Dmigrate.dryRun=true        only report and print the advice
+ *    -Dmigrate.sqlDir=sql/src     where the scripts of sql/src are
+ *
+ */
+public class Migrator {
+
+   /**
+    * A numbered change of the schema.
+    */
+   static abstract class Migration {
+      final int version;
+      final String description;
+      Migration(int version, String description) {
+         this.version = version;
+         this.description = description;
+      }
+      abstract void apply(Migrator m) throws SQLException;
+   }//end Migration
+
+   /**
+    * The conversion of text columns of one table to varchar, with what has
+    * to be rebuilt when the old columns are dropped.
+    */
+   static class Swap {
+      final String table;
+      // keyset the rows are copied in
+      final String key;
+      final String keyType;
+      final List<String> columns = new ArrayList<String>();
+      final List<String> types = new ArrayList<String>();
+      final List<Boolean> notNull = new ArrayList<Boolean>();
+      // name -> definition of indexes built on the new columns beforehand
+      final Map<String, String> indexes = new LinkedHashMap<String, String>();
+      // run in the swap transaction before the old columns are dropped
+      final List<String> before = new ArrayList<String>();
+      // run in the swap transaction after the new columns are renamed
+      final List<String> after = new ArrayList<String>();
+      Swap(String table, String key, String keyType) {
+         this.table = table;
+         this.key = key;
+         this.keyType = keyType;
+      }
+      Swap column(String name, String type, boolean notNull) {
+         this.columns.add(name);
+         this.types.add(type);
+         this.notNull.add(notNull);
+         return this;
+      }
+      Swap index(String name, String definition) {
+         this.indexes.put(name, definition);
+         return this;
+      }
+      Swap before(String sql) {
+         this.before.add(sql);
+         return this;
+      }
+      Swap after(String sql) {
+         this.after.add(sql);
+         return this;
+      }
+   }//end Swap
+
+   // suffix of a column while it is being filled
+   static final String NEW = "__new";
+
+   static final Migration[] MIGRATIONS = {
+      new Migration(1, "Users text columns to varchar") {
+         void apply(Migrator m) throws SQLException {
+            // login keeps only its primary key, the UNIQUE duplicating it
+            // is not rebuilt
+            m.swap(new Swap("Users", "login", "char(50)")
+               .column("login", "varchar(50)", true)
+               .column("phoneNum", "varchar(16)", false)
+               .column("password", "varchar(50)", true)
+               .column("favItems", "varchar(400)", false)
+               .column("type", "varchar(8)", true)
+               .index("users_pkey_new", "UNIQUE INDEX ON Users (login" + NEW + ")")
+               .index("users_phonenum_key_new", "UNIQUE INDEX ON Users (phoneNum" + NEW + ")")
+               .after("ALTER TABLE Users ADD CONSTRAINT users_pkey PRIMARY KEY USING INDEX users_pkey_new")
+               .after("ALTER TABLE Users ADD CONSTRAINT users_phonenum_key UNIQUE USING INDEX users_phonenum_key_new"));
+         }
+      },
+      new Migration(2, "Orders.login to varchar") {
+         void apply(Migrator m) throws SQLException {
+            m.swap(new Swap("Orders", "orderid", "integer")
+               .column("login", "varchar(50)", false)
+               .index("index3_new", "INDEX ON Orders (login" + NEW + ", timeStampRecieved, orderid)")
+               .after("ALTER INDEX index3_new RENAME TO index3"));
+         }
+      },
+      new Migration(3, "Menu, ItemStatus and ItemSalesDaily text columns to varchar") {
+         void apply(Migrator m) throws SQLException {
+            // the foreign key between the two is dropped with Menu.itemName
+            // and added back once both sides are varchar
+            m.swap(new Swap("Menu", "itemName", "char(50)")
+               .column("itemName", "varchar(50)", true)
+               .column("type", "varchar(20)", true)
+               .column("description", "varchar(400)", false)
+               .column("imageURL", "varchar(256)", false)
+               .index("menu_pkey_new", "UNIQUE INDEX ON Menu (itemName" + NEW + ")")
+               .before("ALTER TABLE ItemStatus DROP CONSTRAINT IF EXISTS itemstatus_itemname_fkey")
+               .after("ALTER TABLE Menu ADD CONSTRAINT menu_pkey PRIMARY KEY USING INDEX menu_pkey_new"));
+            Swap items = new Swap("ItemStatus", "orderid", "integer")
+               .column("itemName", "varchar(50)", true)
+               .column("status", "varchar(20)", false)
+               .column("comments", "varchar(130)", false)
+               .index("itemstatus_pkey_new", "UNIQUE INDEX ON ItemStatus (orderid, itemName" + NEW + ")")
+               .before("ALTER TABLE ItemStatus DROP CONSTRAINT IF EXISTS itemstatus_itemname_fkey")
+               .after("ALTER TABLE ItemStatus ADD CONSTRAINT itemstatus_pkey PRIMARY KEY USING INDEX itemstatus_pkey_new");
+            // item_status_rollup of a database with the rollups fires on
+            // UPDATE OF itemName, so it depends on the column and is
+            // created again; a database without them gets both in 7
+            if (m.hasTrigger("ItemStatus", "item_status_rollup"))
+               items.before("DROP TRIGGER item_status_rollup ON ItemStatus")
+                    .after("CREATE TRIGGER item_status_rollup " +
+                           "AFTER INSERT OR DELETE OR UPDATE OF orderid, itemName ON ItemStatus " +
+                           "FOR EACH ROW EXECUTE PROCEDURE rollup_items()");
+            m.swap(items);
+            m.addForeignKey("ItemStatus", "itemstatus_itemname_fkey", "FOREIGN KEY (itemName) REFERENCES Menu(itemName)");
+            // a rollup table, small enough to convert in place
+            if (m.hasTable("ItemSalesDaily"))
+               m.alterType("ItemSalesDaily", "itemName", "varchar(50)");
+         }
+      },
+      new Migration(4, "Normalized favourite items and recommendations") {
+         void apply(Migrator m) throws SQLException {
+            // new tables, nothing is locked but the referenced keys
+            m._esql.executeUpdate(
+               "CREATE TABLE IF NOT EXISTS UserFavItems(" +
+               "login varchar(50) NOT NULL, itemName varchar(50) NOT NULL, PRIMARY KEY(login,itemName), " +
+               "FOREIGN KEY(login) REFERENCES Users(login) ON UPDATE CASCADE ON DELETE CASCADE, " +
+               "FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE)");
+            m._esql.executeUpdate(
+               "CREATE TABLE IF NOT EXISTS ItemCooccurrence(" +
+               "itemA varchar(50) NOT NULL, itemB varchar(50) NOT NULL, " +
+               "favUsers integer NOT NULL, orders integer NOT NULL, PRIMARY KEY(itemA,itemB), " +
+               "FOREIGN KEY(itemA) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE, " +
+               "FOREIGN KEY(itemB) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE)");
+            m._esql.executeUpdate(
+               "CREATE TABLE IF NOT EXISTS UserRecommendations(" +
+               "login varchar(50) NOT NULL, rank integer NOT NULL, itemName varchar(50) NOT NULL, " +
+               "score bigint NOT NULL, PRIMARY KEY(login,rank), " +
+               "FOREIGN KEY(login) REFERENCES Users(login) ON UPDATE CASCADE ON DELETE CASCADE, " +
+               "FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE)");
+            m._esql.executeUpdate("CREATE INDEX IF NOT EXISTS index6 ON UserFavItems (itemName)");
+            m.createCooccurrenceQueue();
+            // the functions of create_triggers.sql use columns of later
+            // migrations, so they are installed once all have been applied
+            m.runAfterwards("create_triggers.sql");
+            m.runAfterwards("backfill_recommendations.sql");
+         }
+      },
+      new Migration(5, "Orders and ItemStatus partitioned on orderid") {
+         void apply(Migrator m) throws SQLException {
+            m.partitionOrders(Integer.getInteger("cafe.partitions.size", 10000),
+                              Integer.getInteger("cafe.partitions.ahead", 2));
+            // the functions PartitionManager and Cafe.insertOrder call to
+            // add partitions and archive them
+            m.runAfterwards("create_partitions.sql");
+         }
+      },
+      new Migration(6, "Orders.paidAt for the change feed") {
+         void apply(Migrator m) throws SQLException {
+            // a column without default is added without rewriting the
+            // table; orders paid before stay without a time
+            UnitOfWork uow = m._esql.beginUnitOfWork();
+            try{
+               uow.executeUpdate("SET LOCAL lock_timeout = '2s'");
+               uow.executeUpdate("ALTER TABLE Orders ADD COLUMN IF NOT EXISTS paidAt timestamp");
+               uow.commit();
+            }finally{
+               uow.close();
+            }//end try
+            m.createPartitionedIndex("index7", "Orders", "paidAt");
+         }
+      },
+      new Migration(7, "ItemStatus.price and sharded sales rollups") {
+         void apply(Migrator m) throws SQLException {
+            // create_triggers.sql, run below, queues co-occurrence
+            m.createCooccurrenceQueue();
+            // no default, so ItemStatus is not rewritten; the items ordered
+            // before are priced at the menu price by the rollups
+            UnitOfWork uow = m._esql.beginUnitOfWork();
+            try{
+               uow.executeUpdate("SET LOCAL lock_timeout = '2s'");
+               uow.executeUpdate("ALTER TABLE ItemStatus ADD COLUMN IF NOT EXISTS price real");
+               uow.commit();
+            }finally{
+               uow.close();
+            }//end try
+            // a database of the baseline schema has no rollups yet; they
+            // are created as create_tables.sql has them and filled once
+            // the triggers are in place
+            if (m.createRollupTables())
+               m.runAfterwards("backfill_rollups.sql");
+            // the rollups have a row per hour or day, small enough to
+            // change in place; the existing rows become shard 0 and their
+            // amounts exact to the cent, the drift they gathered as reals
+            // is gone after backfill_rollups.sql. The functions writing
+            // them change in the same transaction, so no checkout finds a
+            // key or type it does not expect.
+            uow = m._esql.beginUnitOfWork();
+            try{
+               uow.executeUpdate("SET LOCAL lock_timeout = '2s'");
+               for (String[] table : new String[][] { { "SalesHourly", "hour" }, { "SalesDaily", "day" } }) {
+                  uow.executeUpdate("ALTER TABLE " + table[0] + " ADD COLUMN IF NOT EXISTS shard smallint NOT NULL DEFAULT 0");
+                  uow.executeUpdate("ALTER TABLE " + table[0] + " DROP CONSTRAINT " + table[0].toLowerCase() + "_pkey");
+                  uow.executeUpdate("ALTER TABLE " + table[0] + " ADD PRIMARY KEY (" + table[1] + ", shard)");
+                  uow.executeUpdate("ALTER TABLE " + table[0] + " ALTER COLUMN revenue TYPE numeric(12,2), "
+                                    + "ALTER COLUMN paidRevenue TYPE numeric(12,2)");
+               }//end for
+               uow.executeUpdate("ALTER TABLE ItemSalesDaily ALTER COLUMN revenue TYPE numeric(12,2)");
+               SqlScript.run(uow, script("create_triggers.sql"));
+               uow.commit();
+            }catch (IOException e){
+               throw new SQLException("Cannot read create_triggers.sql: " + e.getMessage());
+            }finally{
+               uow.close();
+            }//end try
+         }
+      },
+      new Migration(8, "Queued item co-occurrence") {
+         void apply(Migrator m) throws SQLException {
+            // the pairs already counted stay, the triggers queue new ones
+            m.createCooccurrenceQueue();
+            m.runScript("create_triggers.sql");
+         }
+      },
+      new Migration(9, "OrderPartitions.frozen") {
+         void apply(Migrator m) throws SQLException {
+            // the partitions archived so far are frozen again by the next
+            // maintain(), which costs a read of each but blocks nothing
+            UnitOfWork uow = m._esql.beginUnitOfWork();
+            try{
+               uow.executeUpdate("SET LOCAL lock_timeout = '2s'");
+               uow.executeUpdate("ALTER TABLE OrderPartitions ADD COLUMN IF NOT EXISTS frozen boolean NOT NULL DEFAULT false");
+               uow.commit();
+            }finally{
+               uow.close();
+            }//end try
+         }
+      }
+   };
+
+   // representative statements of Cafe, the parameters are looked up in
+   // the data by sample()
+   static final String[][] PROBES = {
+      { "log in", "SELECT EXISTS (SELECT 1 FROM Users WHERE login = ? AND password = ?)" },
+      { "phone taken", "SELECT EXISTS (SELECT 1 FROM Users WHERE phoneNum = ?)" },
+      { "order history", "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders " +
+                         "WHERE login = ? ORDER BY timeStampRecieved DESC, orderid DESC LIMIT 11" },
+      { "order items", "SELECT itemName, status, comments FROM ItemStatus WHERE orderid = ?" },
+      { "open orders", "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders " +
+                       "WHERE paid IS NOT TRUE ORDER BY timeStampRecieved, orderid LIMIT 11" },
+      { "top items", "SELECT itemName, SUM(quantity) AS quantity, SUM(revenue) AS revenue FROM ItemSalesDaily " +
+                     "WHERE day BETWEEN CAST(? AS date) AND CAST(? AS date) GROUP BY itemName ORDER BY 3 DESC LIMIT 10" }
+   };
+
+   private final Cafe _esql;
+   private final int _batchRows;
+   private final long _pauseMillis;
+
+   // scripts of sql/src run after the last migration, in order
+   private final List<String> _afterwards = new ArrayList<String>();
+
+   Migrator(Cafe esql, int batchRows, long pauseMillis) {
+      this._esql = esql;
+      this._batchRows = Math.max(1, batchRows);
+      this._pauseMillis = pauseMillis;
+   }//end Migrator
+
+   /**
+    * The main execution method
+    *
+    * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [status|migrate|advise] [shapesFile]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + Migrator.class.getName() +
+            " <dbname> <port> <user> [status|migrate|advise] [shapesFile]");
+         return;
+      }//end if
+      String command = args.length > 3 ? args[3] : "status";
+      boolean dryRun = Boolean.getBoolean("migrate.dryRun");
+
+      AdmissionController.setDefaultClass(AdmissionController.WorkClass.MAINTENANCE);
+      Class.forName("org.postgresql.Driver").newInstance();
+      Cafe esql = new Cafe(args[0], args[1], args[2], "");
+      try{
+         Migrator migrator = new Migrator(esql, Integer.getInteger("migrate.batchRows", 5000),
+                                          Long.getLong("migrate.pauseMillis", 0));
+         migrator.createVersionTable();
+         System.out.println("Schema version " + migrator.version() + " of " + MIGRATIONS.length);
+         if (command.equals("status"))
+            return;
+         if (!command.equals("migrate") && !command.equals("advise")) {
+            System.err.println("Unknown command " + command);
+            return;
+         }//end if
+
+         int runs = Integer.getInteger("migrate.probeRuns", 50);
+         Map<String, long[]> before = migrator.report(runs);
+         if (command.equals("migrate") && !dryRun)
+            migrator.migrate();
+
+         // the probes of tables the schema does not have yet are left out
+         List<String> shapes = new ArrayList<String>();
+         for (String[] probe : PROBES)
+            if (!probe[1].contains("ItemSalesDaily") || migrator.hasTable("ItemSalesDaily"))
+               shapes.add(probe[1]);
+         if (args.length > 4)
+            shapes.addAll(readShapes(new File(args[4])));
+
+         IndexAdvisor advisor = new IndexAdvisor(esql);
+         List<IndexAdvisor.Advice> advice = advisor.advise(shapes);
+         for (IndexAdvisor.Advice a : advice)
+            System.out.println(a);
+         if (advice.isEmpty())
+            System.out.println("Every statement has an index");
+         else if (!dryRun)
+            advisor.create(advice);
+
+         if (!dryRun) {
+            migrator.vacuum(Boolean.getBoolean("migrate.vacuumFull"));
+            Map<String, long[]> after = migrator.report(runs);
+            migrator.compare(before, after);
+         }//end if
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /*
+    * @return the named script of sql/src
+    */
+   static File script(String name) {
+      return new File(System.getProperty("migrate.sqlDir", "sql/src"), name);
+   }//end script
+
+   void createVersionTable() throws SQLException {
+      this._esql.executeUpdate(
+         "CREATE TABLE IF NOT EXISTS schema_version(" +
+         "version integer NOT NULL, description varchar(200) NOT NULL, " +
+         "appliedAt timestamp NOT NULL DEFAULT now(), millis bigint NOT NULL, PRIMARY KEY(version))");
+   }//end createVersionTable
+
+   /**
+    * @return the highest applied migration, 0 if none
+    */
+   int version() throws SQLException {
+      return Integer.parseInt(this._esql.executeQueryAndReturnResult(
+         "SELECT COALESCE(MAX(version), 0) FROM schema_version").get(0).get(0).trim());
+   }//end version
+
+   /**
+    * Applies the migrations newer than the schema, in order.
+    */
+   void migrate() throws SQLException {
+      for (Migration migration : MIGRATIONS) {
+         if (migration.version <= version())
+            continue;
+         System.out.println("Migration " + migration.version + ": " + migration.description);
+         long start = System.nanoTime();
+         migration.apply(this);
+         long millis = (System.nanoTime() - start) / 1000000;
+         this._esql.executeUpdate("INSERT INTO schema_version (version, description, millis) VALUES (?, ?, ?)",
+                                  migration.version, migration.description, millis);
+         System.out.println(String.format("Migration %d done in %.1fs", migration.version, millis / 1e3));
+      }//end for
+      for (String script : this._afterwards)
+         runScript(script);
+      this._afterwards.clear();
+   }//end migrate
+
+   /*
+    * Runs the named script of sql/src once the migrations are applied.
+    */
+   void runAfterwards(String name) {
+      if (!this._afterwards.contains(name))
+         this._afterwards.add(name);
+   }//end runAfterwards
+
+   /*
+    * Runs the named script of sql/src in one transaction.
+    */
+   void runScript(String name) throws SQLException {
+      try{
+         SqlScript.run(this._esql, script(name));
+      }catch (IOException e){
+         throw new SQLException("Cannot read " + name + ": " + e.getMessage());
+      }//end try
+   }//end runScript
+
+   /*
+    * The queue of create_triggers.sql, needed before it is run by any
+    * migration.
+    */
+   void createCooccurrenceQueue() throws SQLException {
+      this._esql.executeUpdate(
+         "CREATE TABLE IF NOT EXISTS CooccurrenceQueue(" +
+         "itemA varchar(50) NOT NULL, itemB varchar(50) NOT NULL, " +
+         "favUsers integer NOT NULL, orders integer NOT NULL, " +
+         "FOREIGN KEY(itemA) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE, " +
+         "FOREIGN KEY(itemB) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE)");
+   }//end createCooccurrenceQueue
+
+   /*
+    * Creates the sales rollups of create_tables.sql where they are missing.
+    *
+    * @return whether any was created, and has to be filled
+    */
+   boolean createRollupTables() throws SQLException {
+      boolean created = false;
+      for (String[] table : new String[][] { { "SalesHourly", "hour timestamp" }, { "SalesDaily", "day date" } }) {
+         if (hasTable(table[0]))
+            continue;
+         String key = table[1].substring(0, table[1].indexOf(' '));
+         this._esql.executeUpdate(
+            "CREATE TABLE " + table[0] + "(" + table[1] + " NOT NULL, shard smallint NOT NULL DEFAULT 0, " +
+            "orders integer NOT NULL, revenue numeric(12,2) NOT NULL, " +
+            "paidOrders integer NOT NULL, paidRevenue numeric(12,2) NOT NULL, PRIMARY KEY(" + key + ",shard))");
+         created = true;
+      }//end for
+      if (!hasTable("ItemSalesDaily")) {
+         this._esql.executeUpdate(
+            "CREATE TABLE ItemSalesDaily(" +
+            "day date NOT NULL, itemName varchar(50) NOT NULL, quantity integer NOT NULL, " +
+            "revenue numeric(12,2) NOT NULL, PRIMARY KEY(day,itemName))");
+         created = true;
+      }//end if
+      return created;
+   }//end createRollupTables
+
+   /*
+    * Converts the columns of swap online, see the class comment.
+    */
+   void swap(Swap swap) throws SQLException {
+      List<Integer> todo = new ArrayList<Integer>();
+      for (int i = 0; i < swap.columns.size(); ++i)
+         if (!isVarchar(swap.table, swap.columns.get(i)))
+            todo.add(i);
+      if (todo.isEmpty())
+         return;
+      String sync = "migrate_sync_" + swap.table.toLowerCase();
+
+      // 1. the new columns and the trigger filling them, together so no
+      //    row written in between is missed
+      StringBuilder set = new StringBuilder();
+      StringBuilder copy = new StringBuilder();
+      for (int i : todo) {
+         String column = swap.columns.get(i);
+         set.append("NEW.").append(column).append(NEW).append(" := rtrim(NEW.").append(column).append("); ");
+         copy.append(copy.length() == 0 ? "" : ", ").append(column).append(NEW).append(" = rtrim(").append(column).append(')');
+      }//end for
+      UnitOfWork uow = this._esql.beginUnitOfWork();
+      try{
+         for (int i : todo)
+            uow.executeUpdate("ALTER TABLE " + swap.table + " ADD COLUMN IF NOT EXISTS "
+                              + swap.columns.get(i) + NEW + " " + swap.types.get(i));
+         uow.executeUpdate("CREATE OR REPLACE FUNCTION " + sync + "() RETURNS trigger AS $$ BEGIN "
+                           + set + "RETURN NEW; END; $$ LANGUAGE plpgsql");
+         uow.executeUpdate("DROP TRIGGER IF EXISTS " + sync + " ON " + swap.table);
+         uow.executeUpdate("CREATE TRIGGER " + sync + " BEFORE INSERT OR UPDATE ON " + swap.table
+                           + " FOR EACH ROW EXECUTE PROCEDURE " + sync + "()");
+         uow.commit();
+      }finally{
+         uow.close();
+      }//end try
+
+      // 2. the existing rows
+      backfill(swap, copy.toString());
+
+      // 3. the indexes, left invalid by an earlier failed run or not built yet
+      for (Map.Entry<String, String> index : swap.indexes.entrySet()) {
+         this._esql.executeUpdate("DROP INDEX CONCURRENTLY IF EXISTS " + index.getKey());
+         long start = System.nanoTime();
+         this._esql.executeUpdate("CREATE " + index.getValue().replaceFirst("INDEX ON ",
+                                  "INDEX CONCURRENTLY " + index.getKey() + " ON "));
+         System.out.println(String.format("  built %s in %.1fs", index.getKey(), (System.nanoTime() - start) / 1e9));
+      }//end for
+
+      // 4. the swap, giving up rather than queueing behind long readers
+      //    while holding up everyone queued behind it
+      for (int attempt = 1; ; ++attempt) {
+         uow = this._esql.beginUnitOfWork();
+         try{
+            uow.executeUpdate("SET LOCAL lock_timeout = '2s'");
+            uow.executeUpdate("LOCK TABLE " + swap.table + " IN ACCESS EXCLUSIVE MODE");
+            for (String sql : swap.before)
+               uow.executeUpdate(sql);
+            uow.executeUpdate("DROP TRIGGER " + sync + " ON " + swap.table);
+            uow.executeUpdate("DROP FUNCTION " + sync + "()");
+            for (int i : todo) {
+               String column = swap.columns.get(i);
+               uow.executeUpdate("ALTER TABLE " + swap.table + " DROP COLUMN " + column);
+               uow.executeUpdate("ALTER TABLE " + swap.table + " RENAME COLUMN " + column + NEW + " TO " + column);
+               if (swap.notNull.get(i))
+                  uow.executeUpdate("ALTER TABLE " + swap.table + " ALTER COLUMN " + column + " SET NOT NULL");
+            }//end for
+            for (String sql : swap.after)
+               uow.executeUpdate(sql);
+            uow.commit();
+            System.out.println("  swapped " + swap.table + " " + swap.columns);
+            return;
+         }catch (SQLException e){
+            if (attempt == 10 || !isLockTimeout(e))
+               throw e;
+            System.out.println("  " + swap.table + " is busy, retrying the swap");
+         }finally{
+            uow.close();
+         }//end try
+      }//end for
+   }//end swap
+
+   /*
+    * Copies the old columns to the new ones in key order, batchRows rows per
+    * transaction. The sync trigger keeps rows written meanwhile up to date.
+    */
+   private void backfill(Swap swap, String copy) throws SQLException {
+      String cast = "CAST(? AS " + swap.keyType + ")";
+      String next = "SELECT " + swap.key + " FROM " + swap.table + " WHERE " + swap.key + " > " + cast
+                    + " ORDER BY " + swap.key + " OFFSET ? LIMIT 1";
+      String first = "SELECT " + swap.key + " FROM " + swap.table
+                     + " ORDER BY " + swap.key + " OFFSET ? LIMIT 1";
+      String update = "UPDATE " + swap.table + " SET " + copy + " WHERE ";
+      long start = System.nanoTime();
+      long rows = 0;
+      String lo = null;
+      while (true) {
+         // the key batchRows rows on, null if fewer are left
+         List<List<String>> found = lo == null
+            ? this._esql.executeQueryAndReturnResult(first, this._batchRows - 1)
+            : this._esql.executeQueryAndReturnResult(next, lo, this._batchRows - 1);
+         String hi = found.isEmpty() ? null : found.get(0).get(0);
+         if (lo == null && hi == null)
+            rows += this._esql.executeUpdate(update + "TRUE", new Object[0]);
+         else if (lo == null)
+            rows += this._esql.executeUpdate(update + swap.key + " <= " + cast, hi);
+         else if (hi == null)
+            rows += this._esql.executeUpdate(update + swap.key + " > " + cast, lo);
+         else
+            rows += this._esql.executeUpdate(update + swap.key + " > " + cast + " AND " + swap.key + " <= " + cast, lo, hi);
+         if (hi == null)
+            break;
+         lo = hi;
+         if (this._pauseMillis > 0) {
+            try{
+               Thread.sleep(this._pauseMillis);
+            }catch (InterruptedException e){
+               Thread.currentThread().interrupt();
+               throw new SQLException("Interrupted while copying " + swap.table);
+            }//end try
+         }//end if
+      }//end while
+      System.out.println(String.format("  copied %d %s rows in %.1fs", rows, swap.table, (System.nanoTime() - start) / 1e9));
+   }//end backfill
+
+   /*
+    * Turns Orders and ItemStatus into tables partitioned on orderid, see
+    * create_tables.sql. The existing tables become the first partitions,
+    * with their rows, indexes and foreign keys, so nothing is copied or
+    * rebuilt: a check constraint proves their rows belong in the first
+    * range, which is checked without blocking writers, and one short
+    * transaction then puts the partitioned tables in their place.
+    */
+   void partitionOrders(int size, int ahead) throws SQLException {
+      if (isPartitioned("Orders"))
+         return;
+      // the orders placed while the constraints are checked must still fit
+      long last = Long.parseLong(this._esql.executeQueryAndReturnResult(
+         "SELECT last_value FROM orders_orderid_seq").get(0).get(0).trim());
+      long bound = (last / size + 1 + ahead) * size;
+      String[] tables = { "Orders", "ItemStatus" };
+      String first = "_p" + String.format("%010d", 0);
+
+      // 1. the constraints, and what has to be moved to the new tables
+      List<String> triggers = new ArrayList<String>();
+      List<String> drops = new ArrayList<String>();
+      List<String> indexes = new ArrayList<String>();
+      List<String> renames = new ArrayList<String>();
+      for (String table : tables) {
+         String name = table.toLowerCase() + "_partition_bound";
+         this._esql.executeUpdate("ALTER TABLE " + table + " DROP CONSTRAINT IF EXISTS " + name);
+         this._esql.executeUpdate("ALTER TABLE " + table + " ADD CONSTRAINT " + name
+                                  + " CHECK (orderid >= 0 AND orderid < " + bound + ") NOT VALID");
+         long start = System.nanoTime();
+         this._esql.executeUpdate("ALTER TABLE " + table + " VALIDATE CONSTRAINT " + name);
+         System.out.println(String.format("  checked %s in %.1fs", table, (System.nanoTime() - start) / 1e9));
+         for (List<String> row : this._esql.executeQueryAndReturnResult(
+                "SELECT tgname, pg_get_triggerdef(oid) FROM pg_trigger " +
+                "WHERE tgrelid = CAST(? AS regclass) AND NOT tgisinternal", table)) {
+            drops.add("DROP TRIGGER " + row.get(0).trim() + " ON " + table);
+            triggers.add(row.get(1));
+         }//end for
+         for (List<String> row : this._esql.executeQueryAndReturnResult(
+                "SELECT i.relname, x.indisprimary OR x.indisunique, pg_get_indexdef(i.oid) FROM pg_index x " +
+                "JOIN pg_class i ON i.oid = x.indexrelid WHERE x.indrelid = CAST(? AS regclass)", table)) {
+            String index = row.get(0).trim();
+            if (index.equals("orders_orderid_key"))
+               continue;   // duplicates the primary key and is dropped
+            renames.add("ALTER INDEX " + index + " RENAME TO " + table.toLowerCase() + first + "_" + index);
+            // the primary keys are added by hand, the other indexes are
+            // created again on the new tables and matched up on attach
+            if (!row.get(1).trim().startsWith("t"))
+               indexes.add(row.get(2));
+         }//end for
+      }//end for
+
+      // 2. the swap
+      for (int attempt = 1; ; ++attempt) {
+         UnitOfWork uow = this._esql.beginUnitOfWork();
+         try{
+            uow.executeUpdate("SET LOCAL lock_timeout = '2s'");
+            uow.executeUpdate("LOCK TABLE Orders, ItemStatus IN ACCESS EXCLUSIVE MODE");
+            for (String sql : drops)
+               uow.executeUpdate(sql);
+            uow.executeUpdate("ALTER TABLE Orders DROP CONSTRAINT IF EXISTS orders_orderid_key");
+            for (String sql : renames)
+               uow.executeUpdate(sql);
+            for (String table : tables)
+               uow.executeUpdate("ALTER TABLE " + table + " RENAME TO " + table.toLowerCase() + first);
+            uow.executeUpdate("CREATE TABLE Orders (LIKE orders" + first + " INCLUDING DEFAULTS) PARTITION BY RANGE (orderid)");
+            uow.executeUpdate("ALTER TABLE Orders ADD PRIMARY KEY (orderid)");
+            uow.executeUpdate("ALTER SEQUENCE orders_orderid_seq OWNED BY Orders.orderid");
+            uow.executeUpdate("CREATE TABLE ItemStatus (LIKE itemstatus" + first + ") PARTITION BY RANGE (orderid)");
+            uow.executeUpdate("ALTER TABLE ItemStatus ADD PRIMARY KEY (orderid, itemName)");
+            uow.executeUpdate("ALTER TABLE ItemStatus ADD FOREIGN KEY (itemName) REFERENCES Menu(itemName)");
+            for (String sql : indexes)
+               uow.executeUpdate(sql);
+            for (String table : tables) {
+               uow.executeUpdate("ALTER TABLE " + table + " ATTACH PARTITION " + table.toLowerCase() + first
+                                 + " FOR VALUES FROM (0) TO (" + bound + ")");
+               uow.executeUpdate("ALTER TABLE " + table.toLowerCase() + first
+                                 + " DROP CONSTRAINT " + table.toLowerCase() + "_partition_bound");
+            }//end for
+            for (String sql : triggers)
+               uow.executeUpdate(sql);
+            uow.executeUpdate(
+               "CREATE TABLE IF NOT EXISTS OrderPartitions(" +
+               "fromId integer NOT NULL, toId integer NOT NULL, archived boolean NOT NULL DEFAULT false, " +
+               "frozen boolean NOT NULL DEFAULT false, " +
+               "firstReceived timestamp, lastReceived timestamp, PRIMARY KEY(fromId))");
+            uow.executeUpdate("INSERT INTO OrderPartitions (fromId, toId) VALUES (0, ?)", bound);
+            uow.commit();
+            System.out.println("  partitioned Orders and ItemStatus, first partition [0, " + bound + ")");
+            return;
+         }catch (SQLException e){
+            if (attempt == 10 || !isLockTimeout(e))
+               throw e;
+            System.out.println("  Orders is busy, retrying the swap");
+         }finally{
+            uow.close();
+         }//end try
+      }//end for
+   }//end partitionOrders
+
+   /*
+    * Creates an index on a partitioned table without holding up writers:
+    * the index of each partition is built CONCURRENTLY and attached to the
+    * index of the table, which is valid once every partition has one.
+    * Partitions added later get theirs when they are attached.
+    */
+   void createPartitionedIndex(String name, String table, String columns) throws SQLException {
+      this._esql.executeUpdate("CREATE INDEX IF NOT EXISTS " + name + " ON ONLY " + table + " (" + columns + ")");
+      // the partitions whose index is not attached yet
+      for (List<String> row : this._esql.executeQueryAndReturnResult(
+             "SELECT c.relname FROM pg_inherits p JOIN pg_class c ON c.oid = p.inhrelid " +
+             "WHERE p.inhparent = CAST(? AS regclass) AND NOT EXISTS (" +
+             "   SELECT 1 FROM pg_inherits i JOIN pg_index x ON x.indexrelid = i.inhrelid " +
+             "   WHERE i.inhparent = CAST(? AS regclass) AND x.indrelid = c.oid) ORDER BY 1",
+             table, name)) {
+         String partition = row.get(0).trim();
+         String index = partition + "_" + name;
+         // left invalid by an earlier failed run
+         this._esql.executeUpdate("DROP INDEX CONCURRENTLY IF EXISTS " + index);
+         long start = System.nanoTime();
+         this._esql.executeUpdate("CREATE INDEX CONCURRENTLY " + index + " ON " + partition + " (" + columns + ")");
+         this._esql.executeUpdate("ALTER INDEX " + name + " ATTACH PARTITION " + index);
+         System.out.println(String.format("  built %s in %.1fs", index, (System.nanoTime() - start) / 1e9));
+      }//end for
+   }//end createPartitionedIndex
+
+   /*
+    * Whether e is the lock_timeout of a swap running out. The bundled
+    * driver sets no SQLState, so the server message is checked as well.
+    */
+   static boolean isLockTimeout(SQLException e) {
+      return "55P03".equals(e.getSQLState())
+             || (e.getMessage() != null && e.getMessage().contains("lock timeout"));
+   }//end isLockTimeout
+
+   private boolean isPartitioned(String table) throws SQLException {
+      return this._esql.executeQueryAndReturnResult(
+         "SELECT relkind FROM pg_class WHERE oid = CAST(? AS regclass)", table).get(0).get(0).trim().equals("p");
+   }//end isPartitioned
+
+   /*
+    * Adds a foreign key without holding up writers while the existing rows
+    * are checked.
+    */
+   void addForeignKey(String table, String name, String definition) throws SQLException {
+      if (!this._esql.executeQueryAndReturnResult(
+             "SELECT 1 FROM pg_constraint WHERE conname = ?", name.toLowerCase()).isEmpty())
+         return;
+      this._esql.executeUpdate("ALTER TABLE " + table + " ADD CONSTRAINT " + name + " " + definition + " NOT VALID");
+      this._esql.executeUpdate("ALTER TABLE " + table + " VALIDATE CONSTRAINT " + name);
+   }//end addForeignKey
+
+   /*
+    * Converts a column of a small table in place.
+    */
+   void alterType(String table, String column, String type) throws SQLException {
+      if (isVarchar(table, column))
+         return;
+      this._esql.executeUpdate("ALTER TABLE " + table + " ALTER COLUMN " + column
+                               + " TYPE " + type + " USING rtrim(" + column + ")");
+   }//end alterType
+
+   boolean hasTable(String table) throws SQLException {
+      return !this._esql.executeQueryAndReturnResult(
+         "SELECT 1 FROM information_schema.tables WHERE table_schema = current_schema() AND table_name = ?",
+         table.toLowerCase()).isEmpty();
+   }//end hasTable
+
+   boolean hasTrigger(String table, String trigger) throws SQLException {
+      return !this._esql.executeQueryAndReturnResult(
+         "SELECT 1 FROM pg_trigger WHERE tgrelid = CAST(? AS regclass) AND tgname = ?",
+         table, trigger.toLowerCase()).isEmpty();
+   }//end hasTrigger
+
+   private boolean isVarchar(String table, String column) throws SQLException {
+      List<List<String>> type = this._esql.executeQueryAndReturnResult(
+         "SELECT data_type FROM information_schema.columns " +
+         "WHERE table_schema = current_schema() AND table_name = ? AND column_name = ?",
+         table.toLowerCase(), column.toLowerCase());
+      if (type.isEmpty())
+         throw new SQLException("No column " + table + "." + column);
+      return type.get(0).get(0).trim().equals("character varying");
+   }//end isVarchar
+
+   /*
+    * Updates the planner statistics, and with full set rewrites the tables
+    * to give back the space of the dropped columns.
+    */
+   void vacuum(boolean full) throws SQLException {
+      for (String table : new String[] { "Users", "Menu", "Orders", "ItemStatus", "ItemSalesDaily" }) {
+         if (!hasTable(table))
+            continue;
+         long start = System.nanoTime();
+         this._esql.executeUpdate((full ? "VACUUM FULL ANALYZE " : "VACUUM ANALYZE ") + table);
+         System.out.println(String.format("Vacuumed %s in %.1fs", table, (System.nanoTime() - start) / 1e9));
+      }//end for
+   }//end vacuum
+
+   /*
+    * Prints table and index sizes and the latency of the probes.
+    *
+    * @return the figures by name, for compare()
+    */
+   Map<String, long[]> report(int runs) throws SQLException {
+      Map<String, long[]> figures = new LinkedHashMap<String, long[]>();
+      System.out.println(String.format("%-22s %12s %12s", "table", "heap bytes", "index bytes"));
+      for (List<String> row : this._esql.executeQueryAndReturnResult(
+             "SELECT c.relname, pg_relation_size(c.oid), pg_indexes_size(c.oid) FROM pg_class c " +
+             "JOIN pg_namespace n ON n.oid = c.relnamespace " +
+             "WHERE n.nspname = current_schema() AND c.relkind = 'r' ORDER BY c.relname")) {
+         long heap = Long.parseLong(row.get(1).trim());
+         long index = Long.parseLong(row.get(2).trim());
+         System.out.println(String.format("%-22s %12d %12d", row.get(0).trim(), heap, index));
+         figures.put(row.get(0).trim(), new long[] { heap, index });
+      }//end for
+
+      System.out.println(String.format("%-22s %12s %12s", "probe", "p50 us", "p95 us"));
+      Object[][] params = sample();
+      for (int p = 0; p < PROBES.length; ++p) {
+         if (params[p] == null)
+            continue;   // no data to probe with
+         LatencyHistogram latency = new LatencyHistogram();
+         for (int i = 0; i <= runs; ++i) {
+            long start = System.nanoTime();
+            // a plain query, as the probes return a page of rows at most
+            this._esql.executeQuery(PROBES[p][1], params[p]);
+            if (i > 0)   // the first run warms up the statement cache
+               latency.record(System.nanoTime() - start);
+         }//end for
+         long p50 = latency.percentileNanos(50) / 1000;
+         long p95 = latency.percentileNanos(95) / 1000;
+         System.out.println(String.format("%-22s %12d %12d", PROBES[p][0], p50, p95));
+         figures.put("probe " + PROBES[p][0], new long[] { p50, p95 });
+      }//end for
+      return figures;
+   }//end report
+
+   /*
+    * Prints the change of every figure from before to after.
+    */
+   void compare(Map<String, long[]> before, Map<String, long[]> after) {
+      System.out.println(String.format("%-22s %12s %12s", "change", "heap/p50", "index/p95"));
+      for (Map.Entry<String, long[]> b : before.entrySet()) {
+         long[] a = after.get(b.getKey());
+         if (a == null)
+            continue;
+         System.out.println(String.format("%-22s %12s %12s", b.getKey(),
+                                          percent(b.getValue()[0], a[0]), percent(b.getValue()[1], a[1])));
+      }//end for
+   }//end compare
+
+   private static String percent(long before, long after) {
+      return before == 0 ? "-" : String.format("%+.1f%%", 100.0 * (after - before) / before);
+   }//end percent
+
+   /*
+    * Parameters of the probes taken from the data, null where the tables
+    * are empty.
+    */
+   private Object[][] sample() throws SQLException {
+      Object[][] params = new Object[PROBES.length][];
+      List<List<String>> user = this._esql.executeQueryAndReturnResult(
+         "SELECT u.login, u.password, u.phoneNum FROM Users u JOIN Orders o ON o.login = u.login " +
+         "ORDER BY o.orderid DESC LIMIT 1");
+      if (!user.isEmpty()) {
+         String login = user.get(0).get(0).trim();
+         params[0] = new Object[] { login, user.get(0).get(1).trim() };
+         if (user.get(0).get(2) != null)
+            params[1] = new Object[] { user.get(0).get(2).trim() };
+         params[2] = new Object[] { login };
+      }//end if
+      List<List<String>> order = this._esql.executeQueryAndReturnResult(
+         "SELECT orderid, CAST(timeStampRecieved AS date) - 30, CAST(timeStampRecieved AS date) " +
+         "FROM ItemStatus JOIN Orders USING (orderid) ORDER BY orderid DESC LIMIT 1");
+      if (!order.isEmpty()) {
+         params[3] = new Object[] { Integer.parseInt(order.get(0).get(0).trim()) };
+         // the 30 days of sales up to the last order, once there are rollups
+         if (hasTable("ItemSalesDaily"))
+            params[5] = new Object[] { order.get(0).get(1).trim(), order.get(0).get(2).trim() };
+      }//end if
+      params[4] = new Object[0];
+      return params;
+   }//end sample
+
+   /*
+    * Statement shapes listed one per line; blank lines and -- comments are
+    * skipped.
+    */
+   static List<String> readShapes(File file) throws IOException {
+      List<String> shapes = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try{
+         String line;
+         while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("--"))
+               shapes.add(line);
+         }//end while
+      }finally{
+         reader.close();
+      }//end try
+      return shapes;
+   }//end readShapes
+
+}//end Migrator
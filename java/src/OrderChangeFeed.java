@@ -0,0 +1,402 @@
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers changes of Orders and ItemStatus to subscribers as they happen.
+ *
+ * The triggers of sql/src/create_triggers.sql send a notification on the
+ * cafe_changes channel for every inserted or updated row. The feed LISTENs
+ * on a dedicated connection and a single thread dispatches the decoded
+ * changes to the subscribed listeners, so screens no longer re-query the
+ * tables to find out whether anything changed.
+ *
+ * The JDBC driver only reads notifications when a statement is executed,
+ * so the thread sends a trivial query every pollMillis, which costs the
+ * server next to nothing. Notifications are lost while the connection is
+ * down, and drivers older than 8.0, like the bundled one, do not pass the
+ * payload on. Either way the feed falls back to a catch-up query of the
+ * orders received or paid recently (index1, index7) and of the ItemStatus
+ * rows whose lastUpdated is recent (index5). A notification without
+ * payload only looks back to the previous catch-up, a few seconds more
+ * for transactions committing late, so under load a poll reads about
+ * pollMillis worth of changes; after a reconnect, and every catchUpMillis
+ * in case a change slipped through, the catch-up looks back a minute.
+ * Changes already delivered are not delivered again.
+ *
+ */
+public class OrderChangeFeed {
+
+   static final String CHANNEL = "cafe_changes";
+
+   // ItemStatus.lastUpdated and the order times are set at the start of
+   // their transaction, possibly a little before the row is committed, so
+   // catch-up looks back this far before the previous one
+   private static final long CATCH_UP_OVERLAP_MILLIS = 60000;
+
+   // the same for the catch-up of a notification without payload, which
+   // runs up to every pollMillis and is backed by the one above
+   private static final long NOTIFIED_OVERLAP_MILLIS = 2000;
+
+   // orders and items whose last delivered state is remembered
+   private static final int MAX_REMEMBERED = 10000;
+
+   /**
+    * One change of an order or of one of its items.
+    */
+   public static class Change {
+      // the order
+      public final int orderid;
+      // the item whose status changed, null for a change of the order itself
+      public final String itemName;
+      // the new item status, null for a change of the order itself
+      public final String status;
+      // whether the order is paid, null for an item change
+      public final Boolean paid;
+      Change(int orderid, String itemName, String status, Boolean paid) {
+         this.orderid = orderid;
+         this.itemName = itemName;
+         this.status = status;
+         this.paid = paid;
+      }
+      public String toString() {
+         return this.itemName == null
+            ? "order " + this.orderid + (Boolean.TRUE.equals(this.paid) ? " paid" : " not paid")
+            : "order " + this.orderid + " " + this.itemName + ": " + this.status;
+      }
+   }//end Change
+
+   /**
+    * Receives changes on the thread of the feed; must return quickly.
+    */
+   public interface Listener {
+      void changed(Change change);
+   }//end Listener
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final long _pollMillis;
+   private final long _catchUpMillis;
+
+   private final CopyOnWriteArrayList<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+
+   // last delivered paid flag per orderid and status per orderid + itemName,
+   // used by the feed thread only
+   private final Map<String, String> _delivered = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+         return size() > MAX_REMEMBERED;
+      }
+   };
+
+   private final Thread _thread;
+   private volatile boolean _closed = false;
+
+   // the listening connection, null while disconnected
+   private Connection _conn = null;
+   // server time up to which Orders and ItemStatus have been caught up
+   private Timestamp _since = null;
+   // System.currentTimeMillis() of the last catch-up looking back a minute
+   private long _lastCatchUp = 0;
+
+   private final AtomicLong _notifications = new AtomicLong();
+   private final AtomicLong _caughtUp = new AtomicLong();
+   private final AtomicLong _catchUps = new AtomicLong();
+   private final AtomicLong _reconnects = new AtomicLong();
+
+   /**
+    * Opens the listening connection and starts the feed thread.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param pollMillis interval at which pending notifications are read
+    * @param catchUpMillis interval of the catch-up query
+    * @throws java.sql.SQLException when failed to connect
+    */
+   public OrderChangeFeed(String url, String user, String passwd,
+                          long pollMillis, long catchUpMillis) throws SQLException {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._pollMillis = Math.max(10, pollMillis);
+      this._catchUpMillis = Math.max(this._pollMillis, catchUpMillis);
+      connect();
+      this._thread = new Thread(new Runnable() {
+         public void run() { listen(); }
+      }, "cafe-order-change-feed");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end OrderChangeFeed
+
+   /**
+    * @param listener receives every change from now on
+    */
+   public void subscribe(Listener listener) {
+      this._listeners.add(listener);
+   }//end subscribe
+
+   /**
+    * @param listener stops receiving changes
+    */
+   public void unsubscribe(Listener listener) {
+      this._listeners.remove(listener);
+   }//end unsubscribe
+
+   /**
+    * Stops the feed thread and closes its connection.
+    */
+   public void close() {
+      this._closed = true;
+      this._thread.interrupt();
+      try{
+         this._thread.join(this._pollMillis * 10);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+   /**
+    * @return the delivery counters
+    */
+   public String stats() {
+      return String.format("change feed: listeners=%d notifications=%d caughtUp=%d catchUps=%d reconnects=%d",
+                           this._listeners.size(), this._notifications.get(), this._caughtUp.get(),
+                           this._catchUps.get(), this._reconnects.get());
+   }//end stats
+
+   /*
+    * Body of the feed thread.
+    */
+   private void listen() {
+      try{
+         while (!this._closed) {
+            try{
+               if (this._conn == null) {
+                  connect();
+                  this._reconnects.incrementAndGet();
+                  catchUp(CATCH_UP_OVERLAP_MILLIS);
+               }//end if
+               boolean missed = poll();
+               if (System.currentTimeMillis() - this._lastCatchUp >= this._catchUpMillis)
+                  catchUp(CATCH_UP_OVERLAP_MILLIS);
+               else if (missed)
+                  catchUp(NOTIFIED_OVERLAP_MILLIS);
+            }catch (SQLException e){
+               if (!this._closed)
+                  System.err.println("Order change feed lost its connection: " + e.getMessage());
+               disconnect();
+            }//end try
+            Thread.sleep(this._pollMillis);
+         }//end while
+      }catch (InterruptedException e){
+         // closed
+      }finally{
+         disconnect();
+      }//end try
+   }//end listen
+
+   /*
+    * Opens the connection, LISTENs and sets the catch-up point to now
+    * unless catching up after a lost connection.
+    */
+   private void connect() throws SQLException {
+      Connection conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+      try{
+         Statement stmt = conn.createStatement();
+         try{
+            stmt.execute("LISTEN " + CHANNEL);
+         }finally{
+            stmt.close();
+         }//end try
+         if (this._since == null) {
+            this._since = serverTime(conn);
+            this._lastCatchUp = System.currentTimeMillis();
+         }//end if
+      }catch (SQLException e){
+         conn.close();
+         throw e;
+      }//end try
+      this._conn = conn;
+   }//end connect
+
+   private void disconnect() {
+      if (this._conn == null)
+         return;
+      try{
+         this._conn.close();
+      }catch (SQLException e){
+         // already broken
+      }//end try
+      this._conn = null;
+   }//end disconnect
+
+   /*
+    * Reads the pending notifications and dispatches their changes.
+    *
+    * @return true if a notification came without payload, so the change
+    *         has to be found by a catch-up
+    */
+   private boolean poll() throws SQLException {
+      Statement stmt = this._conn.createStatement();
+      try{
+         // the driver picks up notifications with the reply to any query
+         stmt.execute("SELECT 1");
+      }finally{
+         stmt.close();
+      }//end try
+      Object[] notes = notifications(this._conn);
+      boolean missed = false;
+      for (Object note : notes) {
+         this._notifications.incrementAndGet();
+         Change change = parse(payload(note));
+         if (change == null)
+            missed = true;
+         else
+            deliver(change);
+      }//end for
+      return missed;
+   }//end poll
+
+   /*
+    * Delivers the Orders and ItemStatus changes since overlapMillis before
+    * the last catch-up that were not delivered yet, the orders first.
+    */
+   private void catchUp(long overlapMillis) throws SQLException {
+      Timestamp now = serverTime(this._conn);
+      Timestamp since = new Timestamp(this._since.getTime() - overlapMillis);
+      PreparedStatement stmt = this._conn.prepareStatement(
+         "SELECT orderid, paid FROM Orders WHERE timeStampRecieved > ? " +
+         "UNION SELECT orderid, paid FROM Orders WHERE paidAt > ? ORDER BY 1");
+      try{
+         stmt.setTimestamp(1, since);
+         stmt.setTimestamp(2, since);
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next()) {
+            boolean paid = rs.getBoolean(2);
+            Change change = new Change(rs.getInt(1), null, null, rs.wasNull() ? null : Boolean.valueOf(paid));
+            if (deliver(change))
+               this._caughtUp.incrementAndGet();
+         }//end while
+         rs.close();
+      }finally{
+         stmt.close();
+      }//end try
+      stmt = this._conn.prepareStatement(
+         "SELECT orderid, itemName, status FROM ItemStatus WHERE lastUpdated > ? ORDER BY lastUpdated");
+      try{
+         stmt.setTimestamp(1, since);
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next()) {
+            Change change = new Change(rs.getInt(1), rs.getString(2).trim(), trim(rs.getString(3)), null);
+            if (deliver(change))
+               this._caughtUp.incrementAndGet();
+         }//end while
+         rs.close();
+      }finally{
+         stmt.close();
+      }//end try
+      this._since = now;
+      if (overlapMillis >= CATCH_UP_OVERLAP_MILLIS)
+         this._lastCatchUp = System.currentTimeMillis();
+      this._catchUps.incrementAndGet();
+   }//end catchUp
+
+   /*
+    * Passes change to the listeners unless it is a paid flag or an item
+    * status that was delivered already.
+    */
+   private boolean deliver(Change change) {
+      String key = change.itemName == null ? String.valueOf(change.orderid)
+                   : change.orderid + "\u001f" + change.itemName;
+      String state = change.itemName == null ? String.valueOf(change.paid)
+                     : change.status == null ? "" : change.status;
+      if (state.equals(this._delivered.get(key)))
+         return false;
+      this._delivered.put(key, state);
+      for (Listener listener : this._listeners) {
+         try{
+            listener.changed(change);
+         }catch (RuntimeException e){
+            System.err.println("Order change listener failed: " + e);
+         }//end try
+      }//end for
+      return true;
+   }//end deliver
+
+   /*
+    * Decodes a payload of the triggers: "o,<orderid>,<paid>" or
+    * "i,<orderid>,<status>,<itemName>". Returns null if there is none.
+    */
+   static Change parse(String payload) {
+      if (payload == null || payload.isEmpty())
+         return null;
+      try{
+         if (payload.startsWith("o,")) {
+            String[] f = payload.split(",", 3);
+            Boolean paid = f.length < 3 || f[2].isEmpty() ? null
+                           : Boolean.valueOf(f[2].startsWith("t"));
+            return new Change(Integer.parseInt(f[1]), null, null, paid);
+         }//end if
+         if (payload.startsWith("i,")) {
+            // the item name comes last as it may contain commas
+            String[] f = payload.split(",", 4);
+            return new Change(Integer.parseInt(f[1]), f[3], f[2], null);
+         }//end if
+      }catch (RuntimeException e){
+         // not one of ours
+      }//end try
+      return null;
+   }//end parse
+
+   private static Timestamp serverTime(Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try{
+         ResultSet rs = stmt.executeQuery("SELECT LOCALTIMESTAMP");
+         rs.next();
+         return rs.getTimestamp(1);
+      }finally{
+         stmt.close();
+      }//end try
+   }//end serverTime
+
+   /*
+    * PGConnection.getNotifications(), called by reflection so the driver
+    * is only needed at run time.
+    */
+   private static Object[] notifications(Connection conn) throws SQLException {
+      try{
+         Method m = Class.forName("org.postgresql.PGConnection").getMethod("getNotifications");
+         Object notes = m.invoke(conn);
+         return notes == null ? new Object[0] : (Object[]) notes;
+      }catch (Exception e){
+         throw new SQLException("Cannot read notifications: " + e);
+      }//end try
+   }//end notifications
+
+   /*
+    * PGNotification.getParameter(), or null if the driver predates payloads.
+    */
+   private static String payload(Object note) {
+      try{
+         Method m = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+         return (String) m.invoke(note);
+      }catch (Exception e){
+         return null;
+      }//end try
+   }//end payload
+
+   private static String trim(String s) {
+      return s == null ? null : s.trim();
+   }//end trim
+
+}//end OrderChangeFeed
@@ -0,0 +1,161 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out order ids reserved from orders_orderid_seq a block at a time,
+ * so placing an order does not need its own trip to the sequence.
+ *
+ * A block is fetched with one statement calling nextval() blockSize times.
+ * Other clients may draw from the sequence at the same time, so the ids of
+ * a block need not be consecutive, but every id comes from the sequence
+ * and is therefore never handed out twice, by this process or any other.
+ * Ids of a block that are not used before the process exits are lost,
+ * leaving gaps in orderid.
+ *
+ * Taking an id is a single atomic increment. When a quarter of the block
+ * is left the next block is fetched in the background, so callers only
+ * wait for the database when ids are taken faster than a block can be
+ * fetched.
+ *
+ */
+public class OrderIdAllocator {
+
+   private static final String FETCH =
+      "SELECT nextval('orders_orderid_seq') FROM generate_series(1, ?)";
+
+   /**
+    * Reserved ids and the index of the next one to hand out.
+    */
+   static class Block {
+      final int[] ids;
+      final AtomicInteger next = new AtomicInteger();
+      Block(int[] ids) { this.ids = ids; }
+   }//end Block
+
+   private final Cafe _esql;
+   private final int _blockSize;
+   private final int _refillAt;
+
+   // the block ids are taken from, an empty one until the first fetch
+   private volatile Block _current = new Block(new int[0]);
+   // the block being fetched in the background, null if none
+   private Future<Block> _prefetch = null;
+
+   private final ExecutorService _fetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+         // ids are fetched for checkout
+         Thread t = new Thread(AdmissionController.runAs(AdmissionController.WorkClass.INTERACTIVE, r),
+                               "cafe-order-id-prefetch");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   private final AtomicLong _allocated = new AtomicLong();
+   private final AtomicLong _fetches = new AtomicLong();
+   private final AtomicLong _stalls = new AtomicLong();
+
+   /**
+    * @param esql the database the sequence lives in
+    * @param blockSize number of ids reserved per round trip
+    */
+   public OrderIdAllocator(Cafe esql, int blockSize) {
+      this._esql = esql;
+      this._blockSize = Math.max(1, blockSize);
+      this._refillAt = this._blockSize - Math.max(1, this._blockSize / 4);
+   }//end OrderIdAllocator
+
+   /**
+    * @return an order id no one else has been or will be given
+    * @throws java.sql.SQLException when a block could not be fetched
+    */
+   public int next() throws SQLException {
+      while (true) {
+         Block block = this._current;
+         int i = block.next.getAndIncrement();
+         if (i < block.ids.length) {
+            if (i == this._refillAt)
+               prefetch();
+            this._allocated.incrementAndGet();
+            return block.ids[i];
+         }//end if
+         advance(block);
+      }//end while
+   }//end next
+
+   /**
+    * Stops the background fetcher. The ids still reserved are lost.
+    */
+   public void close() {
+      this._fetcher.shutdownNow();
+   }//end close
+
+   /**
+    * @return the number of ids handed out, the sequence round trips they
+    *         took and the round trips saved compared to one per order
+    */
+   public String stats() {
+      long allocated = this._allocated.get();
+      long fetches = this._fetches.get();
+      return String.format("order ids: blockSize=%d allocated=%d sequenceCalls=%d saved=%d stalls=%d",
+                           this._blockSize, allocated, fetches, Math.max(0, allocated - fetches),
+                           this._stalls.get());
+   }//end stats
+
+   /*
+    * Replaces the exhausted block with the prefetched one, or fetches one
+    * while the caller waits.
+    */
+   private synchronized void advance(Block exhausted) throws SQLException {
+      if (this._current != exhausted)
+         return;   // another thread got here first
+      Block block = null;
+      if (this._prefetch != null) {
+         try{
+            block = this._prefetch.get();
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while reserving order ids");
+         }catch (ExecutionException e){
+            // fetch again below
+         }//end try
+         this._prefetch = null;
+      }//end if
+      if (block == null) {
+         if (exhausted.ids.length > 0)
+            this._stalls.incrementAndGet();
+         block = fetch();
+      }//end if
+      this._current = block;
+   }//end advance
+
+   private synchronized void prefetch() {
+      if (this._prefetch != null)
+         return;
+      try{
+         this._prefetch = this._fetcher.submit(new Callable<Block>() {
+            public Block call() throws SQLException { return fetch(); }
+         });
+      }catch (RuntimeException e){
+         // closed, advance() fetches synchronously
+      }//end try
+   }//end prefetch
+
+   private Block fetch() throws SQLException {
+      List<List<String>> rows = this._esql.executeQueryAndReturnResult(FETCH, this._blockSize);
+      int[] ids = new int[rows.size()];
+      for (int i = 0; i < ids.length; ++i)
+         ids[i] = Integer.parseInt(rows.get(i).get(0));
+      this._fetches.incrementAndGet();
+      return new Block(ids);
+   }//end fetch
+
+}//end OrderIdAllocator
@@ -0,0 +1,307 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Looks after the orderid range partitions of Orders and ItemStatus
+ * listed in OrderPartitions, see create_tables.sql.
+ *
+ * maintain() adds empty partitions until there is room for ahead more
+ * partitions worth of orders, so an order never waits for a partition to
+ * be created, and archives the old ones: a partition whose ids have all
+ * been handed out, whose orders are all paid and which has not changed
+ * for archiveAfterHours is made read-only and frozen; a freeze that
+ * failed is retried by the next maintain(). Vacuum then skips it for good
+ * and its indexes are never touched again, so the maintenance cost
+ * follows the recent orders rather than the whole history. Archived
+ * partitions are not rewritten: VACUUM FULL or a move to another
+ * tablespace would lock them against the checkouts, whose triggers read
+ * ItemStatus without knowing the partition when they are planned.
+ *
+ * The catalog also tells Cafe where the recent orders start, so the order
+ * screens can leave the archived partitions out of their queries.
+ *
+ * Usage, e.g. from cron:
+ *    java PartitionManager &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [status|maintain]
+ *
+ * Settings, also used by Cafe:
+ *    -Dcafe.partitions.size=10000            order ids per partition
+ *    -Dcafe.partitions.ahead=2               partitions kept in reserve
+ *    -Dcafe.partitions.archiveAfterHours=168 quiet time before archiving
+ *    -Dcafe.partitions.maintainMinutes=0     interval of maintain() in
+ *                                            Cafe, 0 for never; set it
+ *                                            in one process only
+ *
+ */
+public class PartitionManager {
+
+   /**
+    * One row of OrderPartitions.
+    */
+   public static class Partition {
+      public final int fromId;
+      public final int toId;
+      public final boolean archived;
+      public final boolean frozen;
+      public final String firstReceived;
+      public final String lastReceived;
+      Partition(List<String> row) {
+         this.fromId = Integer.parseInt(row.get(0).trim());
+         this.toId = Integer.parseInt(row.get(1).trim());
+         this.archived = row.get(2).trim().startsWith("t");
+         this.frozen = row.get(3).trim().startsWith("t");
+         this.firstReceived = row.get(4);
+         this.lastReceived = row.get(5);
+      }
+      /**
+       * @return the name of the partition of table, Orders or ItemStatus
+       */
+      public String name(String table) {
+         return String.format("%s_p%010d", table.toLowerCase(), this.fromId);
+      }
+      public String toString() {
+         return String.format("[%d, %d) %s", this.fromId, this.toId,
+                              !this.archived ? "open"
+                              : (this.frozen ? "archived" : "archived, not frozen")
+                                + ", received " + this.firstReceived + " - " + this.lastReceived);
+      }
+   }//end Partition
+
+   private final Cafe _esql;
+   private final int _size;
+   private final int _ahead;
+   private final long _archiveAfterHours;
+
+   // the first order id of the partitions that are not archived, 0 until
+   // the catalog is read; only ever grows
+   private volatile int _recentFrom = 0;
+
+   private ScheduledExecutorService _scheduler = null;
+
+   private final AtomicLong _added = new AtomicLong();
+   private final AtomicLong _archived = new AtomicLong();
+   private final AtomicLong _frozen = new AtomicLong();
+   private final AtomicLong _failed = new AtomicLong();
+
+   /**
+    * @param esql the database
+    * @param size order ids per partition
+    * @param ahead partitions kept in reserve beyond the last id handed out
+    * @param archiveAfterHours time a partition has to be unchanged before
+    *        it is archived
+    */
+   public PartitionManager(Cafe esql, int size, int ahead, long archiveAfterHours) {
+      this._esql = esql;
+      this._size = Math.max(1, size);
+      this._ahead = Math.max(1, ahead);
+      this._archiveAfterHours = archiveAfterHours;
+   }//end PartitionManager
+
+   /**
+    * @param esql the database
+    * @return a manager configured by the cafe.partitions.* properties
+    */
+   static PartitionManager fromProperties(Cafe esql) {
+      return new PartitionManager(esql,
+                                  Integer.getInteger("cafe.partitions.size", 10000),
+                                  Integer.getInteger("cafe.partitions.ahead", 2),
+                                  Long.getLong("cafe.partitions.archiveAfterHours", 7 * 24L));
+   }//end fromProperties
+
+   /**
+    * The main execution method
+    *
+    * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [status|maintain]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + PartitionManager.class.getName() +
+            " <dbname> <port> <user> [status|maintain]");
+         return;
+      }//end if
+      AdmissionController.setDefaultClass(AdmissionController.WorkClass.MAINTENANCE);
+      Class.forName("org.postgresql.Driver").newInstance();
+      Cafe esql = new Cafe(args[0], args[1], args[2], "", 1, 1);
+      try{
+         PartitionManager manager = fromProperties(esql);
+         if (args.length > 3 && args[3].equals("maintain"))
+            manager.maintain();
+         for (Partition p : manager.partitions())
+            System.out.println(p);
+         System.out.println(manager.stats());
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Runs maintain() now and every periodMinutes on a background thread.
+    */
+   public synchronized void start(long periodMinutes) {
+      if (this._scheduler != null)
+         return;
+      ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(AdmissionController.runAs(AdmissionController.WorkClass.MAINTENANCE, r),
+                                  "cafe-partitions");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try{
+               maintain();
+            }catch (SQLException e){
+               System.err.println("Partition maintenance failed: " + e.getMessage());
+            }//end try
+         }
+      }, 0, periodMinutes, TimeUnit.MINUTES);
+      this._scheduler = scheduler;
+   }//end start
+
+   /**
+    * Stops the background maintenance.
+    */
+   public synchronized void close() {
+      if (this._scheduler != null)
+         this._scheduler.shutdownNow();
+   }//end close
+
+   /**
+    * Adds the partitions needed ahead, then archives the partitions that
+    * can be.
+    *
+    * @throws java.sql.SQLException when the catalog could not be read
+    */
+   public void maintain() throws SQLException {
+      try{
+         addPartitions();
+      }catch (SQLException e){
+         // e.g. a lock timeout, the reserve is still there
+         this._failed.incrementAndGet();
+         System.err.println("Adding partitions failed: " + e.getMessage());
+      }//end try
+      for (Partition p : partitions()) {
+         try{
+            if (p.archived && !p.frozen)
+               freeze(p);   // archived, but the freeze failed
+            else if (!p.archived && p.toId <= lastOrderId())
+               archive(p);
+         }catch (SQLException e){
+            this._failed.incrementAndGet();
+            System.err.println("Archiving orders " + p + " failed: " + e.getMessage());
+         }//end try
+      }//end for
+      partitions();
+   }//end maintain
+
+   /**
+    * Adds partitions until ahead of them are left beyond the last order id
+    * handed out.
+    *
+    * @return the number of partitions added
+    * @throws java.sql.SQLException when the partitions could not be added
+    */
+   public int addPartitions() throws SQLException {
+      int added = Integer.parseInt(this._esql.executeQueryAndReturnResult(
+         "SELECT add_order_partitions(?, ?)", this._size, this._ahead).get(0).get(0).trim());
+      this._added.addAndGet(added);
+      return added;
+   }//end addPartitions
+
+   /**
+    * Archives a partition if it is closed and freezes it, see the class
+    * comment.
+    *
+    * @param p the partition
+    * @return whether it was archived
+    * @throws java.sql.SQLException when the partition could not be archived
+    *         or frozen
+    */
+   public boolean archive(Partition p) throws SQLException {
+      boolean archived = this._esql.executeQueryAndReturnResult(
+         "SELECT archive_order_partition(?, CAST(? AS interval))",
+         p.fromId, this._archiveAfterHours + " hours").get(0).get(0).trim().startsWith("t");
+      if (!archived)
+         return false;
+      this._archived.incrementAndGet();
+      freeze(p);
+      return true;
+   }//end archive
+
+   /**
+    * Freezes an archived partition, then records that it is done, so
+    * maintain() retries it until it succeeds.
+    *
+    * @param p the partition, archived
+    * @throws java.sql.SQLException when the partition could not be frozen
+    */
+   public void freeze(Partition p) throws SQLException {
+      long start = System.nanoTime();
+      for (String table : new String[] { "Orders", "ItemStatus" }) {
+         // all visible and frozen: no vacuum will have to look at it again.
+         // Like any vacuum it lets reads and writes of the partition go on.
+         this._esql.executeUpdate("VACUUM (FREEZE, ANALYZE) " + p.name(table));
+      }//end for
+      this._esql.executeUpdate("UPDATE OrderPartitions SET frozen = true WHERE fromId = ?", p.fromId);
+      this._frozen.incrementAndGet();
+      System.out.println(String.format("Froze orders [%d, %d) in %.1fs", p.fromId, p.toId,
+                                       (System.nanoTime() - start) / 1e9));
+   }//end freeze
+
+   /**
+    * Reads the catalog.
+    *
+    * @return the partitions, by order id
+    * @throws java.sql.SQLException when the catalog could not be read
+    */
+   public List<Partition> partitions() throws SQLException {
+      List<Partition> partitions = new ArrayList<Partition>();
+      int recentFrom = -1;
+      for (List<String> row : this._esql.executeQueryAndReturnResult(
+             "SELECT fromId, toId, archived, frozen, firstReceived, lastReceived FROM OrderPartitions ORDER BY fromId")) {
+         Partition p = new Partition(row);
+         partitions.add(p);
+         if (!p.archived && recentFrom < 0)
+            recentFrom = p.fromId;
+      }//end for
+      if (recentFrom > this._recentFrom)
+         this._recentFrom = recentFrom;
+      return partitions;
+   }//end partitions
+
+   /**
+    * The first order id of the partitions that are not archived. Orders
+    * with smaller ids are all paid and do not change anymore. Refreshed by
+    * maintain() and partitions(), so it may lag behind the catalog, which
+    * only means more partitions are read than needed.
+    *
+    * @return the first order id that may be open, 0 if unknown
+    */
+   public int recentFrom() {
+      return this._recentFrom;
+   }//end recentFrom
+
+   /**
+    * @return the partition counters
+    */
+   public String stats() {
+      return String.format("partitions: size=%d recentFrom=%d added=%d archived=%d frozen=%d failed=%d",
+                           this._size, this._recentFrom, this._added.get(),
+                           this._archived.get(), this._frozen.get(), this._failed.get());
+   }//end stats
+
+   private int lastOrderId() throws SQLException {
+      return Integer.parseInt(this._esql.executeQueryAndReturnResult(
+         "SELECT last_value FROM orders_orderid_seq").get(0).get(0).trim());
+   }//end lastOrderId
+
+}//end PartitionManager
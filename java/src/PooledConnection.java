@@ -0,0 +1,110 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A physical database connection owned by a ConnectionPool, together with
+ * the bookkeeping the pool needs to validate and evict it.
+ *
+ */
+class PooledConnection {
+
+   // the physical connection handed out to callers
+   private final Connection _connection;
+
+   // prepared statements reused across borrows of this connection
+   private final StatementCache _statements;
+
+   // System.currentTimeMillis() of the last time this connection was returned
+   long lastReleased;
+
+   // the permit of the borrower, null if it held one already
+   AdmissionController.WorkClass admitted;
+
+   // the statement_timeout of the session in seconds, 0 for none as opened
+   private int _timeoutSeconds = 0;
+
+   PooledConnection(Connection connection, StatementCache statements) {
+      this._connection = connection;
+      this._statements = statements;
+      this.lastReleased = System.currentTimeMillis();
+   }//end PooledConnection
+
+   /**
+    * @return the underlying JDBC connection
+    */
+   Connection connection() {
+      return this._connection;
+   }//end connection
+
+   /**
+    * Sets the statement timeout of the session, so the server cancels any
+    * statement running longer. Statement.setQueryTimeout() does nothing in
+    * the bundled driver. Only sent when it changes.
+    *
+    * @param seconds the timeout, 0 for none
+    * @throws java.sql.SQLException when it could not be set
+    */
+   void timeout(int seconds) throws SQLException {
+      if (seconds == this._timeoutSeconds)
+         return;
+      Statement stmt = this._connection.createStatement();
+      try{
+         stmt.executeUpdate("SET statement_timeout = " + (seconds * 1000));
+      }finally{
+         stmt.close();
+      }//end try
+      this._timeoutSeconds = seconds;
+   }//end timeout
+
+   /**
+    * Returns a prepared statement for sql from this connection's cache.
+    * The statement must be given back with done() instead of being closed.
+    *
+    * @param sql the SQL text with ? placeholders
+    * @return a prepared statement with cleared parameters
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   PreparedStatement prepare(String sql) throws SQLException {
+      return this._statements.prepare(this._connection, sql);
+   }//end prepare
+
+   /**
+    * @return a new statement, to be closed by the caller
+    * @throws java.sql.SQLException when the statement cannot be created
+    */
+   Statement statement() throws SQLException {
+      return this._connection.createStatement();
+   }//end statement
+
+   /**
+    * Gives back a statement obtained from prepare(). Statements that did
+    * not fit in the cache are closed, cached ones stay open for reuse.
+    *
+    * @param sql the SQL text the statement was prepared from
+    * @param ps the statement
+    */
+   void done(String sql, PreparedStatement ps) {
+      try{
+         if (!this._statements.isCached(sql, ps))
+            ps.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end done
+
+   /**
+    * Closes the cached statements and the physical connection, ignoring
+    * any error.
+    */
+   void close() {
+      this._statements.close();
+      try{
+         this._connection.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end close
+
+}//end PooledConnection
@@ -0,0 +1,268 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches query results keyed by SQL text and parameter values. Every entry
+ * is tagged with the tables its query reads; a statement that writes to one
+ * of those tables evicts the entry. Entries also expire after a fixed time
+ * and the least recently used ones are dropped when the cache is full.
+ *
+ * Only tables registered with the cache are recognized. Queries that read
+ * none of them, or that call volatile functions, are never cached.
+ *
+ * Writes are only seen when they go through this process. Every console
+ * terminal is a process of its own, so a cached result may miss the
+ * writes of other terminals, of psql or of the database's own triggers
+ * until it expires. Tables that are written that way all the time, like
+ * Orders and ItemStatus, are therefore registered as shared: their writes
+ * still evict entries, but queries reading them are never cached.
+ *
+ */
+public class QueryResultCache {
+
+   private static class Key {
+      final String sql;
+      final List<Object> params;
+      final int hash;
+      Key(String sql, Object[] params) {
+         this.sql = sql;
+         this.params = Arrays.asList(params);
+         this.hash = 31 * sql.hashCode() + this.params.hashCode();
+      }
+      public int hashCode() { return this.hash; }
+      public boolean equals(Object o) {
+         if (!(o instanceof Key))
+            return false;
+         Key k = (Key) o;
+         return this.sql.equals(k.sql) && this.params.equals(k.params);
+      }
+   }//end Key
+
+   private static class Cached {
+      final List<List<String>> rows;
+      final Set<String> tables;
+      final long expires;
+      Cached(List<List<String>> rows, Set<String> tables, long expires) {
+         this.rows = rows;
+         this.tables = tables;
+         this.expires = expires;
+      }
+   }//end Cached
+
+   // functions whose result changes between calls
+   private static final Pattern VOLATILE = Pattern.compile(
+      "\\b(nextval|currval|setval|now|random|clock_timestamp|current_timestamp|current_date|localtimestamp)\\b",
+      Pattern.CASE_INSENSITIVE);
+
+   // data modifying statements, which are never cached
+   private static final Pattern WRITE = Pattern.compile(
+      "\\b(insert|update|delete|truncate|alter|drop|create|copy)\\b",
+      Pattern.CASE_INSENSITIVE);
+
+   // the table a data modifying statement writes to
+   private static final Pattern WRITE_TARGET = Pattern.compile(
+      "\\b(?:insert\\s+into|update|delete\\s+from|truncate(?:\\s+table)?|alter\\s+table|drop\\s+table|copy)" +
+      "\\s+(?:only\\s+)?([a-z_][a-z0-9_]*)",
+      Pattern.CASE_INSENSITIVE);
+
+   private final int _capacity;
+   private final long _ttlMillis;
+
+   // known table names (lower case) and the patterns recognizing them
+   private final Map<String, Pattern> _tables = new LinkedHashMap<String, Pattern>();
+
+   // the registered tables whose reads are not cached, guarded by this
+   private final Set<String> _shared = new HashSet<String>();
+
+   // cached results in access order, guarded by this
+   private final LinkedHashMap<Key, Cached> _entries = new LinkedHashMap<Key, Cached>(16, 0.75f, true);
+
+   // incremented by every invalidation, see stamp()
+   private long _stamp = 0;
+
+   // counters, guarded by this
+   private long _hits, _misses, _puts, _evictions, _expirations, _invalidations;
+
+   /**
+    * @param capacity maximum number of cached results, 0 disables the cache
+    * @param ttlMillis how long a result may be served before it expires
+    * @param tables the tables whose writes are tracked
+    */
+   public QueryResultCache(int capacity, long ttlMillis, String... tables) {
+      this._capacity = capacity;
+      this._ttlMillis = ttlMillis;
+      for (String t : tables)
+         addTable(t);
+   }//end QueryResultCache
+
+   /**
+    * Registers another table whose reads are cached and writes tracked.
+    */
+   public synchronized void addTable(String table) {
+      String name = table.toLowerCase();
+      this._tables.put(name, Pattern.compile("\\b" + Pattern.quote(name) + "\\b", Pattern.CASE_INSENSITIVE));
+   }//end addTable
+
+   /**
+    * Registers a table written by other processes, see the class comment.
+    * Its writes through this cache are tracked, its reads never cached.
+    */
+   public synchronized void addSharedTable(String table) {
+      addTable(table);
+      this._shared.add(table.toLowerCase());
+   }//end addSharedTable
+
+   /**
+    * @return true if results of sql may be cached at all
+    */
+   public boolean isCacheable(String sql) {
+      if (this._capacity <= 0 || WRITE.matcher(sql).find() || VOLATILE.matcher(sql).find())
+         return false;
+      Set<String> tables = tablesOf(sql);
+      synchronized (this) {
+         return Collections.disjoint(tables, this._shared);
+      }//end synchronized
+   }//end isCacheable
+
+   /**
+    * @return true if sql may modify data and must invalidate the cache
+    */
+   public static boolean isWrite(String sql) {
+      return WRITE.matcher(sql).find();
+   }//end isWrite
+
+   /**
+    * @return true if sql calls a function whose result changes from call
+    *         to call, or that has side effects like nextval()
+    */
+   public static boolean isVolatile(String sql) {
+      return VOLATILE.matcher(sql).find();
+   }//end isVolatile
+
+   /**
+    * Returns a token to pass to put(). A result is only stored if no write
+    * invalidated the cache since the token was taken, so results read
+    * concurrently with a write are never cached.
+    */
+   public synchronized long stamp() {
+      return this._stamp;
+   }//end stamp
+
+   /**
+    * @return the cached rows of sql with params, or null on a miss
+    */
+   public synchronized List<List<String>> get(String sql, Object[] params) {
+      Key key = new Key(sql, params);
+      Cached c = this._entries.get(key);
+      if (c != null && c.expires < System.currentTimeMillis()) {
+         this._entries.remove(key);
+         ++this._expirations;
+         c = null;
+      }//end if
+      if (c == null) {
+         ++this._misses;
+         return null;
+      }//end if
+      ++this._hits;
+      return c.rows;
+   }//end get
+
+   /**
+    * Stores the rows of sql with params, unless a write happened since stamp.
+    *
+    * @return the rows as an unmodifiable list, to be returned to the caller
+    */
+   public List<List<String>> put(String sql, Object[] params, List<List<String>> rows, long stamp) {
+      List<List<String>> frozen = new ArrayList<List<String>>(rows.size());
+      for (List<String> row : rows)
+         frozen.add(Collections.unmodifiableList(row));
+      frozen = Collections.unmodifiableList(frozen);
+
+      Set<String> tables = tablesOf(sql);
+      if (tables.isEmpty())
+         return frozen;
+      synchronized (this) {
+         if (stamp != this._stamp || !Collections.disjoint(tables, this._shared))
+            return frozen;
+         this._entries.put(new Key(sql, params.clone()),
+                           new Cached(frozen, tables, System.currentTimeMillis() + this._ttlMillis));
+         ++this._puts;
+         Iterator<Cached> it = this._entries.values().iterator();
+         while (this._entries.size() > this._capacity && it.hasNext()) {
+            it.next();
+            it.remove();
+            ++this._evictions;
+         }//end while
+      }//end synchronized
+      return frozen;
+   }//end put
+
+   /**
+    * Evicts every entry reading a table that sql may write. The tables
+    * written are the targets of INSERT/UPDATE/DELETE and friends; when none
+    * is recognized every registered table named in sql is assumed written,
+    * and statements naming no known table conservatively clear the cache.
+    */
+   public void invalidate(String sql) {
+      Set<String> tables = writtenTablesOf(sql);
+      synchronized (this) {
+         ++this._stamp;
+         Iterator<Cached> it = this._entries.values().iterator();
+         while (it.hasNext()) {
+            Cached c = it.next();
+            if (tables.isEmpty() || !Collections.disjoint(c.tables, tables)) {
+               it.remove();
+               ++this._invalidations;
+            }//end if
+         }//end while
+      }//end synchronized
+   }//end invalidate
+
+   /**
+    * @return the hit ratio and eviction counters of the cache
+    */
+   public synchronized String stats() {
+      long lookups = this._hits + this._misses;
+      return String.format(
+         "result cache: size=%d capacity=%d hits=%d misses=%d hitRatio=%.1f%% puts=%d " +
+         "evictions=%d expirations=%d invalidations=%d",
+         this._entries.size(), this._capacity, this._hits, this._misses,
+         lookups == 0 ? 0.0 : 100.0 * this._hits / lookups, this._puts,
+         this._evictions, this._expirations, this._invalidations);
+   }//end stats
+
+   /*
+    * The registered tables sql writes to.
+    */
+   private synchronized Set<String> writtenTablesOf(String sql) {
+      Set<String> found = new HashSet<String>();
+      Matcher m = WRITE_TARGET.matcher(sql);
+      while (m.find()) {
+         String target = m.group(1).toLowerCase();
+         if (this._tables.containsKey(target))
+            found.add(target);
+      }//end while
+      return found.isEmpty() ? tablesOf(sql) : found;
+   }//end writtenTablesOf
+
+   /*
+    * The registered tables named in sql.
+    */
+   private synchronized Set<String> tablesOf(String sql) {
+      Set<String> found = new HashSet<String>();
+      for (Map.Entry<String, Pattern> t : this._tables.entrySet())
+         if (t.getValue().matcher(sql).find())
+            found.add(t.getKey());
+      return found;
+   }//end tablesOf
+
+}//end QueryResultCache
@@ -0,0 +1,349 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per statement-shape execution statistics and the slow query log.
+ *
+ * Statements are grouped by shape: the SQL text with literals replaced by
+ * ? and whitespace collapsed, so "... WHERE login = 'Amy'" and "... WHERE
+ * login = 'Bob'" are counted together. For every shape the number of calls,
+ * errors, rows and a latency histogram are kept.
+ *
+ * Statements slower than the configured threshold are written to the slow
+ * query log by shape with the number of their parameters and, optionally,
+ * the plan printed by EXPLAIN ANALYZE. Literals and bound values are never
+ * written, as they include passwords; string constants in plans are
+ * replaced by '?' too. Plans are captured on a background thread so
+ * the slow caller is not delayed further; data modifying statements, and
+ * those calling nextval() and the like, are only EXPLAINed, never
+ * re-executed. Other statements may still call functions that write, as
+ * SELECT apply_cooccurrence() does, so they are re-executed in a
+ * transaction that is rolled back.
+ *
+ */
+public class QueryStats {
+
+   /**
+    * The counters of one statement shape.
+    */
+   static class Shape {
+      final String sql;
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final LatencyHistogram latency = new LatencyHistogram();
+      Shape(String sql) { this.sql = sql; }
+      double totalMillis() { return this.latency.meanNanos() * this.latency.count() / 1e6; }
+   }//end Shape
+
+   // shapes beyond this number are counted together
+   private static final int MAX_SHAPES = 1000;
+   private static final String OTHER = "<other statements>";
+
+   private final ConcurrentHashMap<String, Shape> _shapes = new ConcurrentHashMap<String, Shape>();
+
+   // slow query log configuration
+   private final long _slowNanos;
+   private final boolean _explain;
+   private final PrintWriter _log;
+   private final ConnectionPool _pool;
+
+   // captures EXPLAIN ANALYZE output off the caller's thread
+   private final ExecutorService _explainer;
+
+   // writes the periodic report, null unless started
+   private Timer _reporter = null;
+
+   /**
+    * @param pool the pool used to run EXPLAIN for slow statements
+    * @param slowMillis threshold of the slow query log, 0 or less disables it
+    * @param explain whether plans of slow statements are captured
+    * @param logFile file the slow query log is appended to, null for stderr
+    */
+   public QueryStats(ConnectionPool pool, long slowMillis, boolean explain, String logFile) {
+      this._pool = pool;
+      this._slowNanos = slowMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(slowMillis) : Long.MAX_VALUE;
+      this._explain = explain;
+      PrintWriter log = null;
+      if (logFile != null) {
+         try{
+            log = new PrintWriter(new FileWriter(logFile, true), true);
+         }catch (IOException e){
+            System.err.println("Cannot open slow query log " + logFile + ": " + e.getMessage());
+         }//end try
+      }//end if
+      this._log = log != null ? log : new PrintWriter(System.err, true);
+      this._explainer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                               new LinkedBlockingQueue<Runnable>(100),
+                                               new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(AdmissionController.runAs(AdmissionController.WorkClass.MAINTENANCE, r),
+                                  "cafe-slow-query-explain");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }//end QueryStats
+
+   /**
+    * Records one execution of sql.
+    *
+    * @param sql the statement as executed
+    * @param params its parameters, may be null
+    * @param rows rows returned or affected, negative if unknown
+    * @param startNanos System.nanoTime() when the statement was started
+    * @param failed whether the statement raised an error
+    */
+   public void record(String sql, Object[] params, long rows, long startNanos, boolean failed) {
+      long nanos = System.nanoTime() - startNanos;
+      Shape shape = shape(sql);
+      shape.latency.record(nanos);
+      if (failed)
+         shape.errors.incrementAndGet();
+      else if (rows > 0)
+         shape.rows.addAndGet(rows);
+      if (nanos >= this._slowNanos)
+         slow(sql, params, nanos);
+   }//end record
+
+   /**
+    * @param top maximum number of shapes listed
+    * @return the statement shapes with the highest total time, as a table
+    */
+   public String report(int top) {
+      List<Shape> shapes = new ArrayList<Shape>(this._shapes.values());
+      Collections.sort(shapes, new Comparator<Shape>() {
+         public int compare(Shape a, Shape b) {
+            return Double.compare(b.totalMillis(), a.totalMillis());
+         }
+      });
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("%8s %6s %9s %10s %9s %9s %9s %9s %9s  %s%n",
+                              "calls", "errors", "rows", "total ms", "mean ms",
+                              "p50 ms", "p95 ms", "p99 ms", "max ms", "statement"));
+      for (int i = 0; i < Math.min(top, shapes.size()); ++i) {
+         Shape s = shapes.get(i);
+         LatencyHistogram h = s.latency;
+         sb.append(String.format("%8d %6d %9d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f  %s%n",
+                                 h.count(), s.errors.get(), s.rows.get(), s.totalMillis(),
+                                 h.meanNanos() / 1e6, h.percentileNanos(50) / 1e6,
+                                 h.percentileNanos(95) / 1e6, h.percentileNanos(99) / 1e6,
+                                 h.maxNanos() / 1e6, abbreviate(s.sql, 100)));
+      }//end for
+      return sb.toString();
+   }//end report
+
+   /**
+    * @return the distinct statement shapes seen so far
+    */
+   public List<String> shapes() {
+      List<String> shapes = new ArrayList<String>(this._shapes.keySet());
+      shapes.remove(OTHER);
+      return shapes;
+   }//end shapes
+
+   /**
+    * Writes the top statements to the slow query log every interval.
+    *
+    * @param seconds the interval between two reports
+    * @param top maximum number of statement shapes per report
+    */
+   public synchronized void startPeriodicReport(long seconds, final int top) {
+      if (this._reporter != null)
+         this._reporter.cancel();
+      this._reporter = new Timer("cafe-query-stats", true);
+      this._reporter.schedule(new TimerTask() {
+         public void run() {
+            QueryStats.this._log.print(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date())
+                                       + " query statistics" + System.getProperty("line.separator")
+                                       + report(top));
+            QueryStats.this._log.flush();
+         }
+      }, seconds * 1000, seconds * 1000);
+   }//end startPeriodicReport
+
+   /**
+    * Stops the background threads and flushes the log.
+    */
+   public synchronized void close() {
+      if (this._reporter != null)
+         this._reporter.cancel();
+      this._explainer.shutdownNow();
+      this._log.flush();
+   }//end close
+
+   /**
+    * Reduces a statement to its shape: string and numeric literals become
+    * ?, whitespace runs become a single blank.
+    */
+   static String normalize(String sql) {
+      StringBuilder sb = new StringBuilder(sql.length());
+      int n = sql.length();
+      int i = 0;
+      boolean space = false;
+      while (i < n) {
+         char c = sql.charAt(i);
+         if (c == '\'') {
+            // string literal, '' is an escaped quote
+            ++i;
+            while (i < n) {
+               if (sql.charAt(i) == '\'') {
+                  if (i + 1 < n && sql.charAt(i + 1) == '\'')
+                     i += 2;
+                  else
+                     break;
+               } else {
+                  ++i;
+               }//end if
+            }//end while
+            ++i;
+            // a preceding E of an escape string literal belongs to it
+            if (sb.length() > 0 && (sb.charAt(sb.length() - 1) == 'E' || sb.charAt(sb.length() - 1) == 'e')
+                && (sb.length() == 1 || !Character.isLetterOrDigit(sb.charAt(sb.length() - 2))))
+               sb.setLength(sb.length() - 1);
+            sb.append('?');
+            space = false;
+         } else if (Character.isDigit(c) && (sb.length() == 0 || !isIdentifierChar(sb.charAt(sb.length() - 1)))) {
+            while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.'))
+               ++i;
+            sb.append('?');
+            space = false;
+         } else if (Character.isWhitespace(c)) {
+            if (!space && sb.length() > 0)
+               sb.append(' ');
+            space = true;
+            ++i;
+         } else {
+            sb.append(c);
+            space = false;
+            ++i;
+         }//end if
+      }//end while
+      int len = sb.length();
+      if (len > 0 && sb.charAt(len - 1) == ' ')
+         sb.setLength(len - 1);
+      return sb.toString();
+   }//end normalize
+
+   private Shape shape(String sql) {
+      Shape shape = this._shapes.get(sql);
+      if (shape != null)
+         return shape;
+      String key = normalize(sql);
+      shape = this._shapes.get(key);
+      if (shape != null)
+         return shape;
+      if (this._shapes.size() >= MAX_SHAPES)
+         key = OTHER;
+      Shape created = new Shape(key);
+      shape = this._shapes.putIfAbsent(key, created);
+      return shape != null ? shape : created;
+   }//end shape
+
+   private void slow(final String sql, final Object[] params, long nanos) {
+      final String header = String.format("%s slow query (%.1f ms): %s%s",
+                                          new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()),
+                                          nanos / 1e6, normalize(sql),
+                                          params == null || params.length == 0 ? ""
+                                             : " (" + params.length + " parameters)");
+      if (!this._explain) {
+         this._log.println(header);
+         return;
+      }//end if
+      try{
+         this._explainer.execute(new Runnable() {
+            public void run() {
+               QueryStats.this._log.println(header + System.getProperty("line.separator") + explain(sql, params));
+            }
+         });
+      }catch (RejectedExecutionException e){
+         // too many plans waiting, log the statement only
+         this._log.println(header);
+      }//end try
+   }//end slow
+
+   /*
+    * Returns the plan of sql. Queries are run again under EXPLAIN ANALYZE,
+    * in a transaction that is rolled back; anything else only gets the
+    * estimated plan.
+    */
+   private String explain(String sql, Object[] params) {
+      String trimmed = sql.trim().toLowerCase();
+      boolean analyze = (trimmed.startsWith("select") || trimmed.startsWith("with"))
+                        && !QueryResultCache.isWrite(sql) && !QueryResultCache.isVolatile(sql);
+      String explain = (analyze ? "EXPLAIN ANALYZE " : "EXPLAIN ") + sql;
+      StringBuilder plan = new StringBuilder();
+      PooledConnection pc = null;
+      try{
+         pc = this._pool.borrow();
+         Connection conn = pc.connection();
+         if (analyze)
+            conn.setAutoCommit(false);
+         try{
+            PreparedStatement stmt = conn.prepareStatement(explain);
+            try{
+               if (params != null)
+                  Cafe.bind(stmt, params);
+               ResultSet rs = stmt.executeQuery();
+               while (rs.next())
+                  plan.append("    ").append(redact(rs.getString(1))).append(System.getProperty("line.separator"));
+            }finally{
+               stmt.close();
+            }//end try
+         }finally{
+            if (analyze) {
+               try{
+                  // whatever functions the statement called changed nothing
+                  conn.rollback();
+                  conn.setAutoCommit(true);
+               }catch (SQLException e){
+                  // a connection that cannot leave the transaction is not reusable
+                  pc.close();
+               }//end try
+            }//end if
+         }//end try
+      }catch (SQLException e){
+         plan.append("    (no plan: ").append(redact(String.valueOf(e.getMessage()))).append(')');
+      }finally{
+         this._pool.release(pc);
+      }//end try
+      return plan.toString();
+   }//end explain
+
+   /*
+    * Replaces the string constants of a plan line, e.g. the bound values
+    * of a filter, by '?'.
+    */
+   private static String redact(String line) {
+      return line.replaceAll("'(?:[^']|'')*'", "'?'");
+   }//end redact
+
+   private static boolean isIdentifierChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+   }//end isIdentifierChar
+
+   private static String abbreviate(String s, int max) {
+      return s.length() <= max ? s : s.substring(0, max - 3) + "...";
+   }//end abbreviate
+
+}//end QueryStats
@@ -0,0 +1,233 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps UserRecommendations up to date, so the suggestions shown at login
+ * are a primary key lookup.
+ *
+ * The triggers of create_triggers.sql keep UserFavItems current and queue
+ * the changes of ItemCooccurrence in CooccurrenceQueue, which every
+ * refresh first adds up with apply_cooccurrence(). When a user orders or
+ * changes their favourites, userChanged() queues them; a background
+ * thread recomputes their recommendations delayMillis later with
+ * refresh_recommendations(), so the orders of a busy user are handled by
+ * one refresh. The pairs other users' orders add shift everyone's scores
+ * a little; refreshAll(), run every refreshAllMinutes or from cron with
+ *
+ *    java RecommendationJob &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+ *
+ * catches up with those.
+ *
+ */
+public class RecommendationJob {
+
+   // items recommended per user
+   static final int SUGGESTIONS = 5;
+
+   private final Cafe _esql;
+   private final long _delayMillis;
+
+   // users waiting for a refresh, guarded by this
+   private final Set<String> _pending = new LinkedHashSet<String>();
+
+   private final ScheduledExecutorService _worker;
+
+   private final AtomicLong _refreshed = new AtomicLong();
+   private final AtomicLong _coalesced = new AtomicLong();
+   private final AtomicLong _failed = new AtomicLong();
+   private final AtomicLong _refreshAlls = new AtomicLong();
+   private final AtomicLong _deferred = new AtomicLong();
+   private final AtomicLong _pairs = new AtomicLong();
+
+   /**
+    * @param esql the database
+    * @param delayMillis time changes of a user are collected before the
+    *        refresh
+    * @param refreshAllMinutes interval of refreshAll(), 0 for never
+    */
+   public RecommendationJob(Cafe esql, long delayMillis, long refreshAllMinutes) {
+      this._esql = esql;
+      this._delayMillis = Math.max(0, delayMillis);
+      ScheduledThreadPoolExecutor worker = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(AdmissionController.runAs(AdmissionController.WorkClass.MAINTENANCE, r),
+                                  "cafe-recommendations");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      worker.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+      this._worker = worker;
+      if (refreshAllMinutes > 0) {
+         this._worker.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+               try{
+                  refreshAll();
+               }catch (SQLException e){
+                  System.err.println("Refreshing all recommendations failed: " + e.getMessage());
+               }//end try
+            }
+         }, refreshAllMinutes, refreshAllMinutes, TimeUnit.MINUTES);
+      }//end if
+   }//end RecommendationJob
+
+   /**
+    * The main execution method
+    *
+    * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + RecommendationJob.class.getName() +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      AdmissionController.setDefaultClass(AdmissionController.WorkClass.MAINTENANCE);
+      Class.forName("org.postgresql.Driver").newInstance();
+      Cafe esql = new Cafe(args[0], args[1], args[2], "", 1, 1);
+      try{
+         long start = System.nanoTime();
+         int rows = new RecommendationJob(esql, 0, 0).refreshAll();
+         System.out.println(String.format("%d recommendations in %.1fs", rows, (System.nanoTime() - start) / 1e9));
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Queues a refresh of the recommendations of login.
+    */
+   public void userChanged(String login) {
+      if (login == null)
+         return;
+      synchronized (this) {
+         if (!this._pending.add(login)) {
+            this._coalesced.incrementAndGet();
+            return;
+         }//end if
+         if (this._pending.size() > 1)
+            return;   // a drain is scheduled already
+      }//end synchronized
+      try{
+         this._worker.schedule(new Runnable() {
+            public void run() { drain(); }
+         }, this._delayMillis, TimeUnit.MILLISECONDS);
+      }catch (RuntimeException e){
+         // closed, the next refreshAll() catches up
+      }//end try
+   }//end userChanged
+
+   /**
+    * Recomputes the recommendations of login now.
+    *
+    * @return the number of items recommended
+    * @throws java.sql.SQLException when the refresh failed
+    */
+   public int refresh(String login) throws SQLException {
+      List<List<String>> result = this._esql.executeQueryAndReturnResult(
+         "SELECT refresh_recommendations(?, ?)", login, SUGGESTIONS);
+      this._refreshed.incrementAndGet();
+      return Integer.parseInt(result.get(0).get(0).trim());
+   }//end refresh
+
+   /**
+    * Adds the queued co-occurrence changes to ItemCooccurrence.
+    *
+    * @return the number of pairs changed
+    * @throws java.sql.SQLException when it failed, in which case the
+    *         changes stay queued
+    */
+   public int applyPairs() throws SQLException {
+      List<List<String>> result = this._esql.executeQueryAndReturnResult("SELECT apply_cooccurrence()");
+      int pairs = Integer.parseInt(result.get(0).get(0).trim());
+      this._pairs.addAndGet(pairs);
+      return pairs;
+   }//end applyPairs
+
+   /**
+    * Recomputes the recommendations of every user in one transaction,
+    * after adding up the queued pairs; logins see the old ones until it
+    * commits.
+    *
+    * @return the number of items recommended
+    * @throws java.sql.SQLException when the refresh failed
+    */
+   public int refreshAll() throws SQLException {
+      applyPairs();
+      List<List<String>> result = this._esql.executeQueryAndReturnResult(
+         "SELECT refresh_all_recommendations(?)", SUGGESTIONS);
+      this._refreshAlls.incrementAndGet();
+      return Integer.parseInt(result.get(0).get(0).trim());
+   }//end refreshAll
+
+   /**
+    * Stops the background thread; queued refreshes are left to the next
+    * refreshAll().
+    */
+   public void close() {
+      this._worker.shutdownNow();
+   }//end close
+
+   /**
+    * @return the refresh counters
+    */
+   public String stats() {
+      int pending;
+      synchronized (this) {
+         pending = this._pending.size();
+      }//end synchronized
+      return String.format("recommendations: refreshed=%d coalesced=%d failed=%d pending=%d refreshAlls=%d " +
+                           "deferred=%d pairs=%d",
+                           this._refreshed.get(), this._coalesced.get(), this._failed.get(),
+                           pending, this._refreshAlls.get(), this._deferred.get(), this._pairs.get());
+   }//end stats
+
+   /*
+    * Refreshes the queued users, on the background thread.
+    */
+   private void drain() {
+      if (this._esql.overloaded()) {
+         // customers are waiting for the database: try again later, the
+         // queued users stay queued
+         this._deferred.incrementAndGet();
+         try{
+            this._worker.schedule(new Runnable() {
+               public void run() { drain(); }
+            }, Math.max(this._delayMillis, 100L), TimeUnit.MILLISECONDS);
+            return;
+         }catch (RuntimeException e){
+            // closed, refresh them now
+         }//end try
+      }//end if
+      List<String> logins;
+      synchronized (this) {
+         logins = new ArrayList<String>(this._pending);
+         this._pending.clear();
+      }//end synchronized
+      try{
+         applyPairs();
+      }catch (SQLException e){
+         // the pairs stay queued, the users get what is counted so far
+         this._failed.incrementAndGet();
+         System.err.println("Adding up the queued item pairs failed: " + e.getMessage());
+      }//end try
+      for (String login : logins) {
+         try{
+            refresh(login);
+         }catch (SQLException e){
+            this._failed.incrementAndGet();
+            System.err.println("Refreshing the recommendations of " + login + " failed: " + e.getMessage());
+         }//end try
+      }//end for
+   }//end drain
+
+}//end RecommendationJob
@@ -0,0 +1,380 @@
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders streamed query rows as an aligned table, CSV or JSON. Pass it
+ * to Cafe.executeQueryAndStream, or call begin/row/end directly.
+ *
+ * Output is collected in a reusable character buffer and written to the
+ * channel in large blocks, so printing costs a few system calls however
+ * many cells there are. Each thread keeps its console writer, buffers
+ * included, from one console() call to the next. Trailing blanks, the padding of char(n) columns,
+ * are trimmed from every value.
+ *
+ * Tables are aligned on the widths of the first TABLE_SAMPLE rows, which
+ * are held back until then; later rows are written as they come, so a
+ * result of any size needs constant memory in every format.
+ *
+ */
+public class ResultWriter extends RowHandler {
+
+   /**
+    * The output formats.
+    */
+   public enum Format { TABLE, CSV, JSON }
+
+   // characters collected before they are encoded and written
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   // rows a table waits for to compute its column widths
+   static final int TABLE_SAMPLE = 100;
+
+   private static final String NL = System.getProperty("line.separator");
+
+   // the console writer of each thread, see console()
+   private static final ThreadLocal<ResultWriter> CONSOLE = new ThreadLocal<ResultWriter>();
+
+   private Format _format;
+   private final WritableByteChannel _out;
+   private final boolean _closeOut;
+   // flushed by end() when out wraps a stream, else null
+   private Flushable _flushOut = null;
+
+   private final StringBuilder _chars = new StringBuilder(BUFFER_SIZE);
+   private final CharsetEncoder _encoder;
+   private final ByteBuffer _bytes;
+
+   private String[] _columns;
+   private int _rows = 0;
+
+   // TABLE: column widths and the rows held back to compute them
+   private int[] _widths;
+   private List<String[]> _sample = new ArrayList<String[]>();
+
+   /**
+    * @param format the output format
+    * @param out where the output goes, in UTF-8
+    * @param closeOut whether end() closes out
+    */
+   public ResultWriter(Format format, WritableByteChannel out, boolean closeOut) {
+      this(format, out, closeOut, StandardCharsets.UTF_8);
+   }//end ResultWriter
+
+   /**
+    * @param format the output format
+    * @param out where the output goes
+    * @param closeOut whether end() closes out
+    * @param charset the encoding of the output
+    */
+   public ResultWriter(Format format, WritableByteChannel out, boolean closeOut, Charset charset) {
+      this._format = format;
+      this._out = out;
+      this._closeOut = closeOut;
+      this._encoder = charset.newEncoder();
+      this._bytes = ByteBuffer.allocate(BUFFER_SIZE * 2);
+   }//end ResultWriter
+
+   /**
+    * @return a writer printing a table on System.out
+    */
+   public static ResultWriter console() {
+      return console(Format.TABLE);
+   }//end console
+
+   /**
+    * Returns the console writer of the calling thread, reset to format,
+    * which prints to the output of its session in the session's encoding.
+    * It is replaced when the thread serves another session. One table at
+    * a time: a second console() call starts the writer over.
+    *
+    * @return a writer printing in format on the calling thread's session
+    */
+   public static ResultWriter console(Format format) {
+      Session session = Session.current();
+      PrintStream out = session.out();
+      out.flush();
+      ResultWriter writer = CONSOLE.get();
+      if (writer == null || writer._flushOut != out) {
+         writer = new ResultWriter(format, Channels.newChannel(out), false, session.charset());
+         writer._flushOut = out;
+         // what the console cannot show becomes '?', as with System.out
+         writer._encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+         CONSOLE.set(writer);
+      }//end if
+      writer.reset(format);
+      return writer;
+   }//end console
+
+   /*
+    * Forgets the result written last, and whatever a failed one left in
+    * the buffers.
+    */
+   private void reset(Format format) {
+      this._format = format;
+      this._columns = null;
+      this._rows = 0;
+      this._widths = null;
+      this._sample = new ArrayList<String[]>();
+      this._chars.setLength(0);
+      this._encoder.reset();
+      this._bytes.clear();
+   }//end reset
+
+   /**
+    * @return a writer writing in format to a new file, closed by end()
+    * @throws java.io.IOException when the file cannot be created
+    */
+   public static ResultWriter file(Format format, String path) throws IOException {
+      return new ResultWriter(format, new FileOutputStream(path).getChannel(), true);
+   }//end file
+
+   public void begin(String[] columns) throws SQLException {
+      this._columns = columns.clone();
+      switch (this._format) {
+         case TABLE:
+            this._widths = new int[columns.length];
+            for (int i = 0; i < columns.length; ++i)
+               this._widths[i] = columns[i].length();
+            break;
+         case CSV:
+            for (int i = 0; i < columns.length; ++i) {
+               if (i > 0)
+                  this._chars.append(',');
+               csv(columns[i]);
+            }//end for
+            this._chars.append(NL);
+            break;
+         case JSON:
+            this._chars.append('[');
+            break;
+      }//end switch
+   }//end begin
+
+   public boolean row(String[] values) throws SQLException {
+      ++this._rows;
+      switch (this._format) {
+         case TABLE:
+            if (this._sample != null) {
+               String[] copy = new String[values.length];
+               for (int i = 0; i < values.length; ++i) {
+                  copy[i] = trim(values[i]);
+                  this._widths[i] = Math.max(this._widths[i], copy[i] == null ? 4 : copy[i].length());
+               }//end for
+               this._sample.add(copy);
+               if (this._sample.size() == TABLE_SAMPLE)
+                  writeSample();
+            } else {
+               tableRow(values);
+            }//end if
+            break;
+         case CSV:
+            for (int i = 0; i < values.length; ++i) {
+               if (i > 0)
+                  this._chars.append(',');
+               if (values[i] != null)
+                  csv(trim(values[i]));
+            }//end for
+            this._chars.append(NL);
+            break;
+         case JSON:
+            this._chars.append(this._rows == 1 ? "" : ",").append(NL).append("  {");
+            for (int i = 0; i < values.length; ++i) {
+               if (i > 0)
+                  this._chars.append(", ");
+               json(this._columns[i]);
+               this._chars.append(": ");
+               if (values[i] == null)
+                  this._chars.append("null");
+               else
+                  json(trim(values[i]));
+            }//end for
+            this._chars.append('}');
+            break;
+      }//end switch
+      if (this._chars.length() >= BUFFER_SIZE)
+         drain();
+      return true;
+   }//end row
+
+   public void end(int rowCount) throws SQLException {
+      try{
+         switch (this._format) {
+            case TABLE:
+               if (this._sample != null && !this._sample.isEmpty())
+                  writeSample();
+               if (this._rows > 0)
+                  this._chars.append('(').append(this._rows).append(this._rows == 1 ? " row)" : " rows)").append(NL);
+               break;
+            case CSV:
+               break;
+            case JSON:
+               this._chars.append(this._rows == 0 ? "]" : NL + "]").append(NL);
+               break;
+         }//end switch
+         drain();
+         if (this._flushOut != null)
+            this._flushOut.flush();
+      }catch (IOException e){
+         throw new SQLException("Cannot write the result: " + e.getMessage());
+      }finally{
+         if (this._closeOut) {
+            try{
+               this._out.close();
+            }catch (IOException e){
+               throw new SQLException("Cannot close the output: " + e.getMessage());
+            }//end try
+         }//end if
+      }//end try
+   }//end end
+
+   /**
+    * Closes the output if this writer owns it. end() does that already;
+    * this is for when the query fails before reaching it.
+    */
+   public void close() {
+      if (!this._closeOut)
+         return;
+      try{
+         this._out.close();
+      }catch (IOException e){
+         // nothing more to write anyway
+      }//end try
+   }//end close
+
+   /**
+    * Writes rows that are already in memory, e.g. from an in-memory index.
+    *
+    * @param columns the column names
+    * @param rows the rows
+    * @throws java.sql.SQLException when writing failed
+    */
+   public void writeAll(String[] columns, List<String[]> rows) throws SQLException {
+      begin(columns);
+      for (String[] row : rows)
+         row(row);
+      end(rows.size());
+   }//end writeAll
+
+   /*
+    * Writes the header and the rows held back for the column widths.
+    */
+   private void writeSample() throws SQLException {
+      tableRow(this._columns);
+      for (int i = 0; i < this._widths.length; ++i) {
+         if (i > 0)
+            this._chars.append("-+-");
+         for (int j = 0; j < this._widths[i]; ++j)
+            this._chars.append('-');
+      }//end for
+      this._chars.append(NL);
+      for (String[] row : this._sample)
+         tableRow(row);
+      this._sample = null;
+   }//end writeSample
+
+   private void tableRow(String[] values) {
+      for (int i = 0; i < values.length; ++i) {
+         if (i > 0)
+            this._chars.append(" | ");
+         String value = values[i] == null ? "null" : trim(values[i]);
+         this._chars.append(value);
+         if (i < values.length - 1)
+            for (int j = value.length(); j < this._widths[i]; ++j)
+               this._chars.append(' ');
+      }//end for
+      this._chars.append(NL);
+   }//end tableRow
+
+   private void csv(String value) {
+      boolean quote = false;
+      for (int i = 0; i < value.length() && !quote; ++i) {
+         char c = value.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }//end for
+      if (!quote) {
+         this._chars.append(value);
+         return;
+      }//end if
+      this._chars.append('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         if (c == '"')
+            this._chars.append('"');
+         this._chars.append(c);
+      }//end for
+      this._chars.append('"');
+   }//end csv
+
+   private void json(String value) {
+      this._chars.append('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"': this._chars.append("\\\""); break;
+            case '\\': this._chars.append("\\\\"); break;
+            case '\n': this._chars.append("\\n"); break;
+            case '\r': this._chars.append("\\r"); break;
+            case '\t': this._chars.append("\\t"); break;
+            default:
+               if (c < 0x20)
+                  this._chars.append(String.format("\\u%04x", (int) c));
+               else
+                  this._chars.append(c);
+         }//end switch
+      }//end for
+      this._chars.append('"');
+   }//end json
+
+   /*
+    * Encodes the collected characters and writes them to the channel.
+    */
+   private void drain() throws SQLException {
+      CharBuffer in = CharBuffer.wrap(this._chars);
+      try{
+         while (true) {
+            CoderResult result = this._encoder.encode(in, this._bytes, true);
+            // e.g. a lone surrogate, which would otherwise be retried forever
+            if (result.isError())
+               result.throwException();
+            this._bytes.flip();
+            while (this._bytes.hasRemaining())
+               this._out.write(this._bytes);
+            this._bytes.clear();
+            if (result.isUnderflow())
+               break;
+         }//end while
+      }catch (IOException e){
+         throw new SQLException("Cannot write the result: " + e.getMessage());
+      }finally{
+         this._encoder.reset();
+         this._chars.setLength(0);
+      }//end try
+   }//end drain
+
+   /*
+    * Drops trailing blanks, e.g. the padding of char(n) values.
+    */
+   static String trim(String value) {
+      if (value == null)
+         return null;
+      int end = value.length();
+      while (end > 0 && value.charAt(end - 1) == ' ')
+         --end;
+      return end == value.length() ? value : value.substring(0, end);
+   }//end trim
+
+}//end ResultWriter
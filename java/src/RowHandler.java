@@ -0,0 +1,39 @@
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a streamed query one at a time, see
+ * Cafe.executeQueryAndStream. Only the current row is held in memory.
+ *
+ */
+public abstract class RowHandler {
+
+   /**
+    * Called once before the first row with the names of the result columns.
+    *
+    * @param columns the column labels, in select-list order
+    * @throws java.sql.SQLException to abort the query
+    */
+   public void begin(String[] columns) throws SQLException {
+   }//end begin
+
+   /**
+    * Called for every row of the result. When the query was started with
+    * reuseRow set, the array is overwritten by the next row and must be
+    * copied if it is kept beyond this call.
+    *
+    * @param values the column values of the row, null for SQL NULL
+    * @return false to stop reading further rows
+    * @throws java.sql.SQLException to abort the query
+    */
+   public abstract boolean row(String[] values) throws SQLException;
+
+   /**
+    * Called once after the last row that was read.
+    *
+    * @param rowCount number of rows handed to row()
+    * @throws java.sql.SQLException to abort the query
+    */
+   public void end(int rowCount) throws SQLException {
+   }//end end
+
+}//end RowHandler
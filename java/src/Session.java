@@ -0,0 +1,284 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * The terminal of one user: where the menus read input and print to, and
+ * who is logged in on it.
+ *
+ * The menu screens of Cafe read Cafe.in and print to System.out. Both are
+ * bound to the session of the calling thread, so many sessions can run
+ * the same screens at once, each on its own thread. A thread without a
+ * session uses the console, the process' own standard input and output.
+ *
+ */
+public class Session {
+
+   /**
+    * Thrown out of the menus when the input of the session has ended, so
+    * the session can be wound up from wherever it was. The screens rethrow
+    * it ahead of their catch (Exception e), and Cafe.runSession ends the
+    * session on it.
+    */
+   public static class Closed extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+      Closed(String name) {
+         super("Session " + name + " closed");
+      }
+   }//end Closed
+
+   private static final ThreadLocal<Session> CURRENT = new ThreadLocal<Session>();
+
+   // the process' own streams, taken before System.out and System.err are
+   // replaced by dispatch()
+   private static final PrintStream STDOUT = System.out;
+   private static final PrintStream STDERR = System.err;
+   private static Session _console = null;
+   private static boolean _dispatching = false;
+
+   private final String _name;
+   private final BufferedReader _in;
+   private final PrintStream _out;
+   private final PrintStream _err;
+   // the encoding of out
+   private final Charset _charset;
+   private volatile boolean _closed = false;
+
+   // the logged in user and its Users.type, null while logged out
+   private volatile String _login = null;
+   private volatile String _type = null;
+   // their profile and open orders, read at login
+   private volatile Cafe.Profile _profile = null;
+
+   /**
+    * @param name identifies the session in messages
+    * @param in where the session's input comes from
+    * @param out where its output goes
+    * @param err where its error messages go
+    * @param charset the encoding of out
+    */
+   public Session(String name, BufferedReader in, PrintStream out, PrintStream err, Charset charset) {
+      this._name = name;
+      this._in = in;
+      this._out = out;
+      this._err = err;
+      this._charset = charset;
+   }//end Session
+
+   /**
+    * @return the session of the calling thread, the console if it has none
+    */
+   public static Session current() {
+      Session session = CURRENT.get();
+      return session != null ? session : console();
+   }//end current
+
+   /**
+    * @return the session attached to the calling thread, null if it has
+    *         none, e.g. a background thread
+    */
+   public static Session attached() {
+      return CURRENT.get();
+   }//end attached
+
+   /**
+    * @return the session on the process' standard input and output
+    */
+   public static synchronized Session console() {
+      if (_console == null)
+         _console = new Session("console", new BufferedReader(new InputStreamReader(System.in)),
+                                STDOUT, STDERR, stdoutCharset());
+      return _console;
+   }//end console
+
+   /*
+    * The encoding of the process' standard output: the one the JVM picked
+    * for a terminal, else the default.
+    */
+   private static Charset stdoutCharset() {
+      String name = System.getProperty("stdout.encoding", System.getProperty("sun.stdout.encoding"));
+      try{
+         if (name != null)
+            return Charset.forName(name);
+      }catch (IllegalArgumentException e){
+         // unknown to this JVM, System.out falls back to the default too
+      }//end try
+      return Charset.defaultCharset();
+   }//end stdoutCharset
+
+   /**
+    * Replaces System.out and System.err by streams printing to the session
+    * of the calling thread. Needed once, before sessions run on other
+    * threads than main.
+    */
+   public static synchronized void dispatch() {
+      if (_dispatching)
+         return;
+      System.setOut(new SessionPrintStream(false));
+      System.setErr(new SessionPrintStream(true));
+      _dispatching = true;
+   }//end dispatch
+
+   /**
+    * @return a reader reading the input of the calling thread's session
+    */
+   static BufferedReader input() {
+      return new SessionReader();
+   }//end input
+
+   /**
+    * Binds the session to the calling thread until detach().
+    */
+   public void attach() {
+      CURRENT.set(this);
+   }//end attach
+
+   /**
+    * Unbinds the calling thread from its session.
+    */
+   public static void detach() {
+      CURRENT.remove();
+   }//end detach
+
+   public String name() { return this._name; }
+   public PrintStream out() { return this._out; }
+   public PrintStream err() { return this._err; }
+   public Charset charset() { return this._charset; }
+   public boolean isClosed() { return this._closed; }
+
+   /**
+    * @return the logged in user, null if none
+    */
+   public String login() {
+      return this._login;
+   }//end login
+
+   /**
+    * @return the Users.type of the logged in user, null if none
+    */
+   public String type() {
+      return this._type;
+   }//end type
+
+   /**
+    * Records who logged in, or that the user logged out when login is null.
+    */
+   public void setUser(String login, String type) {
+      this._login = login;
+      this._type = login == null ? null : type;
+      this._profile = null;
+   }//end setUser
+
+   /**
+    * @return the profile of the logged in user, null if not read yet
+    */
+   public Cafe.Profile profile() {
+      return this._profile;
+   }//end profile
+
+   /**
+    * Keeps the profile of the logged in user until they log out.
+    */
+   public void setProfile(Cafe.Profile profile) {
+      this._profile = profile;
+   }//end setProfile
+
+   /**
+    * Marks the session closed; its next read throws Closed.
+    */
+   public void close() {
+      this._closed = true;
+   }//end close
+
+   /*
+    * Reads a line of input after flushing the prompt. The end of input or
+    * a failed read closes the session.
+    */
+   String readLine() {
+      this._out.flush();
+      if (this._closed)
+         throw new Closed(this._name);
+      String line;
+      try{
+         line = this._in.readLine();
+      }catch (IOException e){
+         line = null;
+      }//end try
+      if (line == null) {
+         this._closed = true;
+         throw new Closed(this._name);
+      }//end if
+      return line;
+   }//end readLine
+
+   /*
+    * The reader behind Cafe.in. Only readLine() is used by the menus; the
+    * other reads go to the session's reader as well.
+    */
+   private static class SessionReader extends BufferedReader {
+      SessionReader() {
+         super(new Reader() {
+            public int read(char[] cbuf, int off, int len) throws IOException {
+               return current()._in.read(cbuf, off, len);
+            }
+            public void close() {
+            }
+         }, 1);
+      }
+      public String readLine() { return current().readLine(); }
+      public int read() throws IOException { return current()._in.read(); }
+      public int read(char[] cbuf, int off, int len) throws IOException { return current()._in.read(cbuf, off, len); }
+      public boolean ready() throws IOException { return current()._in.ready(); }
+      public void close() { }
+   }//end SessionReader
+
+   /*
+    * System.out or System.err forwarding every call to the stream of the
+    * calling thread's session, so sessions never wait on each other's
+    * output.
+    */
+   private static class SessionPrintStream extends PrintStream {
+      private final boolean _err;
+      SessionPrintStream(boolean err) {
+         super(err ? STDERR : STDOUT);
+         this._err = err;
+      }
+      private PrintStream target() { return this._err ? current()._err : current()._out; }
+      public void flush() { target().flush(); }
+      public void close() { }
+      public boolean checkError() { return target().checkError(); }
+      public void write(int b) { target().write(b); }
+      public void write(byte[] buf, int off, int len) { target().write(buf, off, len); }
+      public void print(boolean b) { target().print(b); }
+      public void print(char c) { target().print(c); }
+      public void print(int i) { target().print(i); }
+      public void print(long l) { target().print(l); }
+      public void print(float f) { target().print(f); }
+      public void print(double d) { target().print(d); }
+      public void print(char[] s) { target().print(s); }
+      public void print(String s) { target().print(s); }
+      public void print(Object obj) { target().print(obj); }
+      public void println() { target().println(); }
+      public void println(boolean x) { target().println(x); }
+      public void println(char x) { target().println(x); }
+      public void println(int x) { target().println(x); }
+      public void println(long x) { target().println(x); }
+      public void println(float x) { target().println(x); }
+      public void println(double x) { target().println(x); }
+      public void println(char[] x) { target().println(x); }
+      public void println(String x) { target().println(x); }
+      public void println(Object x) { target().println(x); }
+      public PrintStream printf(String format, Object... args) { return target().printf(format, args); }
+      public PrintStream printf(Locale l, String format, Object... args) { return target().printf(l, format, args); }
+      public PrintStream format(String format, Object... args) { return target().format(format, args); }
+      public PrintStream format(Locale l, String format, Object... args) { return target().format(l, format, args); }
+      public PrintStream append(CharSequence csq) { return target().append(csq); }
+      public PrintStream append(CharSequence csq, int start, int end) { return target().append(csq, start, end); }
+      public PrintStream append(char c) { return target().append(c); }
+   }//end SessionPrintStream
+
+}//end Session
@@ -0,0 +1,165 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the SQL scripts of sql/src without psql. A script is cut into
+ * statements at the semicolons outside of quotes, comments and dollar
+ * quoted bodies, so functions defined AS $$ ... $$ stay in one piece.
+ * psql meta-commands are not understood.
+ *
+ */
+public class SqlScript {
+
+   /**
+    * Runs the statements of script in one transaction. The script's own
+    * BEGIN and COMMIT are left out.
+    *
+    * @param esql the database
+    * @param script the SQL file
+    * @throws java.io.IOException when the file cannot be read
+    * @throws java.sql.SQLException when a statement failed, in which case
+    *         nothing was applied
+    */
+   public static void run(Cafe esql, File script) throws IOException, SQLException {
+      long start = System.nanoTime();
+      UnitOfWork uow = esql.beginUnitOfWork();
+      try{
+         run(uow, script);
+         uow.commit();
+      }finally{
+         uow.close();
+      }//end try
+      System.out.println(String.format("Ran %s in %.1fs", script.getName(), (System.nanoTime() - start) / 1e9));
+   }//end run
+
+   /**
+    * Runs the statements of script as part of uow, which the caller
+    * commits. The script's own BEGIN and COMMIT are left out.
+    *
+    * @param uow the transaction
+    * @param script the SQL file
+    * @throws java.io.IOException when the file cannot be read
+    * @throws java.sql.SQLException when a statement failed
+    */
+   public static void run(UnitOfWork uow, File script) throws IOException, SQLException {
+      for (String s : statements(read(script))) {
+         if (s.equalsIgnoreCase("BEGIN") || s.equalsIgnoreCase("COMMIT"))
+            continue;
+         uow.execute(s);
+      }//end for
+   }//end run
+
+   /**
+    * Cuts text into statements, without the comments between them.
+    *
+    * @param text the SQL text
+    * @return the non-empty statements, trimmed and without the semicolon
+    */
+   static List<String> statements(String text) {
+      List<String> statements = new ArrayList<String>();
+      StringBuilder sb = new StringBuilder();
+      int n = text.length();
+      int i = 0;
+      while (i < n) {
+         char c = text.charAt(i);
+         int end = -1;
+         if (text.startsWith("--", i)) {
+            end = text.indexOf('\n', i);
+            i = end < 0 ? n : end;
+            continue;
+         } else if (text.startsWith("/*", i)) {
+            end = text.indexOf("*/", i + 2);
+            i = end < 0 ? n : end + 2;
+            sb.append(' ');
+            continue;
+         } else if (c == '\'') {
+            // E'...' strings escape quotes with a backslash as well
+            boolean backslash = i > 0 && Character.toUpperCase(text.charAt(i - 1)) == 'E';
+            end = quoted(text, i, '\'', backslash);
+         } else if (c == '"') {
+            end = quoted(text, i, '"', false);
+         } else if (c == '$') {
+            String tag = dollarTag(text, i);
+            if (tag != null) {
+               end = text.indexOf(tag, i + tag.length());
+               end = end < 0 ? n : end + tag.length();
+            }//end if
+         } else if (c == ';') {
+            add(statements, sb);
+            ++i;
+            continue;
+         }//end if
+         if (end < 0)
+            end = i + 1;
+         sb.append(text, i, end);
+         i = end;
+      }//end while
+      add(statements, sb);
+      return statements;
+   }//end statements
+
+   /*
+    * @return the index after the quote closing the one at start
+    */
+   private static int quoted(String text, int start, char quote, boolean backslash) {
+      int i = start + 1;
+      while (i < text.length()) {
+         char c = text.charAt(i);
+         if (backslash && c == '\\') {
+            i += 2;
+         } else if (c == quote) {
+            // a doubled quote stands for itself
+            if (i + 1 < text.length() && text.charAt(i + 1) == quote)
+               i += 2;
+            else
+               return i + 1;
+         } else {
+            ++i;
+         }//end if
+      }//end while
+      return text.length();
+   }//end quoted
+
+   /*
+    * @return the $tag$ starting at start, or null if the $ does not open a
+    *         dollar quote, e.g. in $1 or in an identifier
+    */
+   private static String dollarTag(String text, int start) {
+      if (start > 0 && (Character.isLetterOrDigit(text.charAt(start - 1)) || text.charAt(start - 1) == '_'))
+         return null;
+      int i = start + 1;
+      while (i < text.length() && (Character.isLetter(text.charAt(i)) || text.charAt(i) == '_'
+                                   || (i > start + 1 && Character.isDigit(text.charAt(i)))))
+         ++i;
+      if (i < text.length() && text.charAt(i) == '$')
+         return text.substring(start, i + 1);
+      return null;
+   }//end dollarTag
+
+   private static void add(List<String> statements, StringBuilder sb) {
+      String s = sb.toString().trim();
+      if (!s.isEmpty())
+         statements.add(s);
+      sb.setLength(0);
+   }//end add
+
+   private static String read(File script) throws IOException {
+      StringBuilder sb = new StringBuilder();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(script), "UTF-8"));
+      try{
+         String line;
+         while ((line = reader.readLine()) != null)
+            sb.append(line).append('\n');
+      }finally{
+         reader.close();
+      }//end try
+      return sb.toString();
+   }//end read
+
+}//end SqlScript
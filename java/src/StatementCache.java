@@ -0,0 +1,100 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least recently used cache of PreparedStatements for one physical
+ * connection, keyed by SQL text. It saves creating the statement and
+ * splitting its SQL at the placeholders on every call. The bundled driver
+ * substitutes the parameters on the client, so the server still parses
+ * and plans every execution: its server side PREPARE declares the types
+ * of the first call's values, e.g. text for any null and the invalid
+ * "double" for a Double, which many of the statements of Cafe would not
+ * accept.
+ *
+ * A connection is only used by one thread at a time, so the cache itself
+ * is not synchronized. Cached statements must not be closed by callers.
+ *
+ */
+class StatementCache {
+
+   private final int _capacity;
+
+   // hit and miss counters, shared by all caches of the same pool
+   private final AtomicLong _hits;
+   private final AtomicLong _misses;
+
+   // cached statements in access order, the eldest is closed on overflow
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   StatementCache(int capacity, AtomicLong hits, AtomicLong misses) {
+      this._capacity = capacity;
+      this._hits = hits;
+      this._misses = misses;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= StatementCache.this._capacity)
+               return false;
+            closeQuietly(eldest.getValue());
+            return true;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for sql, preparing it on a miss. The
+    * parameters of a cached statement are cleared before it is returned.
+    *
+    * @param connection the connection this cache belongs to
+    * @param sql the SQL text with ? placeholders
+    * @return a prepared statement ready for binding
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+      PreparedStatement ps = this._statements.get(sql);
+      if (ps != null) {
+         this._hits.incrementAndGet();
+         ps.clearParameters();
+         return ps;
+      }//end if
+      this._misses.incrementAndGet();
+      ps = connection.prepareStatement(sql);
+      if (this._capacity > 0)
+         this._statements.put(sql, ps);
+      return ps;
+   }//end prepare
+
+   /**
+    * Tells whether a statement returned by prepare() is owned by the cache
+    * (and must stay open) or has to be closed by the caller.
+    */
+   boolean isCached(String sql, PreparedStatement ps) {
+      return this._statements.get(sql) == ps;
+   }//end isCached
+
+   /**
+    * Closes all cached statements.
+    */
+   void close() {
+      Iterator<PreparedStatement> it = this._statements.values().iterator();
+      while (it.hasNext()) {
+         closeQuietly(it.next());
+         it.remove();
+      }//end while
+   }//end close
+
+   private static void closeQuietly(PreparedStatement ps) {
+      if (ps == null)
+         return;
+      try{
+         ps.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+}//end StatementCache
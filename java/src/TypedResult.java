@@ -0,0 +1,331 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A query result stored column by column in arrays of the column's type:
+ * int[] for integer columns, long[] for bigint, float[] for real, double[]
+ * for double precision and numeric, long[] of microseconds since the epoch
+ * for timestamps and dates, a BitSet for booleans and String[] for
+ * everything else. NULLs are tracked in a BitSet per column.
+ *
+ * Numbers are never turned into strings unless getString() asks for them,
+ * and reading them back costs no parsing, so summing a column of prices
+ * or totals allocates nothing.
+ *
+ */
+public class TypedResult {
+
+   // storage kinds of a column
+   static final int INT = 0, LONG = 1, FLOAT = 2, DOUBLE = 3, TIMESTAMP = 4, DATE = 5, BOOLEAN = 6, STRING = 7;
+
+   private final String[] _names;
+   private final int[] _kinds;
+   private final Map<String, Integer> _index = new HashMap<String, Integer>();
+
+   // the column arrays, only the one matching the kind is set
+   private final int[][] _ints;
+   private final long[][] _longs;
+   private final float[][] _floats;
+   private final double[][] _doubles;
+   private final BitSet[] _booleans;
+   private final String[][] _strings;
+   private final BitSet[] _nulls;
+
+   private int _rows = 0;
+   private int _capacity;
+
+   /**
+    * Reads every remaining row of rs.
+    *
+    * @param rs the result set, left open
+    * @throws java.sql.SQLException when reading failed
+    */
+   public TypedResult(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int n = rsmd.getColumnCount();
+      this._names = new String[n];
+      this._kinds = new int[n];
+      this._ints = new int[n][];
+      this._longs = new long[n][];
+      this._floats = new float[n][];
+      this._doubles = new double[n][];
+      this._booleans = new BitSet[n];
+      this._strings = new String[n][];
+      this._nulls = new BitSet[n];
+      this._capacity = 16;
+      for (int c = 0; c < n; ++c) {
+         this._names[c] = rsmd.getColumnName(c + 1);
+         Integer previous = this._index.put(this._names[c].toLowerCase(), c);
+         if (previous != null)
+            this._index.put(this._names[c].toLowerCase(), previous);   // first one wins
+         this._kinds[c] = kindOf(rsmd.getColumnType(c + 1));
+         this._nulls[c] = new BitSet();
+         allocate(c);
+      }//end for
+      while (rs.next()) {
+         if (this._rows == this._capacity)
+            grow();
+         for (int c = 0; c < n; ++c)
+            read(rs, c);
+         ++this._rows;
+      }//end while
+   }//end TypedResult
+
+   /**
+    * @return the number of rows
+    */
+   public int rowCount() {
+      return this._rows;
+   }//end rowCount
+
+   /**
+    * @return the number of columns
+    */
+   public int columnCount() {
+      return this._names.length;
+   }//end columnCount
+
+   /**
+    * @return the name of column col, counted from 0
+    */
+   public String columnName(int col) {
+      return this._names[col];
+   }//end columnName
+
+   /**
+    * @param name a column name, any case
+    * @return its index, counted from 0
+    * @throws IllegalArgumentException when there is no such column
+    */
+   public int column(String name) {
+      Integer col = this._index.get(name.toLowerCase());
+      if (col == null)
+         throw new IllegalArgumentException("No column " + name + " in " + Arrays.toString(this._names));
+      return col;
+   }//end column
+
+   /**
+    * @return whether the value at row, col is NULL
+    */
+   public boolean isNull(int row, int col) {
+      check(row);
+      return this._nulls[col].get(row);
+   }//end isNull
+
+   /**
+    * @return the value of an integer column, 0 for NULL
+    */
+   public int getInt(int row, int col) {
+      check(row);
+      switch (this._kinds[col]) {
+         case INT: return this._ints[col][row];
+         case LONG: return (int) this._longs[col][row];
+         default: throw wrongType(col, "int");
+      }//end switch
+   }//end getInt
+
+   /**
+    * @return the value of an integer or bigint column, or the microseconds
+    *         since the epoch of a timestamp or date column; 0 for NULL
+    */
+   public long getLong(int row, int col) {
+      check(row);
+      switch (this._kinds[col]) {
+         case INT: return this._ints[col][row];
+         case LONG: case TIMESTAMP: case DATE: return this._longs[col][row];
+         default: throw wrongType(col, "long");
+      }//end switch
+   }//end getLong
+
+   /**
+    * @return the value of a real column, 0 for NULL
+    */
+   public float getFloat(int row, int col) {
+      check(row);
+      if (this._kinds[col] != FLOAT)
+         return (float) getDouble(row, col);
+      return this._floats[col][row];
+   }//end getFloat
+
+   /**
+    * @return the value of a numeric column, 0 for NULL
+    */
+   public double getDouble(int row, int col) {
+      check(row);
+      switch (this._kinds[col]) {
+         case INT: return this._ints[col][row];
+         case LONG: return this._longs[col][row];
+         case FLOAT: return this._floats[col][row];
+         case DOUBLE: return this._doubles[col][row];
+         default: throw wrongType(col, "double");
+      }//end switch
+   }//end getDouble
+
+   /**
+    * @return the value of a boolean column, false for NULL
+    */
+   public boolean getBoolean(int row, int col) {
+      check(row);
+      if (this._kinds[col] != BOOLEAN)
+         throw wrongType(col, "boolean");
+      return this._booleans[col].get(row);
+   }//end getBoolean
+
+   /**
+    * @return the value at row, col as text, null for NULL. Numbers and
+    *         times are only formatted here.
+    */
+   public String getString(int row, int col) {
+      check(row);
+      if (this._nulls[col].get(row))
+         return null;
+      switch (this._kinds[col]) {
+         case INT: return Integer.toString(this._ints[col][row]);
+         case LONG: return Long.toString(this._longs[col][row]);
+         case FLOAT: return Float.toString(this._floats[col][row]);
+         case DOUBLE: return Double.toString(this._doubles[col][row]);
+         case BOOLEAN: return this._booleans[col].get(row) ? "t" : "f";
+         case TIMESTAMP: return toTimestamp(this._longs[col][row]).toString();
+         case DATE: return new Date(floorDiv(this._longs[col][row], 1000)).toString();
+         default: return this._strings[col][row];
+      }//end switch
+   }//end getString
+
+   public int getInt(int row, String col) { return getInt(row, column(col)); }
+   public long getLong(int row, String col) { return getLong(row, column(col)); }
+   public float getFloat(int row, String col) { return getFloat(row, column(col)); }
+   public double getDouble(int row, String col) { return getDouble(row, column(col)); }
+   public boolean getBoolean(int row, String col) { return getBoolean(row, column(col)); }
+   public String getString(int row, String col) { return getString(row, column(col)); }
+   public boolean isNull(int row, String col) { return isNull(row, column(col)); }
+
+   /**
+    * @return the time of a timestamp or date column, null for NULL
+    */
+   public Timestamp getTimestamp(int row, int col) {
+      if (this._kinds[col] != TIMESTAMP && this._kinds[col] != DATE)
+         throw wrongType(col, "timestamp");
+      return isNull(row, col) ? null : toTimestamp(this._longs[col][row]);
+   }//end getTimestamp
+
+   /**
+    * @return the sum of a numeric column, NULLs count as 0
+    */
+   public double sum(int col) {
+      double sum = 0;
+      switch (this._kinds[col]) {
+         case INT: for (int i = 0; i < this._rows; ++i) sum += this._ints[col][i]; break;
+         case LONG: for (int i = 0; i < this._rows; ++i) sum += this._longs[col][i]; break;
+         case FLOAT: for (int i = 0; i < this._rows; ++i) sum += this._floats[col][i]; break;
+         case DOUBLE: for (int i = 0; i < this._rows; ++i) sum += this._doubles[col][i]; break;
+         default: throw wrongType(col, "number");
+      }//end switch
+      return sum;
+   }//end sum
+
+   /**
+    * @return whether column col holds numbers
+    */
+   public boolean isNumeric(int col) {
+      return this._kinds[col] <= DOUBLE;
+   }//end isNumeric
+
+   /*
+    * Maps a java.sql.Types code to the storage kind.
+    */
+   static int kindOf(int sqlType) {
+      switch (sqlType) {
+         case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT: return INT;
+         case Types.BIGINT: return LONG;
+         case Types.REAL: return FLOAT;
+         case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL: return DOUBLE;
+         case Types.TIMESTAMP: return TIMESTAMP;
+         case Types.DATE: return DATE;
+         case Types.BOOLEAN: case Types.BIT: return BOOLEAN;
+         default: return STRING;
+      }//end switch
+   }//end kindOf
+
+   private void read(ResultSet rs, int c) throws SQLException {
+      int i = c + 1;
+      int row = this._rows;
+      switch (this._kinds[c]) {
+         case INT: this._ints[c][row] = rs.getInt(i); break;
+         case LONG: this._longs[c][row] = rs.getLong(i); break;
+         case FLOAT: this._floats[c][row] = rs.getFloat(i); break;
+         case DOUBLE: this._doubles[c][row] = rs.getDouble(i); break;
+         case BOOLEAN: if (rs.getBoolean(i)) this._booleans[c].set(row); break;
+         case TIMESTAMP: {
+            Timestamp t = rs.getTimestamp(i);
+            if (t != null)
+               this._longs[c][row] = floorDiv(t.getTime(), 1000) * 1000000 + t.getNanos() / 1000;
+            break;
+         }
+         case DATE: {
+            Date d = rs.getDate(i);
+            if (d != null)
+               this._longs[c][row] = d.getTime() * 1000;
+            break;
+         }
+         default: this._strings[c][row] = rs.getString(i); break;
+      }//end switch
+      if (rs.wasNull())
+         this._nulls[c].set(row);
+   }//end read
+
+   private void allocate(int c) {
+      switch (this._kinds[c]) {
+         case INT: this._ints[c] = new int[this._capacity]; break;
+         case LONG: case TIMESTAMP: case DATE: this._longs[c] = new long[this._capacity]; break;
+         case FLOAT: this._floats[c] = new float[this._capacity]; break;
+         case DOUBLE: this._doubles[c] = new double[this._capacity]; break;
+         case BOOLEAN: this._booleans[c] = new BitSet(); break;
+         default: this._strings[c] = new String[this._capacity]; break;
+      }//end switch
+   }//end allocate
+
+   private void grow() {
+      this._capacity *= 2;
+      for (int c = 0; c < this._kinds.length; ++c) {
+         switch (this._kinds[c]) {
+            case INT: this._ints[c] = Arrays.copyOf(this._ints[c], this._capacity); break;
+            case LONG: case TIMESTAMP: case DATE:
+               this._longs[c] = Arrays.copyOf(this._longs[c], this._capacity); break;
+            case FLOAT: this._floats[c] = Arrays.copyOf(this._floats[c], this._capacity); break;
+            case DOUBLE: this._doubles[c] = Arrays.copyOf(this._doubles[c], this._capacity); break;
+            case BOOLEAN: break;
+            default: this._strings[c] = Arrays.copyOf(this._strings[c], this._capacity); break;
+         }//end switch
+      }//end for
+   }//end grow
+
+   private static Timestamp toTimestamp(long micros) {
+      long seconds = floorDiv(micros, 1000000);
+      Timestamp t = new Timestamp(seconds * 1000);
+      t.setNanos((int) (micros - seconds * 1000000) * 1000);
+      return t;
+   }//end toTimestamp
+
+   private static long floorDiv(long a, long b) {
+      long q = a / b;
+      return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+   }//end floorDiv
+
+   private void check(int row) {
+      if (row < 0 || row >= this._rows)
+         throw new IndexOutOfBoundsException("Row " + row + " of " + this._rows);
+   }//end check
+
+   private IllegalArgumentException wrongType(int col, String type) {
+      return new IllegalArgumentException("Column " + this._names[col] + " is not a " + type);
+   }//end wrongType
+
+}//end TypedResult
@@ -0,0 +1,300 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A database transaction that collects updates and sends them to the
+ * server in JDBC batches. Obtained from Cafe.beginUnitOfWork:
+ *
+ * <pre>
+ *    UnitOfWork uow = esql.beginUnitOfWork();
+ *    try{
+ *       uow.addUpdate("UPDATE Menu SET price = ? WHERE itemName = ?", 2.5, "Coffee");
+ *       ...
+ *       uow.commit();
+ *    }finally{
+ *       uow.close();   // rolls back unless committed
+ *    }
+ * </pre>
+ *
+ * Queued updates stay in memory until batchSize of them are waiting, or
+ * until flush() or commit(). A pooled connection is only borrowed, and the
+ * transaction only started, when the first batch is sent; so a unit of work
+ * filled at user speed holds no database resources while the user types.
+ * Consecutive updates with the same SQL text share a JDBC batch and the
+ * order of the updates is preserved.
+ *
+ */
+public class UnitOfWork implements AutoCloseable {
+
+   private final ConnectionPool _pool;
+   private final QueryResultCache _results;
+   private final QueryStats _stats;
+   private final int _batchSize;
+
+   // the borrowed connection, null until the first flush
+   private PooledConnection _pc = null;
+
+   // updates waiting to be sent: SQL text and parameters
+   private final List<String> _queuedSql = new ArrayList<String>();
+   private final List<Object[]> _queuedParams = new ArrayList<Object[]>();
+
+   // statements executed so far, to invalidate cached results on commit
+   private final Set<String> _written = new LinkedHashSet<String>();
+
+   // rows affected by all flushed statements
+   private int _updateCount = 0;
+   // rows affected by each flushed statement, in order
+   private final List<Integer> _updateCounts = new ArrayList<Integer>();
+
+   private boolean _finished = false;
+
+   UnitOfWork(ConnectionPool pool, QueryResultCache results, QueryStats stats, int batchSize) {
+      this._pool = pool;
+      this._results = results;
+      this._stats = stats;
+      this._batchSize = Math.max(1, batchSize);
+   }//end UnitOfWork
+
+   /**
+    * Queues an update statement. It is sent with the next batch and only
+    * becomes visible to others on commit().
+    *
+    * @param sql the update SQL string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @throws java.sql.SQLException when the automatic flush failed
+    */
+   public void addUpdate(String sql, Object... params) throws SQLException {
+      checkOpen();
+      this._queuedSql.add(sql);
+      this._queuedParams.add(params);
+      if (this._queuedSql.size() >= this._batchSize)
+         flush();
+   }//end addUpdate
+
+   /**
+    * Runs an update right away, after any queued ones, and returns its row
+    * count. Useful for statements whose outcome decides what comes next.
+    *
+    * @param sql the update SQL string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when the update failed
+    */
+   public int executeUpdate(String sql, Object... params) throws SQLException {
+      flush();
+      PooledConnection pc = connection();
+      PreparedStatement stmt = pc.prepare(sql);
+      long start = System.nanoTime();
+      int count = -1;
+      try{
+         Cafe.bind(stmt, params);
+         this._written.add(sql);
+         count = stmt.executeUpdate();
+         this._updateCount += count;
+         this._updateCounts.add(count);
+         return count;
+      }finally{
+         pc.done(sql, stmt);
+         this._stats.record(sql, params, count, start, count < 0);
+      }//end try
+   }//end executeUpdate
+
+   /**
+    * Runs a statement without parameters right away, after any queued
+    * ones, discarding the rows it may return. Meant for the statements of
+    * SQL scripts, which are run once and not worth preparing.
+    *
+    * @param sql the SQL statement
+    * @throws java.sql.SQLException when the statement failed
+    */
+   public void execute(String sql) throws SQLException {
+      flush();
+      PooledConnection pc = connection();
+      Statement stmt = pc.statement();
+      long start = System.nanoTime();
+      boolean failed = true;
+      try{
+         this._written.add(sql);
+         stmt.execute(sql);
+         failed = false;
+      }finally{
+         stmt.close();
+         this._stats.record(sql, null, 0, start, failed);
+      }//end try
+   }//end execute
+
+   /**
+    * Returns the value last drawn from sequence in this transaction, e.g.
+    * the key of a row inserted by the updates so far. They are flushed
+    * first, and currval() is read on the same connection, as it is local
+    * to a database session.
+    *
+    * @param sequence name of the DB sequence
+    * @return current value of the sequence in this transaction
+    * @throws java.sql.SQLException when nothing was drawn from sequence yet
+    */
+   public int getCurrSeqVal(String sequence) throws SQLException {
+      flush();
+      PooledConnection pc = connection();
+      String sql = "SELECT currval(?)";
+      PreparedStatement stmt = pc.prepare(sql);
+      long start = System.nanoTime();
+      boolean failed = true;
+      try{
+         Cafe.bind(stmt, new Object[] { sequence });
+         ResultSet rs = stmt.executeQuery();
+         int value = rs.next() ? rs.getInt(1) : -1;
+         rs.close();
+         failed = false;
+         return value;
+      }finally{
+         pc.done(sql, stmt);
+         this._stats.record(sql, null, 1, start, failed);
+      }//end try
+   }//end getCurrSeqVal
+
+   /**
+    * Sends all queued updates to the server without committing.
+    *
+    * @throws java.sql.SQLException when a statement of the batch failed
+    */
+   public void flush() throws SQLException {
+      checkOpen();
+      if (this._queuedSql.isEmpty())
+         return;
+      PooledConnection pc = connection();
+      int i = 0;
+      try{
+         while (i < this._queuedSql.size()) {
+            // one JDBC batch per run of updates with the same SQL text
+            String sql = this._queuedSql.get(i);
+            PreparedStatement stmt = pc.prepare(sql);
+            long start = System.nanoTime();
+            int rows = -1;
+            try{
+               while (i < this._queuedSql.size() && sql.equals(this._queuedSql.get(i))) {
+                  Cafe.bind(stmt, this._queuedParams.get(i));
+                  stmt.addBatch();
+                  ++i;
+               }//end while
+               this._written.add(sql);
+               rows = 0;
+               for (int count : stmt.executeBatch()) {
+                  int n = count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+                  this._updateCounts.add(n);
+                  rows += n;
+               }//end for
+               this._updateCount += rows;
+            }finally{
+               // a failed batch may leave statements behind in the cached statement
+               stmt.clearBatch();
+               pc.done(sql, stmt);
+               this._stats.record(sql, null, rows, start, rows < 0);
+            }//end try
+         }//end while
+      }finally{
+         this._queuedSql.clear();
+         this._queuedParams.clear();
+      }//end try
+   }//end flush
+
+   /**
+    * Flushes the queued updates and commits the transaction.
+    *
+    * @return the number of rows affected by the whole unit of work
+    * @throws java.sql.SQLException when an update or the commit failed, in
+    *         which case nothing was applied
+    */
+   public int commit() throws SQLException {
+      flush();
+      if (this._pc != null)
+         this._pc.connection().commit();
+      this._finished = true;
+      for (String sql : this._written)
+         this._results.invalidate(sql);
+      return this._updateCount;
+   }//end commit
+
+   /**
+    * Discards every update of this unit of work.
+    */
+   public void rollback() {
+      if (this._finished)
+         return;
+      this._finished = true;
+      this._queuedSql.clear();
+      this._queuedParams.clear();
+      if (this._pc == null)
+         return;
+      try{
+         this._pc.connection().rollback();
+      }catch (SQLException e){
+         // ignored, the connection is closed below if it is unusable.
+      }//end try
+   }//end rollback
+
+   /**
+    * Rolls back unless commit() succeeded and returns the connection to the pool.
+    */
+   public void close() {
+      rollback();
+      if (this._pc == null)
+         return;
+      try{
+         this._pc.connection().setAutoCommit(true);
+      }catch (SQLException e){
+         // a connection that cannot leave the transaction is not reusable
+         this._pc.close();
+      }//end try
+      this._pool.release(this._pc);
+      this._pc = null;
+   }//end close
+
+   /**
+    * @return the number of rows affected by the updates flushed so far
+    */
+   public int getUpdateCount() {
+      return this._updateCount;
+   }//end getUpdateCount
+
+   /**
+    * @return the number of rows affected by each update flushed so far, in
+    *         the order the updates were added
+    */
+   public int[] getUpdateCounts() {
+      int[] counts = new int[this._updateCounts.size()];
+      for (int i = 0; i < counts.length; ++i)
+         counts[i] = this._updateCounts.get(i);
+      return counts;
+   }//end getUpdateCounts
+
+   /*
+    * Borrows the connection and starts the transaction on first use.
+    */
+   private PooledConnection connection() throws SQLException {
+      checkOpen();
+      if (this._pc == null) {
+         PooledConnection pc = this._pool.borrow();
+         try{
+            pc.connection().setAutoCommit(false);
+         }catch (SQLException e){
+            this._pool.release(pc);
+            throw e;
+         }//end try
+         this._pc = pc;
+      }//end if
+      return this._pc;
+   }//end connection
+
+   private void checkOpen() throws SQLException {
+      if (this._finished)
+         throw new SQLException("Unit of work is already finished");
+   }//end checkOpen
+
+}//end UnitOfWork
@@ -1,6 +1,15 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# PostgreSQL 12 or 13 only, see the head of create_tables.sql
+VERSION=$(psql -h localhost -p $PGPORT -At -c "SHOW server_version_num" $USER"_DB") || exit 1
+if [ "$VERSION" -lt 120000 ] || [ "$VERSION" -ge 140000 ]; then
+   echo "PostgreSQL 12 or 13 needed, the server is $VERSION" >&2
+   exit 1
+fi
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
-
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/backfill_rollups.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_triggers.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_partitions.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/backfill_recommendations.sql
@@ -0,0 +1,31 @@
+-- Rebuilds UserFavItems, ItemCooccurrence and UserRecommendations from
+-- Users, Orders and ItemStatus, e.g. after the bulk load of
+-- load_data.sql, which does not go through the triggers of
+-- create_triggers.sql. Needs the functions defined there. Writers wait
+-- until the rebuild commits, so no pair is missed or counted twice.
+
+BEGIN;
+
+LOCK TABLE Users, ItemStatus IN SHARE MODE;
+
+TRUNCATE UserRecommendations, ItemCooccurrence, CooccurrenceQueue, UserFavItems;
+
+INSERT INTO UserFavItems (login, itemName)
+SELECT u.login, unnest(fav_items(u.favItems))
+FROM Users u
+WHERE u.favItems IS NOT NULL AND u.favItems <> '';
+
+INSERT INTO ItemCooccurrence (itemA, itemB, favUsers, orders)
+SELECT itemA, itemB, SUM(favUsers), SUM(orders) FROM (
+	SELECT a.itemName AS itemA, b.itemName AS itemB, 1 AS favUsers, 0 AS orders
+	FROM UserFavItems a JOIN UserFavItems b ON b.login = a.login AND b.itemName <> a.itemName
+	UNION ALL
+	SELECT a.itemName, b.itemName, 0, 1
+	FROM ItemStatus a JOIN ItemStatus b ON b.orderid = a.orderid AND b.itemName <> a.itemName) pairs
+GROUP BY itemA, itemB;
+
+-- a statement without a result set, so BulkImporter can run it as well
+CREATE TEMP TABLE recommended ON COMMIT DROP AS
+SELECT refresh_all_recommendations(5) AS recommendations;
+
+COMMIT;
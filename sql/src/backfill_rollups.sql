@@ -0,0 +1,33 @@
+-- Rebuilds the sales rollups from Orders and ItemStatus, e.g. after the
+-- bulk load of load_data.sql, which does not go through the triggers of
+-- create_triggers.sql. Writers wait until the rebuild commits, so the
+-- rollups never miss or double count an order.
+
+BEGIN;
+
+LOCK TABLE Orders, ItemStatus IN SHARE MODE;
+
+TRUNCATE SalesHourly, SalesDaily, ItemSalesDaily;
+
+-- every amount is rounded to the cent before it is added, as by the
+-- triggers
+INSERT INTO SalesHourly (hour, orders, revenue, paidOrders, paidRevenue)
+SELECT date_trunc('hour', timeStampRecieved), COUNT(*), SUM(CAST(total AS numeric(12,2))),
+	COUNT(*) FILTER (WHERE paid), COALESCE(SUM(CAST(total AS numeric(12,2))) FILTER (WHERE paid), 0)
+FROM Orders
+GROUP BY 1;
+
+INSERT INTO SalesDaily (day, orders, revenue, paidOrders, paidRevenue)
+SELECT timeStampRecieved::date, COUNT(*), SUM(CAST(total AS numeric(12,2))),
+	COUNT(*) FILTER (WHERE paid), COALESCE(SUM(CAST(total AS numeric(12,2))) FILTER (WHERE paid), 0)
+FROM Orders
+GROUP BY 1;
+
+-- items loaded without their price are priced at the current menu price
+INSERT INTO ItemSalesDaily (day, itemName, quantity, revenue)
+SELECT o.timeStampRecieved::date, m.itemName, COUNT(*), SUM(CAST(COALESCE(i.price, m.price) AS numeric(12,2)))
+FROM ItemStatus i, Orders o, Menu m
+WHERE i.orderid = o.orderid AND i.itemName = m.itemName
+GROUP BY 1, 2;
+
+COMMIT;
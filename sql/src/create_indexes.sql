@@ -5,3 +5,31 @@ ON orders
 CREATE INDEX index2
 ON ItemStatus
 ( orderid );
+
+-- order history of one customer, newest first, paged on
+-- (timeStampRecieved, orderid)
+CREATE INDEX index3
+ON Orders
+(login, timeStampRecieved, orderid);
+
+-- orders still waiting to be paid, paged on (timeStampRecieved, orderid);
+-- paid orders are the vast majority and are left out of the index
+CREATE INDEX index4
+ON Orders
+(timeStampRecieved, orderid)
+WHERE paid IS NOT TRUE;
+
+-- catch-up of the change feed: item status changes since a point in time
+CREATE INDEX index5
+ON ItemStatus
+(lastUpdated);
+
+-- catch-up of the change feed: orders paid since a point in time
+CREATE INDEX index7
+ON Orders
+(paidAt);
+
+-- the users having an item as favourite
+CREATE INDEX index6
+ON UserFavItems
+(itemName);
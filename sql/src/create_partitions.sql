@@ -0,0 +1,95 @@
+-- Partitions of Orders and ItemStatus, see OrderPartitions in
+-- create_tables.sql. The partitions of the range starting at fromId are
+-- orders_p<fromId> and itemstatus_p<fromId>, fromId padded to 10 digits.
+-- The functions wait at most 2s for a lock and fail rather than hold up
+-- the queries queued behind them; PartitionManager tries again later.
+
+-- Rejects changes of an archived partition
+CREATE OR REPLACE FUNCTION reject_archived_change() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		RAISE EXCEPTION 'order % is archived', OLD.orderid USING ERRCODE = 'CA001';
+	END IF;
+	RAISE EXCEPTION 'order % is archived', NEW.orderid USING ERRCODE = 'CA001';
+END;
+$$ LANGUAGE plpgsql;
+
+-- Creates the partitions of [lo, hi). They are created empty and then
+-- attached, which unlike CREATE TABLE ... PARTITION OF does not lock
+-- Orders or ItemStatus against reads and writes; that holds from
+-- PostgreSQL 12 on, older servers block both while attaching.
+CREATE OR REPLACE FUNCTION add_order_partition(lo integer, hi integer) RETURNS void AS $$
+DECLARE
+	o text := 'orders_p' || lpad(lo::text, 10, '0');
+	i text := 'itemstatus_p' || lpad(lo::text, 10, '0');
+BEGIN
+	EXECUTE format('CREATE TABLE %I (LIKE Orders)', o);
+	EXECUTE format('CREATE TABLE %I (LIKE ItemStatus)', i);
+	EXECUTE format('ALTER TABLE Orders ATTACH PARTITION %I FOR VALUES FROM (%s) TO (%s)', o, lo, hi);
+	EXECUTE format('ALTER TABLE ItemStatus ATTACH PARTITION %I FOR VALUES FROM (%s) TO (%s)', i, lo, hi);
+	EXECUTE format('ALTER TABLE %I ADD FOREIGN KEY (orderid) REFERENCES %I (orderid)', i, o);
+	INSERT INTO OrderPartitions (fromId, toId) VALUES (lo, hi);
+END;
+$$ LANGUAGE plpgsql;
+
+-- Adds partitions of size ids until there is room for ahead partitions
+-- worth of ids beyond the last one handed out by orders_orderid_seq.
+-- Returns the number of partitions added.
+CREATE OR REPLACE FUNCTION add_order_partitions(size integer, ahead integer) RETURNS integer AS $$
+DECLARE
+	lo integer;
+	upto bigint;
+	added integer := 0;
+BEGIN
+	PERFORM set_config('lock_timeout', '2s', true);
+	-- one manager at a time
+	LOCK TABLE OrderPartitions IN EXCLUSIVE MODE;
+	SELECT last_value + CAST(ahead AS bigint) * size INTO upto FROM orders_orderid_seq;
+	SELECT COALESCE(MAX(toId), 0) INTO lo FROM OrderPartitions;
+	WHILE lo <= upto LOOP
+		PERFORM add_order_partition(lo, lo + size);
+		lo := lo + size;
+		added := added + 1;
+	END LOOP;
+	RETURN added;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Archives the partitions starting at lo if all their ids have been
+-- handed out, all their orders are paid and nothing in them changed for
+-- closedFor: from then on they reject changes, so the times recorded for
+-- them stay true. Returns whether it did.
+CREATE OR REPLACE FUNCTION archive_order_partition(lo integer, closedFor interval) RETURNS boolean AS $$
+DECLARE
+	p OrderPartitions%ROWTYPE;
+	o text := 'orders_p' || lpad(lo::text, 10, '0');
+	i text := 'itemstatus_p' || lpad(lo::text, 10, '0');
+	first timestamp;
+	last timestamp;
+	unpaid boolean;
+	touched timestamp;
+BEGIN
+	PERFORM set_config('lock_timeout', '2s', true);
+	SELECT * INTO p FROM OrderPartitions WHERE fromId = lo AND NOT archived FOR UPDATE;
+	IF NOT FOUND OR p.toId > (SELECT last_value FROM orders_orderid_seq) THEN
+		RETURN false;
+	END IF;
+	-- no writes from here on, so what is checked stays true
+	EXECUTE format('LOCK TABLE %I, %I IN SHARE MODE', o, i);
+	EXECUTE format('SELECT min(timeStampRecieved), max(timeStampRecieved), bool_or(paid IS NOT TRUE) FROM %I', o)
+		INTO first, last, unpaid;
+	EXECUTE format('SELECT max(lastUpdated) FROM %I', i) INTO touched;
+	IF unpaid OR last > now() - closedFor OR touched > now() - closedFor THEN
+		RETURN false;
+	END IF;
+	EXECUTE format('CREATE TRIGGER archived BEFORE INSERT OR UPDATE OR DELETE ON %I '
+	               'FOR EACH ROW EXECUTE PROCEDURE reject_archived_change()', o);
+	EXECUTE format('CREATE TRIGGER archived BEFORE INSERT OR UPDATE OR DELETE ON %I '
+	               'FOR EACH ROW EXECUTE PROCEDURE reject_archived_change()', i);
+	UPDATE OrderPartitions SET archived = true, firstReceived = first, lastReceived = last
+	WHERE fromId = lo;
+	RETURN true;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT add_order_partitions(10000, 2);
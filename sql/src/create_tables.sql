@@ -2,37 +2,179 @@ DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
 DROP TABLE ItemStatus;
+DROP TABLE SalesHourly;
+DROP TABLE SalesDaily;
+DROP TABLE ItemSalesDaily;
+DROP TABLE schema_version;
+DROP TABLE UserFavItems;
+DROP TABLE ItemCooccurrence;
+DROP TABLE CooccurrenceQueue;
+DROP TABLE UserRecommendations;
+DROP TABLE OrderPartitions;
 
+-- Needs PostgreSQL 12 or 13. The partitioned tables below need 11 for
+-- their primary keys and row triggers, and 12 to attach partitions
+-- without blocking them; the bundled JDBC driver, java/lib/pg73jdbc3.jar,
+-- speaks only version 2 of the protocol, which 14 and later refuse.
+
+-- Text columns are varchar: char(n) pads every value with blanks in every
+-- row and index entry. Databases created with char(n) columns are
+-- converted by java/src/Migrator.java.
 CREATE TABLE Users(
-	login char(50) UNIQUE NOT NULL, 
-	phoneNum char(16) UNIQUE, 
-	password char(50) NOT NULL,
-	favItems char(400),
-	type char(8) NOT NULL,
+	login varchar(50) NOT NULL, 
+	phoneNum varchar(16) UNIQUE, 
+	password varchar(50) NOT NULL,
+	favItems varchar(400),
+	type varchar(8) NOT NULL,
 	PRIMARY KEY(login));
 
 CREATE TABLE Menu(
-	itemName char(50) UNIQUE NOT NULL,
-	type char(20) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	type varchar(20) NOT NULL,
 	price real NOT NULL,
-	description char(400),
-	imageURL char(256),
+	description varchar(400),
+	imageURL varchar(256),
 	PRIMARY KEY(itemName));
 
+-- Orders and ItemStatus are partitioned on ranges of orderid, both with
+-- the same bounds, so the items of an order are in the partition of the
+-- same range as the order and each ItemStatus partition references its
+-- Orders partition. Order ids grow with time, so a range holds the orders
+-- of a period. The partitions are listed in OrderPartitions, created
+-- ahead and archived by java/src/PartitionManager.java with the
+-- functions of create_partitions.sql.
 CREATE TABLE Orders(
-	orderid serial UNIQUE NOT NULL,
-	login char(50), 
+	orderid serial NOT NULL,
+	login varchar(50), 
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
 	total real NOT NULL,
-	PRIMARY KEY(orderid));
+	-- when paid was set, for the catch-up of the change feed
+	paidAt timestamp,
+	PRIMARY KEY(orderid))
+PARTITION BY RANGE (orderid);
 
 CREATE TABLE ItemStatus(
 	orderid integer,
-	itemName char(50), 
+	itemName varchar(50), 
 	lastUpdated timestamp NOT NULL,
-	status char(20), 
-	comments char(130), 
+	status varchar(20), 
+	comments varchar(130), 
+	-- the menu price when the item was ordered, null for loaded rows
+	price real,
 	PRIMARY KEY(orderid,itemName),
-	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
-	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName))
+PARTITION BY RANGE (orderid);
+
+-- The orderid range [fromId, toId) of every partition. An archived
+-- partition has no unpaid orders and takes no more changes, and the
+-- times its orders were received in are known; frozen tells that vacuum
+-- has frozen it since, see java/src/PartitionManager.java.
+CREATE TABLE OrderPartitions(
+	fromId integer NOT NULL,
+	toId integer NOT NULL,
+	archived boolean NOT NULL DEFAULT false,
+	frozen boolean NOT NULL DEFAULT false,
+	firstReceived timestamp,
+	lastReceived timestamp,
+	PRIMARY KEY(fromId));
+
+-- the orders of load_data.sql
+CREATE TABLE orders_p0000000000 PARTITION OF Orders FOR VALUES FROM (0) TO (100000);
+CREATE TABLE itemstatus_p0000000000 PARTITION OF ItemStatus FOR VALUES FROM (0) TO (100000);
+ALTER TABLE itemstatus_p0000000000 ADD FOREIGN KEY(orderid) REFERENCES orders_p0000000000(orderid);
+INSERT INTO OrderPartitions (fromId, toId) VALUES (0, 100000);
+
+-- Sales rollups for the manager reports, kept up to date by the triggers
+-- of create_triggers.sql and filled for loaded data by backfill_rollups.sql.
+-- The order totals of an hour or a day are spread over a few shard rows,
+-- so concurrent checkouts do not queue for one row; the reports add the
+-- shards up. The amounts are running totals, exact to the cent so that
+-- adding and taking out an order leaves them as they were.
+CREATE TABLE SalesHourly(
+	hour timestamp NOT NULL,
+	shard smallint NOT NULL DEFAULT 0,
+	orders integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	paidOrders integer NOT NULL,
+	paidRevenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(hour,shard));
+
+CREATE TABLE SalesDaily(
+	day date NOT NULL,
+	shard smallint NOT NULL DEFAULT 0,
+	orders integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	paidOrders integer NOT NULL,
+	paidRevenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(day,shard));
+
+CREATE TABLE ItemSalesDaily(
+	day date NOT NULL,
+	itemName varchar(50) NOT NULL,
+	quantity integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(day,itemName));
+
+-- The favourite items of Users.favItems, one row per user and item, kept
+-- in sync by the triggers of create_triggers.sql
+CREATE TABLE UserFavItems(
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login) ON UPDATE CASCADE ON DELETE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE);
+
+-- How often two items go together: the number of users having both as
+-- favourites and the number of orders containing both. Every pair is
+-- stored both ways round, so the items going with itemA are one range.
+CREATE TABLE ItemCooccurrence(
+	itemA varchar(50) NOT NULL,
+	itemB varchar(50) NOT NULL,
+	favUsers integer NOT NULL,
+	orders integer NOT NULL,
+	PRIMARY KEY(itemA,itemB),
+	FOREIGN KEY(itemA) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE,
+	FOREIGN KEY(itemB) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE);
+
+-- Changes of ItemCooccurrence waiting to be added to it. The triggers
+-- append them, so checkouts do not wait for each other's locks on the
+-- pairs; RecommendationJob adds them up with apply_cooccurrence().
+CREATE TABLE CooccurrenceQueue(
+	itemA varchar(50) NOT NULL,
+	itemB varchar(50) NOT NULL,
+	favUsers integer NOT NULL,
+	orders integer NOT NULL,
+	FOREIGN KEY(itemA) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE,
+	FOREIGN KEY(itemB) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE);
+
+-- The items suggested to a user at login, best first, computed by
+-- refresh_recommendations() of create_triggers.sql
+CREATE TABLE UserRecommendations(
+	login varchar(50) NOT NULL,
+	rank integer NOT NULL,
+	itemName varchar(50) NOT NULL,
+	score bigint NOT NULL,
+	PRIMARY KEY(login,rank),
+	FOREIGN KEY(login) REFERENCES Users(login) ON UPDATE CASCADE ON DELETE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE);
+
+-- Migrations applied to the schema, see java/src/Migrator.java. A new
+-- database starts out with all of them.
+CREATE TABLE schema_version(
+	version integer NOT NULL,
+	description varchar(200) NOT NULL,
+	appliedAt timestamp NOT NULL DEFAULT now(),
+	millis bigint NOT NULL,
+	PRIMARY KEY(version));
+
+INSERT INTO schema_version (version, description, millis) VALUES
+	(1, 'Users text columns to varchar', 0),
+	(2, 'Orders.login to varchar', 0),
+	(3, 'Menu, ItemStatus and ItemSalesDaily text columns to varchar', 0),
+	(4, 'Normalized favourite items and recommendations', 0),
+	(5, 'Orders and ItemStatus partitioned on orderid', 0),
+	(6, 'Orders.paidAt for the change feed', 0),
+	(7, 'ItemStatus.price and sharded sales rollups', 0),
+	(8, 'Queued item co-occurrence', 0),
+	(9, 'OrderPartitions.frozen', 0);
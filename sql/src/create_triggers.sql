@@ -0,0 +1,309 @@
+-- Change notifications for the order status screens. Every insert or
+-- update of Orders or ItemStatus sends a notification on the channel
+-- cafe_changes with a compact payload:
+--    o,<orderid>,<paid>                  for Orders
+--    i,<orderid>,<status>,<itemName>     for ItemStatus
+-- Notifications are only delivered once the transaction commits, and
+-- repeated identical payloads of one transaction are sent once.
+
+CREATE OR REPLACE FUNCTION notify_order_change() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('cafe_changes',
+		'o,' || NEW.orderid || ',' || COALESCE(NEW.paid::text, ''));
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION notify_item_status_change() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('cafe_changes',
+		'i,' || NEW.orderid || ',' || COALESCE(rtrim(NEW.status), '') || ',' || rtrim(NEW.itemName));
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS orders_notify ON Orders;
+CREATE TRIGGER orders_notify
+AFTER INSERT OR UPDATE OF paid ON Orders
+FOR EACH ROW EXECUTE PROCEDURE notify_order_change();
+
+DROP TRIGGER IF EXISTS item_status_notify ON ItemStatus;
+CREATE TRIGGER item_status_notify
+AFTER INSERT OR UPDATE ON ItemStatus
+FOR EACH ROW EXECUTE PROCEDURE notify_item_status_change();
+
+-- Sales rollups. Each order adds to the SalesHourly and SalesDaily row of
+-- the hour and day it was received, each ordered item to the
+-- ItemSalesDaily row of that day, priced at ItemStatus.price, the menu
+-- price of the time it was ordered; items loaded without it are priced at
+-- the current menu price. Updates and deletes take the old row back out
+-- first.
+--
+-- Every session adds its orders to one of 8 shard rows of the hour and of
+-- the day, picked by its backend pid, so checkouts running at the same
+-- time rarely wait for each other's row lock. A change of an order may
+-- take it out of another shard than the one it was added to; only the
+-- sum over the shards is meaningful.
+--
+-- Amounts are rounded to the cent before they are added, so the totals
+-- do not drift with the rounding errors of the real prices.
+
+CREATE OR REPLACE FUNCTION rollup_order(ts timestamp, amount real, ispaid boolean, n integer) RETURNS void AS $$
+DECLARE
+	sh smallint := pg_backend_pid() % 8;
+	rounded numeric(12,2) := amount;
+BEGIN
+	INSERT INTO SalesHourly AS s (hour, shard, orders, revenue, paidOrders, paidRevenue)
+	VALUES (date_trunc('hour', ts), sh, n, n * rounded,
+		CASE WHEN ispaid THEN n ELSE 0 END, CASE WHEN ispaid THEN n * rounded ELSE 0 END)
+	ON CONFLICT (hour, shard) DO UPDATE SET
+		orders = s.orders + EXCLUDED.orders,
+		revenue = s.revenue + EXCLUDED.revenue,
+		paidOrders = s.paidOrders + EXCLUDED.paidOrders,
+		paidRevenue = s.paidRevenue + EXCLUDED.paidRevenue;
+	INSERT INTO SalesDaily AS s (day, shard, orders, revenue, paidOrders, paidRevenue)
+	VALUES (ts::date, sh, n, n * rounded,
+		CASE WHEN ispaid THEN n ELSE 0 END, CASE WHEN ispaid THEN n * rounded ELSE 0 END)
+	ON CONFLICT (day, shard) DO UPDATE SET
+		orders = s.orders + EXCLUDED.orders,
+		revenue = s.revenue + EXCLUDED.revenue,
+		paidOrders = s.paidOrders + EXCLUDED.paidOrders,
+		paidRevenue = s.paidRevenue + EXCLUDED.paidRevenue;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION rollup_orders() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'UPDATE' OR TG_OP = 'DELETE' THEN
+		PERFORM rollup_order(OLD.timeStampRecieved, OLD.total, OLD.paid, -1);
+	END IF;
+	IF TG_OP = 'UPDATE' OR TG_OP = 'INSERT' THEN
+		PERFORM rollup_order(NEW.timeStampRecieved, NEW.total, NEW.paid, 1);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP FUNCTION IF EXISTS rollup_item(integer, char, integer);
+
+CREATE OR REPLACE FUNCTION rollup_item(oid integer, item varchar, unitprice real, n integer) RETURNS void AS $$
+BEGIN
+	INSERT INTO ItemSalesDaily AS s (day, itemName, quantity, revenue)
+	SELECT o.timeStampRecieved::date, m.itemName, n, n * CAST(COALESCE(unitprice, m.price) AS numeric(12,2))
+	FROM Orders o, Menu m
+	WHERE o.orderid = oid AND m.itemName = item
+	ON CONFLICT (day, itemName) DO UPDATE SET
+		quantity = s.quantity + EXCLUDED.quantity,
+		revenue = s.revenue + EXCLUDED.revenue;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION rollup_items() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'UPDATE' OR TG_OP = 'DELETE' THEN
+		PERFORM rollup_item(OLD.orderid, OLD.itemName, OLD.price, -1);
+	END IF;
+	IF TG_OP = 'UPDATE' OR TG_OP = 'INSERT' THEN
+		PERFORM rollup_item(NEW.orderid, NEW.itemName, NEW.price, 1);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS orders_rollup ON Orders;
+CREATE TRIGGER orders_rollup
+AFTER INSERT OR DELETE OR UPDATE OF paid, total, timeStampRecieved ON Orders
+FOR EACH ROW EXECUTE PROCEDURE rollup_orders();
+
+DROP TRIGGER IF EXISTS item_status_rollup ON ItemStatus;
+CREATE TRIGGER item_status_rollup
+AFTER INSERT OR DELETE OR UPDATE OF orderid, itemName, price ON ItemStatus
+FOR EACH ROW EXECUTE PROCEDURE rollup_items();
+
+-- Favourite items and item co-occurrence. Users.favItems is kept split
+-- into UserFavItems; names are matched to the menu ignoring case and
+-- blanks, unknown ones are left out. ItemCooccurrence counts the users
+-- and the orders having both items of a pair, each change of a user's
+-- favourites or of the items of an order, including a change of the
+-- orderid or itemName of an ItemStatus row, adds or takes out its pairs.
+-- The changes are appended to CooccurrenceQueue rather than written to
+-- the shared pair rows inside the checkout; apply_cooccurrence(), run by
+-- RecommendationJob, adds them to ItemCooccurrence.
+
+CREATE OR REPLACE FUNCTION fav_items(favs text) RETURNS varchar[] AS $$
+	SELECT COALESCE(array_agg(DISTINCT m.itemName), '{}')
+	FROM regexp_split_to_table(favs, ',') AS f(name)
+	JOIN Menu m ON lower(m.itemName) = lower(trim(f.name));
+$$ LANGUAGE sql STABLE;
+
+CREATE OR REPLACE FUNCTION cooccur_favs(items varchar[], n integer) RETURNS void AS $$
+	INSERT INTO CooccurrenceQueue (itemA, itemB, favUsers, orders)
+	SELECT a, b, n, 0 FROM unnest(items) a, unnest(items) b WHERE a <> b;
+$$ LANGUAGE sql;
+
+CREATE OR REPLACE FUNCTION sync_fav_items() RETURNS trigger AS $$
+DECLARE
+	old_items varchar[] := '{}';
+	new_items varchar[] := '{}';
+BEGIN
+	IF TG_OP = 'UPDATE' AND NEW.login = OLD.login
+	   AND NEW.favItems IS NOT DISTINCT FROM OLD.favItems THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'UPDATE' OR TG_OP = 'DELETE' THEN
+		old_items := fav_items(OLD.favItems);
+		PERFORM cooccur_favs(old_items, -1);
+	END IF;
+	IF TG_OP = 'UPDATE' OR TG_OP = 'INSERT' THEN
+		-- a renamed login has had its rows renamed by ON UPDATE CASCADE
+		DELETE FROM UserFavItems WHERE login = NEW.login;
+		new_items := fav_items(NEW.favItems);
+		INSERT INTO UserFavItems (login, itemName) SELECT NEW.login, unnest(new_items);
+		PERFORM cooccur_favs(new_items, 1);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Queues n for every pair of items of an order of which at least one item
+-- is in changed, the ItemStatus rows just inserted or deleted. The rows in
+-- hidden, just inserted as well, are not counted as items of the order.
+DROP FUNCTION IF EXISTS cooccur_orders(ItemStatus[], integer);
+
+CREATE OR REPLACE FUNCTION cooccur_orders(changed ItemStatus[], n integer, hidden ItemStatus[]) RETURNS void AS $$
+	WITH c AS (SELECT orderid, itemName FROM unnest(changed)),
+	h AS (SELECT orderid, itemName FROM unnest(hidden)),
+	members AS (
+		SELECT s.orderid, s.itemName, false AS changed FROM ItemStatus s
+		WHERE s.orderid IN (SELECT orderid FROM c)
+		  AND (s.orderid, s.itemName) NOT IN (SELECT orderid, itemName FROM c)
+		  AND (s.orderid, s.itemName) NOT IN (SELECT orderid, itemName FROM h)
+		UNION ALL
+		SELECT orderid, itemName, true FROM c)
+	INSERT INTO CooccurrenceQueue (itemA, itemB, favUsers, orders)
+	SELECT a.itemName, b.itemName, 0, n * COUNT(*)
+	FROM members a JOIN members b ON b.orderid = a.orderid AND b.itemName <> a.itemName
+	WHERE a.changed OR b.changed
+	GROUP BY 1, 2;
+$$ LANGUAGE sql;
+
+CREATE OR REPLACE FUNCTION cooccur_inserted_items() RETURNS trigger AS $$
+BEGIN
+	PERFORM cooccur_orders(ARRAY(SELECT n FROM new_rows n), 1, '{}');
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION cooccur_deleted_items() RETURNS trigger AS $$
+BEGIN
+	PERFORM cooccur_orders(ARRAY(SELECT o FROM old_rows o), -1, '{}');
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- An item renamed or moved to another order leaves its old order, taking
+-- out the pairs it had there, and joins the new one
+CREATE OR REPLACE FUNCTION cooccur_updated_items() RETURNS trigger AS $$
+DECLARE
+	removed ItemStatus[];
+	added ItemStatus[];
+BEGIN
+	removed := ARRAY(SELECT o FROM old_rows o
+		WHERE (o.orderid, o.itemName) NOT IN (SELECT orderid, itemName FROM new_rows));
+	added := ARRAY(SELECT n FROM new_rows n
+		WHERE (n.orderid, n.itemName) NOT IN (SELECT orderid, itemName FROM old_rows));
+	-- status changes, by far the most frequent, end here
+	IF cardinality(removed) = 0 AND cardinality(added) = 0 THEN
+		RETURN NULL;
+	END IF;
+	-- the order as it was: the added rows were not in it yet
+	PERFORM cooccur_orders(removed, -1, added);
+	PERFORM cooccur_orders(added, 1, '{}');
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Adds the queued changes to ItemCooccurrence and empties the queue.
+-- Returns the number of pairs changed.
+CREATE OR REPLACE FUNCTION apply_cooccurrence() RETURNS integer AS $$
+	WITH queued AS (
+		DELETE FROM CooccurrenceQueue RETURNING itemA, itemB, favUsers, orders),
+	applied AS (
+		INSERT INTO ItemCooccurrence AS c (itemA, itemB, favUsers, orders)
+		SELECT itemA, itemB, SUM(favUsers), SUM(orders) FROM queued
+		GROUP BY itemA, itemB
+		-- the same lock order in every run, so two runs cannot deadlock
+		ORDER BY itemA, itemB
+		ON CONFLICT (itemA, itemB) DO UPDATE SET
+			favUsers = c.favUsers + EXCLUDED.favUsers,
+			orders = c.orders + EXCLUDED.orders
+		RETURNING 1)
+	SELECT COUNT(*)::integer FROM applied;
+$$ LANGUAGE sql;
+
+DROP TRIGGER IF EXISTS users_fav_items ON Users;
+CREATE TRIGGER users_fav_items
+AFTER INSERT OR DELETE OR UPDATE ON Users
+FOR EACH ROW EXECUTE PROCEDURE sync_fav_items();
+
+-- once per statement, so the items of an order inserted together are
+-- paired once
+DROP TRIGGER IF EXISTS item_status_cooccur_insert ON ItemStatus;
+CREATE TRIGGER item_status_cooccur_insert
+AFTER INSERT ON ItemStatus REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE cooccur_inserted_items();
+
+DROP TRIGGER IF EXISTS item_status_cooccur_delete ON ItemStatus;
+CREATE TRIGGER item_status_cooccur_delete
+AFTER DELETE ON ItemStatus REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE cooccur_deleted_items();
+
+-- transition tables rule out UPDATE OF itemName, so it fires for status
+-- updates as well and returns right away for them
+DROP TRIGGER IF EXISTS item_status_cooccur_update ON ItemStatus;
+CREATE TRIGGER item_status_cooccur_update
+AFTER UPDATE ON ItemStatus REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE cooccur_updated_items();
+
+-- Recommendations: the items going best with a user's favourites and the
+-- items they ordered, scored by the co-occurrence counts, leaving out
+-- their favourites. Computed for one user by RecommendationJob when they
+-- order or change their favourites, for everyone by
+-- backfill_recommendations.sql.
+
+CREATE OR REPLACE FUNCTION refresh_recommendations(who varchar, n integer) RETURNS integer AS $$
+	DELETE FROM UserRecommendations WHERE login = who;
+	INSERT INTO UserRecommendations (login, rank, itemName, score)
+	SELECT who, row_number() OVER (ORDER BY score DESC, itemName), itemName, score FROM (
+		SELECT c.itemB AS itemName, SUM(c.favUsers + c.orders) AS score
+		FROM (SELECT itemName FROM UserFavItems WHERE login = who
+		      UNION
+		      SELECT s.itemName FROM Orders o JOIN ItemStatus s ON s.orderid = o.orderid
+		      WHERE o.login = who) mine
+		JOIN ItemCooccurrence c ON c.itemA = mine.itemName
+		WHERE c.itemB NOT IN (SELECT itemName FROM UserFavItems WHERE login = who)
+		GROUP BY c.itemB
+		HAVING SUM(c.favUsers + c.orders) > 0
+		ORDER BY score DESC, itemName
+		LIMIT n) best;
+	SELECT COUNT(*)::integer FROM UserRecommendations WHERE login = who;
+$$ LANGUAGE sql;
+
+CREATE OR REPLACE FUNCTION refresh_all_recommendations(n integer) RETURNS integer AS $$
+	DELETE FROM UserRecommendations;
+	INSERT INTO UserRecommendations (login, rank, itemName, score)
+	SELECT login, rank, itemName, score FROM (
+		SELECT mine.login, c.itemB AS itemName, SUM(c.favUsers + c.orders) AS score,
+			row_number() OVER (PARTITION BY mine.login
+			                   ORDER BY SUM(c.favUsers + c.orders) DESC, c.itemB) AS rank
+		FROM (SELECT login, itemName FROM UserFavItems
+		      UNION
+		      SELECT o.login, s.itemName FROM Orders o JOIN ItemStatus s ON s.orderid = o.orderid
+		      WHERE o.login IS NOT NULL) mine
+		JOIN ItemCooccurrence c ON c.itemA = mine.itemName
+		WHERE NOT EXISTS (SELECT 1 FROM UserFavItems f WHERE f.login = mine.login AND f.itemName = c.itemB)
+		GROUP BY mine.login, c.itemB
+		HAVING SUM(c.favUsers + c.orders) > 0) ranked
+	WHERE rank <= n;
+	SELECT COUNT(*)::integer FROM UserRecommendations;
+$$ LANGUAGE sql;
@@ -6,12 +6,12 @@ COPY USERS
 FROM 'users.csv'
 WITH DELIMITER ';';
 
-COPY ORDERS
+COPY ORDERS (orderid, login, paid, timeStampRecieved, total)
 FROM 'orders.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE orders_orderid_seq RESTART 87257;
 
-COPY ITEMSTATUS
+COPY ITEMSTATUS (orderid, itemName, lastUpdated, status, comments)
 FROM 'itemStatus.csv'
 WITH DELIMITER ';';
 